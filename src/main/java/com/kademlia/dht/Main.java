@@ -1,8 +1,11 @@
 package com.kademlia.dht;
 
 import com.kademlia.dht.network.Server;
+import com.kademlia.dht.storage.IStorage;
+import com.kademlia.dht.storage.LogStructuredStorage;
 import com.kademlia.dht.util.Pair;
 
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -24,10 +27,15 @@ public class Main {
         try {
             int port = Integer.parseInt(opts.getOrDefault("port", "8468"));
             String iface = opts.getOrDefault("interface", "0.0.0.0");
+            int receivers = Integer.parseInt(opts.getOrDefault("receivers", "1"));
             String bootstrapStr = opts.get("bootstrap");
 
-            Server server = new Server(20, 3, null, null);
-            server.listen(port, iface);
+            String dataDir = opts.get("data-dir");
+            IStorage storage = dataDir == null ? null
+                    : new LogStructuredStorage(Path.of(dataDir), Server.STORAGE_TTL);
+
+            Server server = new Server(20, 3, null, storage);
+            server.listen(port, iface, receivers);
 
             if (bootstrapStr != null) {
                 List<Pair<String, Integer>> bootstrap = Arrays.stream(bootstrapStr.split(","))
@@ -106,7 +114,9 @@ public class Main {
         System.out.println("Usage: [options]");
         System.out.println("  --port=N          UDP port (default: 8468)");
         System.out.println("  --interface=ADDR  Bind address (default: 0.0.0.0)");
+        System.out.println("  --receivers=N     UDP receive sockets sharing the port (default: 1)");
         System.out.println("  --bootstrap=HOST:PORT[,HOST:PORT]  Bootstrap nodes");
+        System.out.println("  --data-dir=PATH   Keep stored values on disk here, across restarts (default: memory only)");
         System.out.println("  --help, -h        Show this help");
         System.out.println();
         System.out.println("REPL commands: get <key>, set <key>=<value>, delete <key>, quit, exit");
@@ -1,56 +1,176 @@
 package com.kademlia.dht.crawling;
 
 import com.kademlia.dht.node.Node;
-import com.kademlia.dht.node.NodeHeap;
+import com.kademlia.dht.node.CandidateSet;
 import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.node.NodeList;
 import com.kademlia.dht.protocol.KademliaProtocol;
+import com.kademlia.dht.routing.HealthTracker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 
 /**
- * Base spider crawl: iterative contact of alpha closest uncontacted nodes.
+ * Base spider crawl: keeps up to alpha RPCs in flight and sends the next query as soon as any
+ * response or failure comes back, so one slow peer never holds up the others. Candidates are
+ * the closest uncontacted nodes, healthy contacts before suspected ones and, among nodes at the
+ * same coarse distance, faster ones first. Nodes that fail no longer count towards the shortlist.
+ * <p>
+ * The crawl ends when the K closest nodes seen have all answered, when no candidate is left and
+ * nothing is in flight, when {@link #processResponse} asks to stop, or after
+ * {@code MAX_QUERIES_PER_ALPHA * alpha} queries. RPCs still in flight at that point are ignored.
  */
 public abstract class SpiderCrawl {
     private static final Logger log = LoggerFactory.getLogger(SpiderCrawl.class);
+    private static final int MAX_QUERIES_PER_ALPHA = 50;
 
     protected final KademliaProtocol protocol;
     protected final Node target;
     protected final int ksize;
     protected final int alpha;
-    protected final NodeHeap nearest;
-    protected List<NodeId> lastIdsCrawled = List.of();
+    protected final CandidateSet nearest;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private final int maxQueries;
+    private Function<Node, CompletableFuture<?>> rpcMethod;
+    private int inFlight;
+    private int queries;
+    private boolean finished;
 
     public SpiderCrawl(KademliaProtocol protocol, Node target, List<Node> initialNodes, int ksize, int alpha) {
         this.protocol = protocol;
         this.target = target;
         this.ksize = ksize;
         this.alpha = alpha;
-        this.nearest = new NodeHeap(target, ksize);
-        this.nearest.push(initialNodes);
+        this.maxQueries = MAX_QUERIES_PER_ALPHA * Math.max(1, alpha);
+        this.nearest = new CandidateSet(target.id(), ksize);
+        addCandidates(initialNodes);
     }
 
+    /**
+     * Starts the crawl; the future completes once it has ended. May be called once per instance.
+     */
     protected CompletableFuture<Void> crawl(Function<Node, CompletableFuture<?>> rpcMethod) {
-        log.debug("Crawling with {} nearest nodes", nearest.toList().size());
-        int count = alpha;
-        if (nearest.getIds().equals(lastIdsCrawled)) {
-            count = nearest.getNotContacted().size();
-        }
-        lastIdsCrawled = nearest.getIds();
-        List<Node> toContact = nearest.getNotContacted().stream().limit(count).toList();
-        if (toContact.isEmpty()) {
-            return CompletableFuture.completedFuture(null);
-        }
-        List<CompletableFuture<?>> futures = toContact.stream()
-                .peek(nearest::markContacted)
-                .map(rpcMethod)
-                .toList();
-        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
-                .thenCompose(v -> processResponses(futures));
+        lock.lock();
+        try {
+            if (this.rpcMethod != null) {
+                throw new IllegalStateException("crawl already started");
+            }
+            this.rpcMethod = rpcMethod;
+        } finally {
+            lock.unlock();
+        }
+        pump();
+        return done;
+    }
+
+    /**
+     * Adds nodes from a response to the shortlist. This node is skipped: peers return it in
+     * their neighbor lists, but querying ourselves never brings the lookup closer.
+     */
+    protected final void addCandidates(List<Node> nodes) {
+        if (nodes == null || nodes.isEmpty()) {
+            return;
+        }
+        NodeId self = protocol.getSelfNode().id();
+        if (nodes instanceof NodeList view) {
+            for (int i = 0; i < view.size(); i++) {
+                if (!view.hasId(i, self)) {
+                    nearest.push(view, i);
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            if (!node.id().equals(self)) {
+                nearest.push(node);
+            }
+        }
     }
 
-    protected abstract CompletableFuture<Void> processResponses(List<CompletableFuture<?>> responses);
+    /**
+     * Handles one successful response, called under the crawl lock.
+     *
+     * @return true to end the crawl now (e.g. the value was found)
+     */
+    protected abstract boolean processResponse(Node from, Object response);
+
+    /** Fills the window up to alpha queries in flight, or ends the crawl if nothing is left. */
+    private void pump() {
+        List<Node> toContact;
+        boolean finish;
+        lock.lock();
+        try {
+            if (finished) {
+                return;
+            }
+            int free = Math.min(alpha - inFlight, maxQueries - queries);
+            toContact = free > 0 ? nextCandidates(free) : List.of();
+            inFlight += toContact.size();
+            queries += toContact.size();
+            finish = inFlight == 0;
+            finished = finish;
+        } finally {
+            lock.unlock();
+        }
+        if (finish) {
+            log.debug("Crawl finished after {} queries", queries);
+            done.complete(null);
+            return;
+        }
+        for (Node node : toContact) {
+            CompletableFuture<?> future;
+            try {
+                future = rpcMethod.apply(node);
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            future.whenComplete((resp, ex) -> onComplete(node, ex == null ? resp : null));
+        }
+    }
+
+    private List<Node> nextCandidates(int count) {
+        HealthTracker health = protocol.getRoutingTable().getHealth();
+        List<Node> candidates = health.byProximity(target.id(), nearest.getNotContacted());
+        List<Node> picked = health.preferHealthy(candidates, count);
+        for (Node node : picked) {
+            nearest.markContacted(node);
+        }
+        return picked;
+    }
+
+    private void onComplete(Node node, Object response) {
+        boolean finish;
+        lock.lock();
+        try {
+            inFlight--;
+            if (finished) {
+                return;
+            }
+            if (response == null) {
+                log.debug("Node {} failed during crawl", node);
+                nearest.markFailed(node);
+                finish = false;
+            } else {
+                nearest.markResponded(node);
+                finish = processResponse(node, response);
+            }
+            finish = finish || nearest.haveAllResponded();
+            finished = finish;
+        } finally {
+            lock.unlock();
+        }
+        if (finish) {
+            log.debug("Crawl finished after {} queries", queries);
+            done.complete(null);
+        } else {
+            pump();
+        }
+    }
 }
@@ -0,0 +1,189 @@
+package com.kademlia.dht.network;
+
+import com.kademlia.dht.protocol.MessageType;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded scheduling for inbound requests: one lane per request type, each with its own
+ * concurrency limit and queue, all sharing a global concurrency limit.
+ * <p>
+ * A request runs at once if its lane and the global limit have room, waits in its lane's queue
+ * otherwise, and is refused when that queue is full; the transport answers a refused request
+ * with BUSY. When a handler finishes, the freed slot goes to the first waiting lane in
+ * {@link #PRIORITY} order, so cheap PING and FIND_NODE requests (then FETCH_CHUNK, which feeds
+ * transfers already under way) are served ahead of FIND_VALUE and STORE under load. A batch
+ * request does the work of many single ones, so its lane is narrower and ranks after the
+ * single-key lane of its kind. Memory held by waiting requests is bounded by the queue capacities.
+ */
+public final class AdmissionControl {
+    /** Lanes in the order freed slots are offered to them: cheapest first. */
+    static final MessageType[] PRIORITY = {
+            MessageType.PING, MessageType.FIND_NODE, MessageType.FETCH_CHUNK, MessageType.FIND_VALUE,
+            MessageType.FIND_NODE_BATCH, MessageType.FIND_VALUE_BATCH, MessageType.STORE, MessageType.STORE_BATCH
+    };
+
+    private final Executor executor;
+    private final int maxConcurrent;
+    private final Map<MessageType, Lane> lanes = new EnumMap<>(MessageType.class);
+    private final Lane[] byPriority;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LongAdder shed = new LongAdder();
+    private int running;
+
+    AdmissionControl(Executor executor, Limits limits) {
+        this.executor = executor;
+        this.maxConcurrent = limits.maxConcurrent();
+        this.byPriority = new Lane[PRIORITY.length];
+        for (int i = 0; i < PRIORITY.length; i++) {
+            byPriority[i] = new Lane(limits.limitFor(PRIORITY[i]));
+            lanes.put(PRIORITY[i], byPriority[i]);
+        }
+    }
+
+    /**
+     * Runs {@code task} now or once a slot frees up.
+     *
+     * @return false if the request was shed because its lane's queue is full
+     */
+    boolean submit(MessageType type, Runnable task) {
+        Lane lane = lanes.get(type);
+        if (lane == null) {
+            throw new IllegalArgumentException("Not a request type: " + type);
+        }
+        lock.lock();
+        try {
+            if (lane.queue.isEmpty() && lane.hasRoom() && running < maxConcurrent) {
+                lane.running++;
+                running++;
+            } else if (lane.queue.size() < lane.limit.queueCapacity()) {
+                lane.queue.add(task);
+                return true;
+            } else {
+                shed.increment();
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        start(lane, task);
+        return true;
+    }
+
+    private void start(Lane lane, Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    finished(lane);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Transport is closing; give the slot back so the counts stay consistent
+            finished(lane);
+        }
+    }
+
+    private void finished(Lane lane) {
+        Lane next = null;
+        Runnable task = null;
+        lock.lock();
+        try {
+            lane.running--;
+            running--;
+            for (Lane candidate : byPriority) {
+                if (!candidate.queue.isEmpty() && candidate.hasRoom()) {
+                    next = candidate;
+                    task = candidate.queue.poll();
+                    next.running++;
+                    running++;
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (next != null) {
+            start(next, task);
+        }
+    }
+
+    /** Requests refused since creation. */
+    long shedCount() {
+        return shed.sum();
+    }
+
+    /** Requests waiting in {@code type}'s queue. */
+    int queued(MessageType type) {
+        lock.lock();
+        try {
+            return lanes.get(type).queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Lane {
+        final Limit limit;
+        final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        int running;
+
+        Lane(Limit limit) {
+            this.limit = limit;
+        }
+
+        boolean hasRoom() {
+            return running < limit.concurrency();
+        }
+    }
+
+    /**
+     * Concurrency limit and queue capacity for one request type.
+     */
+    public record Limit(int concurrency, int queueCapacity) {
+        public Limit {
+            if (concurrency < 1 || queueCapacity < 0) {
+                throw new IllegalArgumentException("concurrency must be >= 1 and queueCapacity >= 0");
+            }
+        }
+    }
+
+    /**
+     * Inbound limits for a transport: a global handler concurrency limit plus one {@link Limit}
+     * per request type. Types missing from {@code perType} use the default for that type.
+     */
+    public record Limits(int maxConcurrent, Map<MessageType, Limit> perType) {
+        public static final int DEFAULT_MAX_CONCURRENT = 256;
+        private static final Map<MessageType, Limit> DEFAULTS = Map.of(
+                MessageType.PING, new Limit(64, 1024),
+                MessageType.FIND_NODE, new Limit(128, 1024),
+                MessageType.FETCH_CHUNK, new Limit(128, 1024),
+                MessageType.FIND_VALUE, new Limit(64, 256),
+                MessageType.STORE, new Limit(32, 64),
+                MessageType.FIND_NODE_BATCH, new Limit(16, 64),
+                MessageType.FIND_VALUE_BATCH, new Limit(16, 64),
+                MessageType.STORE_BATCH, new Limit(8, 32));
+
+        public Limits {
+            if (maxConcurrent < 1) {
+                throw new IllegalArgumentException("maxConcurrent must be at least 1");
+            }
+            perType = Map.copyOf(perType);
+        }
+
+        public static Limits defaults() {
+            return new Limits(DEFAULT_MAX_CONCURRENT, DEFAULTS);
+        }
+
+        Limit limitFor(MessageType type) {
+            return perType.getOrDefault(type, DEFAULTS.get(type));
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.kademlia.dht.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of direct buffers of one fixed size. {@link #acquire()} hands out a cleared buffer,
+ * allocating only when the pool is empty; {@link #release} returns it, or lets it go if the
+ * pool already holds {@code maxPooled} buffers.
+ */
+public final class BufferPool {
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        return buf != null ? buf : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf.capacity() == bufferSize && !buf.isReadOnly()) {
+            buf.clear();
+            free.offer(buf);
+        }
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    int pooled() {
+        return free.size();
+    }
+}
@@ -0,0 +1,71 @@
+package com.kademlia.dht.network;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Capability bits last advertised by each peer address, in a fixed direct-mapped table.
+ * <p>
+ * A slot holds an immutable record of the full address, port and bits, so updates are single
+ * writes, lookups never allocate, and a put allocates only when a peer's bits change. Peers
+ * that hash to the same slot evict each other; a lookup only trusts a slot holding its own
+ * address (all 16 bytes of an IPv6 one), so an evicted or unknown peer reads as 0 and is
+ * spoken to in the legacy format until it advertises again.
+ */
+final class PeerCapabilities {
+    static final int DEFAULT_CAPACITY = 1 << 14;
+
+    private final AtomicReferenceArray<Peer> slots;
+    private final int mask;
+
+    private record Peer(InetAddress ip, int port, int caps) {
+        boolean is(InetAddress ip, int port) {
+            return this.port == port && this.ip.equals(ip);
+        }
+    }
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    PeerCapabilities(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /** Capability bits last seen from {@code ip}:{@code port}, or 0 if unknown. */
+    int get(InetAddress ip, int port) {
+        Peer peer = slots.get(index(ip, port));
+        return peer != null && peer.is(ip, port) ? peer.caps() : 0;
+    }
+
+    void put(InetAddress ip, int port, int caps) {
+        int idx = index(ip, port);
+        if (caps == 0) {
+            clear(idx, ip, port);
+            return;
+        }
+        Peer peer = slots.get(idx);
+        if (peer == null || !peer.is(ip, port) || peer.caps() != (caps & 0xFF)) {
+            slots.set(idx, new Peer(ip, port, caps & 0xFF));
+        }
+    }
+
+    /** Drops what is known about the peer, e.g. after it stopped answering. */
+    void forget(InetAddress ip, int port) {
+        clear(index(ip, port), ip, port);
+    }
+
+    private void clear(int idx, InetAddress ip, int port) {
+        Peer peer = slots.get(idx);
+        if (peer != null && peer.is(ip, port)) {
+            slots.compareAndSet(idx, peer, null);
+        }
+    }
+
+    /** Hashes the whole address: {@link InetAddress#hashCode} covers all 16 bytes of IPv6. */
+    private int index(InetAddress ip, int port) {
+        long h = ((long) ip.hashCode() << 16 | (port & 0xFFFF)) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & mask;
+    }
+}
@@ -0,0 +1,61 @@
+package com.kademlia.dht.network;
+
+import com.kademlia.dht.protocol.RpcRequest;
+import com.kademlia.dht.protocol.RpcResponse;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One outstanding RPC: its message ID, the peer it was sent to, the caller's future and the
+ * deadline on the transport's {@link TimerWheel}.
+ * <p>
+ * Calls that retransmit also keep the request and the remaining retries; those fields are only
+ * touched by the call's own chain of timeouts, one at a time.
+ */
+final class PendingCall {
+    final int messageId;
+    final InetAddress ip;
+    final int port;
+    final CompletableFuture<RpcResponse> future = new CompletableFuture<>();
+    volatile TimerWheel.Timeout timeout;
+    final RpcRequest request;
+    long rtoNanos;
+    int retriesLeft;
+    /** {@link System#nanoTime} after which the call fails, retries left or not. */
+    long deadlineNanos;
+
+    PendingCall(int messageId, InetAddress ip, int port) {
+        this(messageId, ip, port, null, 0, 0);
+    }
+
+    PendingCall(int messageId, InetAddress ip, int port, RpcRequest request, long rtoNanos, int retries) {
+        this.messageId = messageId;
+        this.ip = ip;
+        this.port = port;
+        this.request = request;
+        this.rtoNanos = rtoNanos;
+        this.retriesLeft = retries;
+    }
+
+    boolean sentTo(InetAddress fromIp, int fromPort) {
+        return port == fromPort && ip.equals(fromIp);
+    }
+
+    void complete(RpcResponse response) {
+        cancelTimeout();
+        future.complete(response);
+    }
+
+    void fail(Throwable cause) {
+        cancelTimeout();
+        future.completeExceptionally(cause);
+    }
+
+    private void cancelTimeout() {
+        TimerWheel.Timeout t = timeout;
+        if (t != null) {
+            t.cancel();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.kademlia.dht.network;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Outstanding RPCs keyed by their int message ID: an open-addressing table of CAS-updated slots.
+ * <p>
+ * Message IDs come from a counter, so consecutive calls land in consecutive slots and probing
+ * only happens once more calls are outstanding than the table has slots. Lookups and removals
+ * probe at most {@code MAX_PROBES} slots and never allocate. A response is only matched if it
+ * came from the address the request was sent to, so a peer cannot complete another peer's call
+ * by guessing its ID.
+ */
+final class PendingTable {
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int MAX_PROBES = 16;
+
+    private final AtomicReferenceArray<PendingCall> slots;
+    private final int mask;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    PendingTable(int capacity) {
+        int size = Integer.highestOneBit(Math.max(MAX_PROBES, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * @return false if every slot the call may use is taken
+     */
+    boolean put(PendingCall call) {
+        int base = call.messageId & mask;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            if (slots.compareAndSet((base + i) & mask, null, call)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes and returns the call with this ID if it was sent to {@code ip}:{@code port};
+     * a response from any other address leaves the call pending and returns null.
+     */
+    PendingCall remove(int messageId, InetAddress ip, int port) {
+        int base = messageId & mask;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int idx = (base + i) & mask;
+            PendingCall call = slots.get(idx);
+            if (call != null && call.messageId == messageId) {
+                if (!call.sentTo(ip, port)) {
+                    return null;
+                }
+                return slots.compareAndSet(idx, call, null) ? call : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes exactly {@code call}, e.g. when it times out.
+     *
+     * @return false if it was already removed
+     */
+    boolean remove(PendingCall call) {
+        int base = call.messageId & mask;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int idx = (base + i) & mask;
+            if (slots.get(idx) == call) {
+                return slots.compareAndSet(idx, call, null);
+            }
+        }
+        return false;
+    }
+
+    /** Removes every call and hands each one that was still pending to {@code action}. */
+    void drain(Consumer<PendingCall> action) {
+        for (int i = 0; i < slots.length(); i++) {
+            PendingCall call = slots.getAndSet(i, null);
+            if (call != null) {
+                action.accept(call);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.kademlia.dht.network;
+
+import com.kademlia.dht.crawling.NodeSpiderCrawl;
+import com.kademlia.dht.node.Node;
+import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.protocol.KademliaProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bucket refresh: every tick, looks up a random ID in each bucket that has not been updated
+ * within the refresh interval. At most {@code maxLookupsPerTick} lookups start per tick and
+ * they are spaced evenly across it, so an idle table is refreshed gradually rather than in a burst.
+ */
+public class RefreshScheduler {
+    private static final Logger log = LoggerFactory.getLogger(RefreshScheduler.class);
+
+    private final KademliaProtocol protocol;
+    private final ScheduledExecutorService scheduler;
+    private final int ksize;
+    private final int alpha;
+    private final Duration staleAfter;
+    private final Duration tick;
+    private final int maxLookupsPerTick;
+
+    public RefreshScheduler(KademliaProtocol protocol, ScheduledExecutorService scheduler, int ksize, int alpha,
+                            Duration staleAfter, Duration tick, int maxLookupsPerTick) {
+        this.protocol = protocol;
+        this.scheduler = scheduler;
+        this.ksize = ksize;
+        this.alpha = alpha;
+        this.staleAfter = staleAfter;
+        this.tick = tick;
+        this.maxLookupsPerTick = Math.max(1, maxLookupsPerTick);
+    }
+
+    public void start() {
+        long tickMillis = tick.toMillis();
+        scheduler.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void tick() {
+        try {
+            List<NodeId> ids = protocol.getRefreshIds(staleAfter, maxLookupsPerTick);
+            if (ids.isEmpty()) {
+                return;
+            }
+            log.debug("Refreshing {} stale buckets", ids.size());
+            long spacingMillis = tick.toMillis() / ids.size();
+            for (int i = 0; i < ids.size(); i++) {
+                NodeId id = ids.get(i);
+                scheduler.schedule(() -> lookup(id), i * spacingMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception e) {
+            log.warn("Bucket refresh failed", e);
+        }
+    }
+
+    private void lookup(NodeId id) {
+        Node target = new Node(id, null, 0);
+        List<Node> nearest = protocol.getRoutingTable().findNeighbors(target, alpha);
+        if (nearest.isEmpty()) {
+            return;
+        }
+        new NodeSpiderCrawl(protocol, target, nearest, ksize, alpha).find()
+                .exceptionally(e -> {
+                    log.debug("Refresh lookup failed", e);
+                    return List.of();
+                });
+    }
+}
@@ -5,6 +5,7 @@ import com.kademlia.dht.crawling.ValueSpiderCrawl;
 import com.kademlia.dht.node.Node;
 import com.kademlia.dht.node.NodeId;
 import com.kademlia.dht.protocol.KademliaProtocol;
+import com.kademlia.dht.protocol.StoreBatchRequest;
 import com.kademlia.dht.protocol.StoreResponse;
 import com.kademlia.dht.storage.ForgetfulStorage;
 import com.kademlia.dht.storage.IStorage;
@@ -16,26 +17,40 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 /**
  * High-level Kademlia server: bootstrap, get, set, routing table refresh.
  */
 public class Server implements AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(Server.class);
-    private static final long STORAGE_TTL = 604800;
+    /** Seconds a stored value lives unless republished. */
+    public static final long STORAGE_TTL = 604800;
+    /** Default budget for stored values, whatever sizes peers send. */
+    private static final long STORAGE_BYTES = 256L << 20;
     private static final int DEFAULT_KSIZE = 20;
     private static final int DEFAULT_ALPHA = 3;
+    /** Seconds between republishing stored values, whatever the bucket refresh interval. */
+    private static final long REPUBLISH_SECONDS = 3600;
+    private static final Duration DEFAULT_REFRESH_INTERVAL = Duration.ofHours(1);
+    private static final Duration MAX_REFRESH_TICK = Duration.ofMinutes(1);
+    private static final int REFRESH_LOOKUPS_PER_TICK = 3;
 
     private final int ksize;
     private final int alpha;
+    private final Duration refreshInterval;
     private Node selfNode;
     private IStorage storage;
     private DynamicQuorum quorum;
@@ -44,16 +59,32 @@ public class Server implements AutoCloseable {
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
     public Server(int ksize, int alpha, NodeId nodeId, IStorage storage) {
+        this(ksize, alpha, nodeId, storage, DEFAULT_REFRESH_INTERVAL);
+    }
+
+    /**
+     * @param refreshInterval buckets not updated for this long get a refresh lookup; stored
+     *                        values are still republished hourly
+     */
+    public Server(int ksize, int alpha, NodeId nodeId, IStorage storage, Duration refreshInterval) {
         this.ksize = ksize > 0 ? ksize : DEFAULT_KSIZE;
         this.alpha = alpha > 0 ? alpha : DEFAULT_ALPHA;
+        this.refreshInterval = refreshInterval != null ? refreshInterval : DEFAULT_REFRESH_INTERVAL;
         NodeId id = nodeId != null ? nodeId : new NodeId(Digest.hash(String.valueOf(System.nanoTime())));
         this.selfNode = new Node(id, null, 0);
-        this.storage = storage != null ? storage : new ForgetfulStorage(STORAGE_TTL);
+        this.storage = storage != null ? storage : new ForgetfulStorage(STORAGE_TTL, STORAGE_BYTES);
         this.quorum = new DynamicQuorum(1, 1, 3);
     }
 
     public void listen(int port, String iface) throws IOException {
-        listenWithTransport(new UdpTransport(port), port, iface);
+        listen(port, iface, 1);
+    }
+
+    /**
+     * @param receivers number of UDP receive channels sharing {@code port} (see {@link UdpTransport})
+     */
+    public void listen(int port, String iface, int receivers) throws IOException {
+        listenWithTransport(new UdpTransport(port, null, receivers), port, iface);
     }
 
     /**
@@ -65,7 +96,10 @@ public class Server implements AutoCloseable {
         this.transport = transport;
         this.protocol = new KademliaProtocol(selfNode, storage, ksize, transport);
         transport.setRequestHandler(protocol::handleRequest);
-        scheduler.scheduleAtFixedRate(this::refreshTable, 3600, 3600, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(this::refreshTable, REPUBLISH_SECONDS, REPUBLISH_SECONDS, TimeUnit.SECONDS);
+        Duration tick = refreshInterval.compareTo(MAX_REFRESH_TICK) < 0 ? refreshInterval : MAX_REFRESH_TICK;
+        new RefreshScheduler(protocol, scheduler, ksize, alpha, refreshInterval, tick, REFRESH_LOOKUPS_PER_TICK)
+                .start();
         log.info("Node {} listening on {}:{}", selfNode.id(), iface, port);
     }
 
@@ -172,11 +206,9 @@ public class Server implements AutoCloseable {
         return spider.find()
                 .thenCompose(nodes -> {
                     log.info("Setting on {} nodes", nodes.size());
-                    int maxDist = nodes.stream()
-                            .mapToInt(n -> n.distanceTo(target))
-                            .max()
-                            .orElse(Integer.MAX_VALUE);
-                    if (selfNode.distanceTo(target) <= maxDist) {
+                    boolean selfInRange = nodes.isEmpty() || nodes.stream()
+                            .anyMatch(n -> target.id().compareDistance(selfNode.id(), n.id()) <= 0);
+                    if (selfInRange) {
                         storage.put(dkey, value);
                     }
                     List<CompletableFuture<StoreResponse>> storeFutures = nodes.stream()
@@ -189,28 +221,55 @@ public class Server implements AutoCloseable {
                 });
     }
 
+    /**
+     * Republishes stored values. Stale buckets are refreshed separately by {@link RefreshScheduler}.
+     */
     private void refreshTable() {
-        log.debug("Refreshing routing table");
+        log.debug("Republishing stored values");
         try {
-            List<NodeId> refreshIds = protocol.getRefreshIds();
-            List<CompletableFuture<?>> futures = refreshIds.stream()
-                    .map(id -> {
-                        Node target = new Node(id, null, 0);
-                        List<Node> nearest = protocol.getRoutingTable().findNeighbors(target, alpha);
-                        NodeSpiderCrawl spider = new NodeSpiderCrawl(protocol, target, nearest, ksize, alpha);
-                        return spider.find();
-                    })
-                    .collect(Collectors.toList());
-            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
-            for (var it = storage.iterator(); it.hasNext(); ) {
-                var entry = it.next();
-                setDigest(entry.getKey(), entry.getValue());
-            }
+            List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+            storage.iterator().forEachRemaining(entries::add);
+            republish(entries);
         } catch (Exception e) {
             log.warn("Refresh failed", e);
         }
     }
 
+    /**
+     * Looks up the closest nodes for every value, then sends each node all of its values at
+     * once through {@link KademliaProtocol#callStoreBatch} instead of one STORE per key.
+     */
+    CompletableFuture<Void> republish(List<Map.Entry<byte[], byte[]>> entries) {
+        Map<Node, Queue<StoreBatchRequest.Entry>> byNode = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> lookups = new ArrayList<>();
+        for (Map.Entry<byte[], byte[]> entry : entries) {
+            byte[] dkey = entry.getKey();
+            Node target = new Node(new NodeId(dkey), null, 0);
+            List<Node> nearest = protocol.getRoutingTable().findNeighbors(target, ksize);
+            if (nearest.isEmpty()) {
+                continue;
+            }
+            StoreBatchRequest.Entry item = new StoreBatchRequest.Entry(dkey, entry.getValue());
+            lookups.add(new NodeSpiderCrawl(protocol, target, nearest, ksize, alpha).find()
+                    .thenAccept(nodes -> {
+                        if (nodes.isEmpty() || nodes.stream()
+                                .anyMatch(n -> target.id().compareDistance(selfNode.id(), n.id()) <= 0)) {
+                            storage.put(dkey, entry.getValue());
+                        }
+                        for (Node n : nodes) {
+                            byNode.computeIfAbsent(n, k -> new ConcurrentLinkedQueue<>()).add(item);
+                        }
+                    }));
+        }
+        return CompletableFuture.allOf(lookups.toArray(CompletableFuture[]::new))
+                .thenCompose(v -> {
+                    log.debug("Republishing {} values to {} nodes", entries.size(), byNode.size());
+                    return CompletableFuture.allOf(byNode.entrySet().stream()
+                            .map(e -> protocol.callStoreBatch(e.getKey(), List.copyOf(e.getValue())))
+                            .toArray(CompletableFuture[]::new));
+                });
+    }
+
     @Override
     public void close() {
         scheduler.shutdown();
@@ -222,5 +281,12 @@ public class Server implements AutoCloseable {
         if (transport != null) {
             transport.close();
         }
+        if (storage instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                log.warn("Failed to close storage: {}", e.toString());
+            }
+        }
     }
 }
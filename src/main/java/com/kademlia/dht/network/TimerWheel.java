@@ -0,0 +1,232 @@
+package com.kademlia.dht.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel for RPC deadlines: one worker thread, a ring of buckets each holding an
+ * intrusive list of timeouts, and no per-timeout thread or scheduled task.
+ * <p>
+ * {@link #schedule} and {@link Timeout#cancel} only enqueue; the worker moves new timeouts into
+ * their bucket and unlinks cancelled ones once per tick, then fires the current bucket's due
+ * timeouts. A timeout is one small object (plus its task), so a million outstanding RPCs take
+ * about 50 MB of heap rather than a million parked threads.
+ * Deadlines are rounded up to the tick, and tasks run on the worker thread, so they must be
+ * short (e.g. hand the work to an executor).
+ */
+public final class TimerWheel implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(TimerWheel.class);
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    public static final Duration DEFAULT_TICK = Duration.ofMillis(10);
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final long tickNanos;
+    private final int mask;
+    private final Bucket[] wheel;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final long startNanos;
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    public TimerWheel() {
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(Duration tick, int wheelSize) {
+        this.tickNanos = Math.max(1, tick.toNanos());
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.mask = size - 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.startNanos = System.nanoTime();
+        this.worker = Thread.ofPlatform().daemon().name("timer-wheel").start(this::run);
+    }
+
+    /**
+     * Runs {@code task} on the worker thread once {@code delay} has passed, unless cancelled first.
+     */
+    public Timeout schedule(Runnable task, Duration delay) {
+        if (!running) {
+            throw new IllegalStateException("timer closed");
+        }
+        long deadline = System.nanoTime() - startNanos + Math.max(0, delay.toNanos());
+        Timeout timeout = new Timeout(this, task, deadline);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /** Timeouts scheduled and not yet cancelled or done running their task. */
+    public long pendingCount() {
+        return pending.get();
+    }
+
+    private void run() {
+        long tick = 0;
+        while (running) {
+            long tickDeadline = (tick + 1) * tickNanos;
+            long sleep;
+            while ((sleep = tickDeadline - (System.nanoTime() - startNanos)) > 0 && running) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            if (!running) {
+                break;
+            }
+            transferAdded(tick);
+            unlinkCancelled();
+            expire(wheel[(int) (tick & mask)], tickDeadline);
+            tick++;
+        }
+    }
+
+    private void transferAdded(long currentTick) {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout t = added.poll();
+            if (t == null) {
+                return;
+            }
+            if (t.state != Timeout.ACTIVE) {
+                continue;
+            }
+            long due = (t.deadlineNanos + tickNanos - 1) / tickNanos - 1;
+            t.remainingRounds = Math.max(0, (due - currentTick) / wheel.length);
+            wheel[(int) (Math.max(due, currentTick) & mask)].add(t);
+        }
+    }
+
+    private void unlinkCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    private void expire(Bucket bucket, long tickDeadline) {
+        Timeout t = bucket.head;
+        while (t != null) {
+            Timeout next = t.next;
+            if (t.state != Timeout.ACTIVE) {
+                bucket.remove(t);
+            } else if (t.remainingRounds <= 0 && t.deadlineNanos <= tickDeadline) {
+                bucket.remove(t);
+                t.fire();
+            } else {
+                t.remainingRounds--;
+            }
+            t = next;
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        void remove(Timeout t) {
+            if (t.prev != null) {
+                t.prev.next = t.next;
+            } else {
+                head = t.next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            } else {
+                tail = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+        }
+    }
+
+    /**
+     * Handle for one scheduled task.
+     */
+    public static final class Timeout {
+        private static final int ACTIVE = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimerWheel timer;
+        private final Runnable task;
+        private final long deadlineNanos;
+        private volatile int state;
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimerWheel timer, Runnable task, long deadlineNanos) {
+            this.timer = timer;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * @return true if this call cancelled the task, false if it already fired or was cancelled
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, ACTIVE, CANCELLED)) {
+                return false;
+            }
+            timer.pending.decrementAndGet();
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void fire() {
+            if (!STATE.compareAndSet(this, ACTIVE, EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Throwable e) {
+                log.warn("Timer task failed", e);
+            } finally {
+                timer.pending.decrementAndGet();
+            }
+        }
+    }
+}
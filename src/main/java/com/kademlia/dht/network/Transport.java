@@ -12,13 +12,39 @@ import java.util.concurrent.CompletableFuture;
  * in-process implementation in tests so experiments can run without real network.
  */
 public interface Transport extends AutoCloseable {
+    /** Longest wait for any one copy of a retransmitted request (as ContactHealth's RTO cap). */
+    Duration MAX_RTO = Duration.ofSeconds(3);
+    /** Longest a call with retransmissions waits in all, unless its first wait is longer. */
+    Duration MAX_CALL_TIME = Duration.ofSeconds(5);
 
     void setRequestHandler(RequestHandler handler);
 
     CompletableFuture<RpcResponse> send(RpcRequest request, InetAddress ip, int port, Duration timeout);
 
+    /**
+     * Sends {@code request} and, if no response arrives within {@code rto}, retransmits it with
+     * the same message ID up to {@code retries} times, doubling the wait each time up to
+     * {@link #MAX_RTO}. Fails once the last wait runs out, or once {@link #MAX_CALL_TIME} (or
+     * {@code rto}, if longer) has passed, whichever comes first, so a dead peer costs no more
+     * than a single fixed timeout would.
+     * <p>
+     * The default does not retransmit; it waits as long as the whole schedule would have.
+     */
+    default CompletableFuture<RpcResponse> send(RpcRequest request, InetAddress ip, int port, Duration rto,
+                                                int retries) {
+        Duration total = rto;
+        Duration wait = rto;
+        for (int i = 0; i < retries; i++) {
+            wait = wait.multipliedBy(2);
+            total = total.plus(wait.compareTo(MAX_RTO) < 0 ? wait : MAX_RTO);
+        }
+        Duration cap = rto.compareTo(MAX_CALL_TIME) > 0 ? rto : MAX_CALL_TIME;
+        return send(request, ip, port, total.compareTo(cap) < 0 ? total : cap);
+    }
+
     void sendResponse(RpcResponse response, InetAddress ip, int port);
 
+    /** Stops the transport; calls still waiting for a response fail rather than hang. */
     @Override
     void close();
 
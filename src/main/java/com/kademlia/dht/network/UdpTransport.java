@@ -1,38 +1,73 @@
 package com.kademlia.dht.network;
 
+import com.kademlia.dht.protocol.BusyResponse;
 import com.kademlia.dht.protocol.MessageCodec;
 import com.kademlia.dht.protocol.RpcMessage;
 import com.kademlia.dht.protocol.RpcRequest;
 import com.kademlia.dht.protocol.RpcResponse;
-import com.kademlia.dht.storage.ByteArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.time.Duration;
-import java.util.Arrays;
-import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * UDP transport: send RPC requests, receive responses; dispatch incoming requests to handler.
+ * <p>
+ * Runs on a {@link DatagramChannel}. The receive loop reads into one pooled direct buffer and
+ * decodes straight from it; outgoing messages are encoded into buffers taken from the same
+ * pool and returned once sent, so the steady-state path allocates no packet buffers.
+ * <p>
+ * RPC deadlines live on a {@link TimerWheel}; the timeout is cancelled when the response arrives.
+ * A call sent with retries is retransmitted with the same message ID each time its timeout
+ * fires, waiting twice as long after each attempt (up to {@link Transport#MAX_RTO}), so whichever
+ * copy is answered first completes it; the whole call never outlasts
+ * {@link Transport#MAX_CALL_TIME} or its first wait, whichever is longer.
+ * Responses are matched to calls through a {@link PendingTable} on the int message ID and the
+ * sender's address.
+ * <p>
+ * With more than one receiver the transport opens that many channels on the same port with
+ * {@code SO_REUSEPORT}; the kernel spreads inbound datagrams across them by source address, so
+ * each receive loop decodes its share on its own core. A request is answered on the channel it
+ * arrived on, and outgoing requests are spread over the channels by destination. Where the
+ * platform lacks {@code SO_REUSEPORT} the transport falls back to a single channel.
+ * <p>
+ * Incoming requests go through {@link AdmissionControl}: bounded per-type queues and
+ * concurrency limits, with a BUSY response for requests that do not fit.
+ * <p>
+ * Every datagram advertises the sender's codec capabilities; the transport remembers them per
+ * address in {@link PeerCapabilities} and encodes in the compact format for peers that speak it.
  */
 public class UdpTransport implements Transport {
     private static final Logger log = LoggerFactory.getLogger(UdpTransport.class);
-    private static final int MAX_PACKET_SIZE = 65507;
+    static final int MAX_PACKET_SIZE = 65507;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    /** Requested socket receive buffer; chunked transfers arrive in bursts. The OS may cap it. */
+    private static final int RECEIVE_BUFFER_SIZE = 4 << 20;
 
-    private final DatagramSocket socket;
+    private final DatagramChannel[] channels;
+    /** Channel the request being handled on this thread arrived on; responses go out on it. */
+    private final ThreadLocal<DatagramChannel> replyChannel = new ThreadLocal<>();
     private final MessageCodec codec = new MessageCodec();
-    private final Map<ByteArray, CompletableFuture<RpcResponse>> pending = new ConcurrentHashMap<>();
+    private final BufferPool buffers = new BufferPool(MAX_PACKET_SIZE, MAX_POOLED_BUFFERS);
+    private final PendingTable pending = new PendingTable(PendingTable.DEFAULT_CAPACITY);
+    private final PeerCapabilities peers = new PeerCapabilities(PeerCapabilities.DEFAULT_CAPACITY);
     private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AdmissionControl admission;
+    private final LongAdder retransmits = new LongAdder();
+    private final TimerWheel timer;
+    private final boolean ownsTimer;
     private volatile boolean running = true;
 
     private volatile RequestHandler requestHandler;
@@ -42,90 +77,279 @@ public class UdpTransport implements Transport {
         this.requestHandler = handler;
     }
 
-    public UdpTransport(int port) throws SocketException {
-        this.socket = new DatagramSocket(port);
-        startReceiver();
+    public UdpTransport(int port) throws IOException {
+        this(port, null);
     }
 
-    private void startReceiver() {
+    /**
+     * @param timer timer for RPC deadlines, shared with other transports; null to create one
+     *              that is closed with this transport
+     */
+    public UdpTransport(int port, TimerWheel timer) throws IOException {
+        this(port, timer, 1);
+    }
+
+    /**
+     * @param timer     timer for RPC deadlines, shared with other transports; null to create one
+     *                  that is closed with this transport
+     * @param receivers number of channels (and receive loops) bound to {@code port}
+     */
+    public UdpTransport(int port, TimerWheel timer, int receivers) throws IOException {
+        this(port, timer, receivers, AdmissionControl.Limits.defaults());
+    }
+
+    /**
+     * @param timer     timer for RPC deadlines, shared with other transports; null to create one
+     *                  that is closed with this transport
+     * @param receivers number of channels (and receive loops) bound to {@code port}
+     * @param limits    inbound concurrency and queue limits
+     */
+    public UdpTransport(int port, TimerWheel timer, int receivers, AdmissionControl.Limits limits)
+            throws IOException {
+        if (receivers < 1) {
+            throw new IllegalArgumentException("receivers must be at least 1");
+        }
+        this.admission = new AdmissionControl(executor, limits);
+        this.channels = openChannels(port, receivers);
+        this.ownsTimer = timer == null;
+        this.timer = timer != null ? timer : new TimerWheel();
+        for (DatagramChannel channel : channels) {
+            startReceiver(channel);
+        }
+    }
+
+    private static DatagramChannel[] openChannels(int port, int receivers) throws IOException {
+        DatagramChannel first = DatagramChannel.open();
+        boolean reusePort = first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (receivers > 1 && !reusePort) {
+            log.warn("SO_REUSEPORT not supported; using one receive channel instead of {}", receivers);
+            receivers = 1;
+        }
+        DatagramChannel[] channels = new DatagramChannel[receivers];
+        channels[0] = first;
+        try {
+            first.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            if (receivers > 1) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            first.bind(new InetSocketAddress(port));
+            // With port 0 the others must join whatever port the first one was given
+            int boundPort = ((InetSocketAddress) first.getLocalAddress()).getPort();
+            for (int i = 1; i < receivers; i++) {
+                channels[i] = DatagramChannel.open();
+                channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channels[i].setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+                channels[i].bind(new InetSocketAddress(boundPort));
+            }
+        } catch (IOException e) {
+            closeAll(channels);
+            throw e;
+        }
+        return channels;
+    }
+
+    /** Port the channels are bound to (useful when constructed with port 0). */
+    public int localPort() {
+        try {
+            return ((InetSocketAddress) channels[0].getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /** Number of receive channels actually in use. */
+    public int receivers() {
+        return channels.length;
+    }
+
+    private void startReceiver(DatagramChannel channel) {
         Thread.ofVirtual().start(() -> {
-            byte[] buffer = new byte[MAX_PACKET_SIZE];
-            while (running) {
-                try {
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(packet);
-                    byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
-                    handleIncoming(data, packet.getAddress(), packet.getPort());
-                } catch (IOException e) {
-                    if (running) {
-                        log.warn("Error receiving packet", e);
+            ByteBuffer buffer = buffers.acquire();
+            try {
+                while (running) {
+                    try {
+                        buffer.clear();
+                        InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+                        buffer.flip();
+                        handleIncoming(channel, buffer, from.getAddress(), from.getPort());
+                    } catch (ClosedChannelException e) {
+                        break;
+                    } catch (IOException e) {
+                        if (running) {
+                            log.warn("Error receiving packet", e);
+                        }
                     }
                 }
+            } finally {
+                buffers.release(buffer);
             }
         });
     }
 
-    private void handleIncoming(byte[] data, InetAddress fromIp, int fromPort) {
+    private void handleIncoming(DatagramChannel channel, ByteBuffer data, InetAddress fromIp, int fromPort) {
         try {
-            RpcMessage msg = codec.decode(data);
+            int start = data.position();
+            RpcMessage msg = codec.decode(data, fromIp, fromPort);
+            peers.put(fromIp, fromPort, MessageCodec.peerCapabilities(data, start));
             if (msg instanceof RpcResponse resp) {
-                CompletableFuture<RpcResponse> future = pending.remove(new ByteArray(resp.messageId()));
-                if (future != null) {
-                    future.complete(resp);
+                PendingCall call = pending.remove(MessageCodec.messageId(resp), fromIp, fromPort);
+                if (call != null) {
+                    call.complete(resp);
+                } else {
+                    log.debug("Dropping unmatched response from {}:{}", fromIp, fromPort);
                 }
             } else if (msg instanceof RpcRequest req) {
                 RequestHandler handler = requestHandler;
-                if (handler != null) {
-                    executor.submit(() -> handler.handleRequest(req, fromIp, fromPort));
+                if (handler == null) {
+                    return;
+                }
+                if (!admission.submit(req.type(), () -> handle(handler, channel, req, fromIp, fromPort))) {
+                    log.debug("Shedding {} from {}:{}", req.type(), fromIp, fromPort);
+                    write(channel, new BusyResponse(req.messageId()), fromIp, fromPort);
                 }
             }
         } catch (IOException e) {
-            log.warn("Failed to decode message", e);
+            log.warn("Failed to handle message from {}:{}", fromIp, fromPort, e);
         }
     }
 
+    private void handle(RequestHandler handler, DatagramChannel channel, RpcRequest req,
+                        InetAddress fromIp, int fromPort) {
+        replyChannel.set(channel);
+        try {
+            handler.handleRequest(req, fromIp, fromPort);
+        } finally {
+            replyChannel.remove();
+        }
+    }
+
+    /** Inbound requests refused with BUSY since the transport started. */
+    public long shedCount() {
+        return admission.shedCount();
+    }
+
+    /** Retransmissions since the transport started. */
+    public long retransmitCount() {
+        return retransmits.sum();
+    }
+
     @Override
     public CompletableFuture<RpcResponse> send(RpcRequest request, InetAddress ip, int port, Duration timeout) {
-        CompletableFuture<RpcResponse> future = new CompletableFuture<>();
-        ByteArray key = new ByteArray(request.messageId());
-        pending.put(key, future);
+        return send(request, ip, port, timeout, 0);
+    }
+
+    @Override
+    public CompletableFuture<RpcResponse> send(RpcRequest request, InetAddress ip, int port, Duration rto,
+                                               int retries) {
+        PendingCall call = new PendingCall(MessageCodec.messageId(request), ip, port, request, rto.toNanos(), retries);
+        call.deadlineNanos = System.nanoTime() + Math.max(rto.toNanos(), MAX_CALL_TIME.toNanos());
+        if (!running) {
+            call.future.completeExceptionally(new IOException("Transport closed"));
+            return call.future;
+        }
+        if (!pending.put(call)) {
+            call.future.completeExceptionally(new IOException("Too many pending RPCs"));
+            return call.future;
+        }
         try {
-            byte[] encoded = codec.encode(request);
-            DatagramPacket packet = new DatagramPacket(encoded, encoded.length, ip, port);
-            socket.send(packet);
-            executor.submit(() -> {
-                try {
-                    Thread.sleep(timeout.toMillis());
-                    CompletableFuture<RpcResponse> removed = pending.remove(key);
-                    if (removed != null) {
-                        removed.completeExceptionally(new TimeoutException("RPC timeout"));
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            });
+            write(channelFor(ip, port), request, ip, port);
+            call.timeout = timer.schedule(() -> expire(call), rto);
+        } catch (IOException e) {
+            pending.remove(call);
+            call.future.completeExceptionally(e);
+        }
+        return call.future;
+    }
+
+    /**
+     * Runs on the timer thread, so the retransmission or the failure (and the caller's
+     * callbacks) is handed to the executor.
+     */
+    private void expire(PendingCall call) {
+        if (call.future.isDone()) {
+            return;
+        }
+        if (call.retriesLeft > 0 && call.deadlineNanos - System.nanoTime() > 0) {
+            executor.execute(() -> retransmit(call));
+            return;
+        }
+        if (pending.remove(call)) {
+            // The peer may have restarted on an older version; go back to the legacy format
+            peers.forget(call.ip, call.port);
+            executor.execute(() -> call.future.completeExceptionally(new TimeoutException("RPC timeout")));
+        }
+    }
+
+    private void retransmit(PendingCall call) {
+        call.retriesLeft--;
+        call.rtoNanos = Math.min(call.rtoNanos * 2, MAX_RTO.toNanos());
+        retransmits.increment();
+        if (call.retriesLeft == 0) {
+            // Send the last copy in the legacy format in case the peer restarted on an older
+            // version; earlier copies keep the negotiated one, since losses alone say nothing
+            peers.forget(call.ip, call.port);
+        }
+        try {
+            write(channelFor(call.ip, call.port), call.request, call.ip, call.port);
         } catch (IOException e) {
-            future.completeExceptionally(e);
-            pending.remove(key);
+            log.debug("Retransmission to {}:{} failed", call.ip, call.port, e);
+        }
+        if (!call.future.isDone()) {
+            long wait = Math.min(call.rtoNanos, call.deadlineNanos - System.nanoTime());
+            call.timeout = timer.schedule(() -> expire(call), Duration.ofNanos(wait));
         }
-        return future;
     }
 
     @Override
     public void sendResponse(RpcResponse response, InetAddress ip, int port) {
+        DatagramChannel channel = replyChannel.get();
         try {
-            byte[] encoded = codec.encode(response);
-            DatagramPacket packet = new DatagramPacket(encoded, encoded.length, ip, port);
-            socket.send(packet);
+            write(channel != null ? channel : channelFor(ip, port), response, ip, port);
         } catch (IOException e) {
             log.warn("Failed to send response", e);
         }
     }
 
+    private DatagramChannel channelFor(InetAddress ip, int port) {
+        if (channels.length == 1) {
+            return channels[0];
+        }
+        return channels[Math.floorMod(ip.hashCode() * 31 + port, channels.length)];
+    }
+
+    private void write(DatagramChannel channel, RpcMessage msg, InetAddress ip, int port) throws IOException {
+        ByteBuffer buf = buffers.acquire();
+        try {
+            codec.encode(msg, buf, peers.get(ip, port));
+            buf.flip();
+            channel.send(buf, new InetSocketAddress(ip, port));
+        } finally {
+            buffers.release(buf);
+        }
+    }
+
+    /** Fails the calls still pending, so nobody waits on a transport that will never answer. */
     @Override
     public void close() {
         running = false;
-        socket.close();
+        closeAll(channels);
+        pending.drain(call -> call.fail(new IOException("Transport closed")));
         executor.shutdown();
+        if (ownsTimer) {
+            timer.close();
+        }
+    }
+
+    private static void closeAll(DatagramChannel[] channels) {
+        for (DatagramChannel channel : channels) {
+            if (channel == null) {
+                continue;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Error closing channel", e);
+            }
+        }
     }
 }
@@ -0,0 +1,211 @@
+package com.kademlia.dht.node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Lookup shortlist: the closest nodes seen so far, kept in an array sorted by full XOR distance
+ * to the target, with a hash index for membership and a per-entry state (fresh, contacted,
+ * responded or failed).
+ * <p>
+ * Capacity is {@code CAPACITY_FACTOR * k}; a node farther than every entry of a full set is
+ * dropped, otherwise the farthest entry is evicted. Failed entries stay in place so peers that
+ * keep returning them cannot bring them back, but they never count towards the K closest.
+ * Inserts cost a binary search plus one array shift; queries scan at most the first K live
+ * entries. Contacts pushed from a {@link NodeList} are ranked on their raw bytes and only
+ * materialized if they are inserted. Not thread-safe: a crawl guards its set with its own lock.
+ */
+public final class CandidateSet {
+    public static final int CAPACITY_FACTOR = 3;
+
+    private static final byte FRESH = 0;
+    private static final byte CONTACTED = 1;
+    private static final byte RESPONDED = 2;
+    private static final byte FAILED = 3;
+
+    private static final class Entry {
+        final Node node;
+        byte state;
+
+        Entry(Node node) {
+            this.node = node;
+        }
+    }
+
+    private final NodeId target;
+    private final int k;
+    private final Entry[] entries;
+    private final HashMap<NodeId, Entry> index;
+    private int size;
+
+    public CandidateSet(NodeId target, int k) {
+        this.target = target;
+        this.k = Math.max(1, k);
+        this.entries = new Entry[this.k * CAPACITY_FACTOR];
+        this.index = HashMap.newHashMap(entries.length);
+    }
+
+    public void push(List<Node> nodes) {
+        if (nodes instanceof NodeList view) {
+            for (int i = 0; i < view.size(); i++) {
+                push(view, i);
+            }
+            return;
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            push(nodes.get(i));
+        }
+    }
+
+    /**
+     * @return true if the node was added, false if it is known or too far away
+     */
+    public boolean push(Node node) {
+        if (index.containsKey(node.id())) {
+            return false;
+        }
+        return insert(insertionPoint(node.id()), node);
+    }
+
+    /**
+     * Pushes contact {@code i} of {@code nodes}, decoding it only if it is inserted. A known
+     * contact sorts exactly onto its own entry (equal distance means equal ID), so the binary
+     * search doubles as the membership check.
+     *
+     * @return true if the node was added, false if it is known or too far away
+     */
+    public boolean push(NodeList nodes, int i) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (nodes.compareDistance(target, entries[mid].node.id(), i) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo < size && nodes.hasId(i, entries[lo].node.id())) {
+            return false;
+        }
+        return insert(lo, nodes.get(i));
+    }
+
+    private boolean insert(int pos, Node node) {
+        if (pos == entries.length) {
+            return false;
+        }
+        if (size == entries.length) {
+            index.remove(entries[size - 1].node.id());
+            size--;
+        }
+        System.arraycopy(entries, pos, entries, pos + 1, size - pos);
+        Entry entry = new Entry(node);
+        entries[pos] = entry;
+        index.put(node.id(), entry);
+        size++;
+        return true;
+    }
+
+    private int insertionPoint(NodeId id) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (target.compareDistance(entries[mid].node.id(), id) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public boolean contains(NodeId id) {
+        return index.containsKey(id);
+    }
+
+    public void markContacted(Node node) {
+        setState(node, CONTACTED);
+    }
+
+    public void markResponded(Node node) {
+        setState(node, RESPONDED);
+    }
+
+    /**
+     * The node did not answer; it no longer counts towards the K closest.
+     */
+    public void markFailed(Node node) {
+        setState(node, FAILED);
+    }
+
+    private void setState(Node node, byte state) {
+        Entry entry = index.get(node.id());
+        if (entry != null) {
+            entry.state = state;
+        }
+    }
+
+    /**
+     * Up to {@code max} uncontacted nodes among the K closest live ones, closest first.
+     */
+    public List<Node> getNotContacted(int max) {
+        List<Node> out = new ArrayList<>(Math.min(max, k));
+        int live = 0;
+        for (int i = 0; i < size && live < k && out.size() < max; i++) {
+            Entry e = entries[i];
+            if (e.state == FAILED) {
+                continue;
+            }
+            live++;
+            if (e.state == FRESH) {
+                out.add(e.node);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Uncontacted nodes among the K closest live ones, closest first.
+     */
+    public List<Node> getNotContacted() {
+        return getNotContacted(k);
+    }
+
+    /**
+     * True once every one of the K closest live nodes (or all of them, if fewer) has answered.
+     */
+    public boolean haveAllResponded() {
+        int live = 0;
+        for (int i = 0; i < size && live < k; i++) {
+            byte state = entries[i].state;
+            if (state == FAILED) {
+                continue;
+            }
+            if (state != RESPONDED) {
+                return false;
+            }
+            live++;
+        }
+        return true;
+    }
+
+    /**
+     * The K closest nodes that have not failed, closest first.
+     */
+    public List<Node> toList() {
+        List<Node> out = new ArrayList<>(Math.min(size, k));
+        for (int i = 0; i < size && out.size() < k; i++) {
+            if (entries[i].state != FAILED) {
+                out.add(entries[i].node);
+            }
+        }
+        return out;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -1,62 +1,191 @@
 package com.kademlia.dht.node;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.math.BigInteger;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * 160-bit node identifier (20 bytes). Supports XOR distance for Kademlia routing.
+ * <p>
+ * Stored as packed big-endian primitives: bytes 0-7 in {@code hi}, 8-15 in {@code mid} and
+ * 16-19 in {@code lo}, so distance checks, equality and hashing never touch an array.
  */
 public final class NodeId {
     public static final int SIZE_BYTES = 20;
     public static final int SIZE_BITS = 160;
 
-    private final byte[] id;
+    private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final long hi;
+    private final long mid;
+    private final int lo;
 
     public NodeId(byte[] id) {
         if (id == null || id.length != SIZE_BYTES) {
             throw new IllegalArgumentException("NodeId must be exactly " + SIZE_BYTES + " bytes");
         }
-        this.id = id.clone();
+        this.hi = readBits(id, 0, 8);
+        this.mid = readBits(id, 8, 8);
+        this.lo = (int) readBits(id, 16, 4);
+    }
+
+    private NodeId(long hi, long mid, int lo) {
+        this.hi = hi;
+        this.mid = mid;
+        this.lo = lo;
+    }
+
+    /** Reads 20 raw bytes (as written by {@link #writeTo(DataOutput)}) without an intermediate array. */
+    public static NodeId readFrom(DataInput in) throws IOException {
+        return new NodeId(in.readLong(), in.readLong(), in.readInt());
+    }
+
+    /** Writes the 20 raw bytes of this ID, most significant first. */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(hi);
+        out.writeLong(mid);
+        out.writeInt(lo);
+    }
+
+    /** Reads 20 raw bytes at the buffer's position, advancing it. */
+    public static NodeId readFrom(ByteBuffer buf) {
+        return new NodeId(buf.getLong(), buf.getLong(), buf.getInt());
     }
 
+    /** Writes the 20 raw bytes of this ID at the buffer's position, advancing it. */
+    public void writeTo(ByteBuffer buf) {
+        buf.putLong(hi).putLong(mid).putInt(lo);
+    }
+
+    /** Writes bytes {@code from} to 19 of this ID (a suffix, for prefix-compressed lists). */
+    public void writeTo(ByteBuffer buf, int from) {
+        for (int i = from; i < SIZE_BYTES; i++) {
+            buf.put(byteAt(i));
+        }
+    }
+
+    private byte byteAt(int i) {
+        if (i < 8) {
+            return (byte) (hi >>> (56 - 8 * i));
+        }
+        if (i < 16) {
+            return (byte) (mid >>> (56 - 8 * (i - 8)));
+        }
+        return (byte) (lo >>> (24 - 8 * (i - 16)));
+    }
+
+    /** Reads the 20 raw bytes at {@code b[off]}. */
+    public static NodeId readFrom(byte[] b, int off) {
+        return new NodeId((long) LONG_BE.get(b, off), (long) LONG_BE.get(b, off + 8), (int) INT_BE.get(b, off + 16));
+    }
+
+    /** True if the 20 raw bytes at {@code b[off]} are this ID; allocates nothing. */
+    public boolean equalsBytes(byte[] b, int off) {
+        return hi == (long) LONG_BE.get(b, off)
+                && mid == (long) LONG_BE.get(b, off + 8)
+                && lo == (int) INT_BE.get(b, off + 16);
+    }
+
+    /**
+     * {@link #compareDistance} with the second ID given as 20 raw bytes at {@code b[off]}, so a
+     * contact can be ranked before it is decoded.
+     */
+    public int compareDistance(NodeId a, byte[] b, int off) {
+        int c = Long.compareUnsigned(this.hi ^ a.hi, this.hi ^ (long) LONG_BE.get(b, off));
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compareUnsigned(this.mid ^ a.mid, this.mid ^ (long) LONG_BE.get(b, off + 8));
+        if (c != 0) {
+            return c;
+        }
+        return Integer.compareUnsigned(this.lo ^ a.lo, this.lo ^ (int) INT_BE.get(b, off + 16));
+    }
+
+    /**
+     * Returns a freshly allocated 20-byte big-endian copy of this ID.
+     */
     public byte[] getBytes() {
-        return id.clone();
+        byte[] out = new byte[SIZE_BYTES];
+        writeBits(out, 0, hi, 8);
+        writeBits(out, 8, mid, 8);
+        writeBits(out, 16, lo, 4);
+        return out;
     }
 
+    /** Slow path: allocates. Prefer {@link #compareDistance} for ordering. */
     public BigInteger toBigInteger() {
-        return new BigInteger(1, id);
+        return new BigInteger(1, getBytes());
     }
 
     /**
      * XOR distance: smaller return value means closer (same ID = 0, range 1-160 for different).
      * First differing bit: MSB = 0, LSB = 159. Return bitPosition + 1 so range is 1-160.
-     * Used for ordering "K closest" (min-heap of distance).
+     * Coarse (bucket-level) distance; use {@link #compareDistance} for full ordering.
      */
     public int distanceTo(NodeId other) {
-        if (this.equals(other)) {
-            return 0;
+        int prefix = sharedPrefixLength(other);
+        return prefix == SIZE_BITS ? 0 : prefix + 1;
+    }
+
+    /**
+     * Number of leading bits shared with {@code other} (0-160, 160 for the same ID).
+     */
+    public int sharedPrefixLength(NodeId other) {
+        long x = this.hi ^ other.hi;
+        if (x != 0) {
+            return Long.numberOfLeadingZeros(x);
         }
-        for (int i = 0; i < SIZE_BYTES; i++) {
-            int xor = (this.id[i] ^ other.id[i]) & 0xFF;
-            if (xor != 0) {
-                int leadingZeros = Integer.numberOfLeadingZeros(xor & 0xFF);
-                int bitInByte = leadingZeros - 24;
-                int bitPosition = i * 8 + bitInByte;
-                return bitPosition + 1;
-            }
+        x = this.mid ^ other.mid;
+        if (x != 0) {
+            return 64 + Long.numberOfLeadingZeros(x);
         }
-        return 0;
+        return 128 + Integer.numberOfLeadingZeros(this.lo ^ other.lo);
+    }
+
+    /**
+     * Compares the full 160-bit XOR distances from this ID to {@code a} and {@code b}.
+     * Negative if {@code a} is closer, positive if {@code b} is closer, zero if they are equal.
+     */
+    public int compareDistance(NodeId a, NodeId b) {
+        int c = Long.compareUnsigned(this.hi ^ a.hi, this.hi ^ b.hi);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compareUnsigned(this.mid ^ a.mid, this.mid ^ b.mid);
+        if (c != 0) {
+            return c;
+        }
+        return Integer.compareUnsigned(this.lo ^ a.lo, this.lo ^ b.lo);
     }
 
     /**
      * XOR distance as BigInteger. Smaller value means closer in XOR metric.
+     * Slow path: allocates. Prefer {@link #compareDistance} for ordering.
      */
     public BigInteger xorDistance(NodeId other) {
-        byte[] xor = new byte[SIZE_BYTES];
-        for (int i = 0; i < SIZE_BYTES; i++) {
-            xor[i] = (byte) (this.id[i] ^ other.id[i]);
+        return new NodeId(hi ^ other.hi, mid ^ other.mid, lo ^ other.lo).toBigInteger();
+    }
+
+    private static long readBits(byte[] b, int off, int len) {
+        long v = 0;
+        for (int i = 0; i < len; i++) {
+            v = (v << 8) | (b[off + i] & 0xFF);
+        }
+        return v;
+    }
+
+    private static void writeBits(byte[] b, int off, long v, int len) {
+        for (int i = len - 1; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
         }
-        return new BigInteger(1, xor);
     }
 
     @Override
@@ -64,12 +193,12 @@ public final class NodeId {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         NodeId nodeId = (NodeId) o;
-        return Arrays.equals(id, nodeId.id);
+        return hi == nodeId.hi && mid == nodeId.mid && lo == nodeId.lo;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(id);
+        return 31 * (31 * Long.hashCode(hi) + Long.hashCode(mid)) + lo;
     }
 
     @Override
@@ -0,0 +1,103 @@
+package com.kademlia.dht.node;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list of contacts in wire form: {@code [id:20][ipv4:4][port:2]} per contact, in one
+ * array. Decoding a node list copies the bytes once instead of building a {@link NodeId},
+ * {@link InetAddress} and {@link Node} per contact.
+ * <p>
+ * {@link #get} materializes a contact on each call. Callers that only keep some contacts can
+ * rank and match them first through {@link #compareDistance} and {@link #hasId}, which read the
+ * raw bytes and allocate nothing.
+ */
+public final class NodeList extends AbstractList<Node> implements RandomAccess {
+    public static final int ENTRY_BYTES = NodeId.SIZE_BYTES + 4 + 2;
+
+    private final byte[] data;
+    private final int size;
+
+    private NodeList(byte[] data, int size) {
+        this.data = data;
+        this.size = size;
+    }
+
+    /**
+     * Copies {@code count} contacts from the buffer's position, advancing it.
+     *
+     * @throws java.nio.BufferUnderflowException if fewer bytes remain
+     */
+    public static NodeList read(ByteBuffer buf, int count) {
+        byte[] data = new byte[count * ENTRY_BYTES];
+        buf.get(data);
+        return new NodeList(data, count);
+    }
+
+    /**
+     * Wraps {@code count} contacts already laid out in wire form; the array is not copied.
+     */
+    public static NodeList wrap(byte[] data, int count) {
+        if (data.length != count * ENTRY_BYTES) {
+            throw new IllegalArgumentException("Expected " + count * ENTRY_BYTES + " bytes, got " + data.length);
+        }
+        return new NodeList(data, count);
+    }
+
+    /** Writes the contacts in wire form at the buffer's position, advancing it. */
+    public void writeTo(ByteBuffer buf) {
+        buf.put(data, 0, size * ENTRY_BYTES);
+    }
+
+    @Override
+    public Node get(int index) {
+        return new Node(id(index), ip(index), port(index));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public NodeId id(int index) {
+        return NodeId.readFrom(data, offset(index));
+    }
+
+    public InetAddress ip(int index) {
+        int off = offset(index) + NodeId.SIZE_BYTES;
+        try {
+            return InetAddress.getByAddress(Arrays.copyOfRange(data, off, off + 4));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int port(int index) {
+        int off = offset(index) + NodeId.SIZE_BYTES + 4;
+        return ((data[off] & 0xFF) << 8) | (data[off + 1] & 0xFF);
+    }
+
+    /** True if contact {@code index} has ID {@code id}. */
+    public boolean hasId(int index, NodeId id) {
+        return id.equalsBytes(data, offset(index));
+    }
+
+    /**
+     * Compares the distances from {@code target} to {@code a} and to contact {@code index}:
+     * negative if {@code a} is closer, positive if the contact is.
+     */
+    public int compareDistance(NodeId target, NodeId a, int index) {
+        return target.compareDistance(a, data, offset(index));
+    }
+
+    private int offset(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return index * ENTRY_BYTES;
+    }
+}
@@ -0,0 +1,7 @@
+package com.kademlia.dht.protocol;
+
+/**
+ * Sent instead of a real response when the peer is shedding load. The peer is alive, so the
+ * caller should try another contact rather than count it as a failure.
+ */
+public record BusyResponse(byte[] messageId) implements RpcResponse {}
@@ -0,0 +1,9 @@
+package com.kademlia.dht.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One chunk of an exported value; {@code found} is false if the transfer expired or the offset
+ * is out of range. The holder sends a read-only slice of the exported value.
+ */
+public record ChunkResponse(byte[] messageId, boolean found, int offset, ByteBuffer data) implements RpcResponse {}
@@ -0,0 +1,138 @@
+package com.kademlia.dht.protocol;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+
+/**
+ * Pulls one exported value chunk by chunk, keeping up to {@code window} chunk requests in
+ * flight. A chunk whose request times out (or comes back BUSY) is asked for again on its own,
+ * up to {@link #MAX_ATTEMPTS} times, so a lost datagram costs one chunk rather than the value.
+ * <p>
+ * The chunk function maps an offset to the peer's response, or to null when the call failed.
+ * The buffer starts at one window of chunks and grows as they arrive, so a handle that claims
+ * a large value costs little memory until its chunks actually come in.
+ */
+final class ChunkedFetch {
+    static final int MAX_ATTEMPTS = 4;
+
+    private final IntFunction<CompletableFuture<ChunkResponse>> fetchChunk;
+    private final int chunkSize;
+    private final int window;
+    private final int length;
+    /** Guarded by the lock; reaches {@code length} by the time the last chunk arrives. */
+    private byte[] value;
+    private final int chunks;
+    private final int[] attempts;
+    private final ArrayDeque<Integer> retries = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final CompletableFuture<byte[]> done = new CompletableFuture<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private int nextChunk;
+    private int inFlight;
+    private int received;
+
+    ChunkedFetch(int length, int chunkSize, int window, IntFunction<CompletableFuture<ChunkResponse>> fetchChunk) {
+        this.fetchChunk = fetchChunk;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.length = length;
+        this.value = new byte[(int) Math.min(length, (long) window * chunkSize)];
+        this.chunks = (length + chunkSize - 1) / chunkSize;
+        this.attempts = new int[chunks];
+    }
+
+    /** Starts the transfer; completes with the value or exceptionally if a chunk cannot be had. */
+    CompletableFuture<byte[]> start() {
+        if (chunks == 0) {
+            done.complete(value);
+        } else {
+            pump();
+        }
+        return done;
+    }
+
+    /**
+     * Fills the window. Completions that arrive on the calling thread only bump {@code wip}, and
+     * the outer call loops again, so a synchronously answering peer does not recurse per chunk.
+     */
+    private void pump() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            int chunk;
+            while ((chunk = claimChunk()) >= 0) {
+                int c = chunk;
+                fetchChunk.apply(c * chunkSize).whenComplete((resp, ex) -> onChunk(c, ex == null ? resp : null));
+            }
+        } while (wip.decrementAndGet() != 0);
+    }
+
+    /** Next chunk to request, or -1 if the window is full or nothing is left to ask for. */
+    private int claimChunk() {
+        lock.lock();
+        try {
+            if (done.isDone() || inFlight >= window) {
+                return -1;
+            }
+            int chunk;
+            if (!retries.isEmpty()) {
+                chunk = retries.poll();
+            } else if (nextChunk < chunks) {
+                chunk = nextChunk++;
+            } else {
+                return -1;
+            }
+            attempts[chunk]++;
+            inFlight++;
+            return chunk;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onChunk(int chunk, ChunkResponse resp) {
+        int offset = chunk * chunkSize;
+        int expected = Math.min(chunkSize, length - offset);
+        Throwable failure = null;
+        boolean complete = false;
+        lock.lock();
+        try {
+            inFlight--;
+            if (done.isDone()) {
+                return;
+            }
+            if (resp == null) {
+                if (attempts[chunk] >= MAX_ATTEMPTS) {
+                    failure = new IOException("Chunk at " + offset + " failed " + MAX_ATTEMPTS + " times");
+                } else {
+                    retries.add(chunk);
+                }
+            } else if (!resp.found()) {
+                failure = new IOException("Transfer no longer available");
+            } else if (resp.offset() != offset || resp.data().remaining() != expected) {
+                failure = new IOException("Unexpected chunk at " + resp.offset());
+            } else {
+                if (offset + expected > value.length) {
+                    value = Arrays.copyOf(value, Math.min(length, Math.max(offset + expected, 2 * value.length)));
+                }
+                resp.data().get(resp.data().position(), value, offset, expected);
+                complete = ++received == chunks;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (failure != null) {
+            done.completeExceptionally(failure);
+        } else if (complete) {
+            done.complete(value);
+        } else {
+            pump();
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package com.kademlia.dht.protocol;
+
+import com.kademlia.dht.node.Node;
+import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.node.NodeList;
+import com.kademlia.dht.util.Bytes;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The compact wire format, spoken only to peers that advertised {@link MessageCodec#CAP_COMPACT}.
+ * <p>
+ * Same messages as the legacy format, with the redundant parts dropped:
+ * <ul>
+ *   <li>the type byte carries {@link #FLAG}, so no extra header byte is needed;</li>
+ *   <li>requests omit the sender's IP and port, which the receiver takes from the datagram;</li>
+ *   <li>lengths, offsets and counts are unsigned varints (a node count is one byte);</li>
+ *   <li>each contact in a node list starts with one byte holding how many leading ID bytes it
+ *       shares with the previous contact (lists sorted by closeness share long prefixes), plus
+ *       {@link #SAME_IP} / {@link #SAME_PORT} bits when those repeat the previous contact's.</li>
+ * </ul>
+ * Batch messages are a varint count followed by the items in the same layouts.
+ * <p>
+ * A FIND_NODE_RESPONSE contact costs 1 + (20 - shared) + 4 + 2 bytes at worst and 1 + (20 -
+ * shared) when address and port repeat, against a fixed 26; a request saves 6 bytes of address.
+ */
+final class CompactCodec {
+    static final int FLAG = 0x80;
+
+    private static final int SAME_IP = 0x40;
+    private static final int SAME_PORT = 0x20;
+    private static final int SHARED_MASK = 0x1F;
+    private static final int MAX_CONTACTS = 255;
+    private static final int IPV4_LEN = 4;
+
+    private CompactCodec() {
+    }
+
+    static boolean isCompact(ByteBuffer buf, int index) {
+        return (buf.get(index) & FLAG) != 0;
+    }
+
+    static int encodedSize(RpcMessage msg) {
+        int size = 1 + 4;
+        if (msg instanceof RpcRequest req) {
+            size += NodeId.SIZE_BYTES;
+            return size + switch (req) {
+                case PingRequest r -> 0;
+                case StoreRequest r -> bytesSize(r.key().length) + (r.handle().isPresent()
+                        ? 1 + handleSize(r.handle().get())
+                        : varintSize(r.value().length + 1) + r.value().length);
+                case FindNodeRequest r -> NodeId.SIZE_BYTES;
+                case FindValueRequest r -> bytesSize(r.key().length);
+                case FetchChunkRequest r -> 4 + varintSize(r.offset());
+                case StoreBatchRequest r -> {
+                    int n = varintSize(r.entries().size());
+                    for (StoreBatchRequest.Entry e : r.entries()) {
+                        n += bytesSize(e.key().length) + bytesSize(e.value().length);
+                    }
+                    yield n;
+                }
+                case FindNodeBatchRequest r -> varintSize(r.targets().size()) + r.targets().size() * NodeId.SIZE_BYTES;
+                case FindValueBatchRequest r -> {
+                    int n = varintSize(r.keys().size());
+                    for (byte[] key : r.keys()) {
+                        n += bytesSize(key.length);
+                    }
+                    yield n;
+                }
+            };
+        }
+        return size + switch ((RpcResponse) msg) {
+            case PingResponse r -> NodeId.SIZE_BYTES;
+            case StoreResponse r -> 1;
+            case FindNodeResponse r -> nodeListSize(r.nodes());
+            case FindValueResponse r -> 1 + (r.value().isPresent() ? bytesSize(r.value().get().remaining())
+                    : r.handle().isPresent() ? handleSize(r.handle().get())
+                    : nodeListSize(r.nodes()));
+            case ChunkResponse r -> 1 + (r.found() ? varintSize(r.offset()) + bytesSize(r.data().remaining()) : 0);
+            case BusyResponse r -> 0;
+            case StoreBatchResponse r -> varintSize(r.stored().length) + (r.stored().length + 7) / 8;
+            case FindNodeBatchResponse r -> {
+                int n = varintSize(r.nodes().size());
+                for (List<Node> nodes : r.nodes()) {
+                    n += nodeListSize(nodes);
+                }
+                yield n;
+            }
+            case FindValueBatchResponse r -> {
+                int n = varintSize(r.items().size());
+                for (FindValueBatchResponse.Item item : r.items()) {
+                    n += 1 + (item.value().isPresent() ? bytesSize(item.value().get().remaining())
+                            : item.handle().isPresent() ? handleSize(item.handle().get()) : 0);
+                }
+                yield n;
+            }
+        };
+    }
+
+    static void encode(RpcMessage msg, ByteBuffer buf) {
+        if (msg instanceof RpcRequest req) {
+            buf.put((byte) (req.type().getCode() | FLAG));
+            MessageCodec.writeMessageId(buf, req.messageId());
+            req.senderId().writeTo(buf);
+            switch (req) {
+                case PingRequest r -> {
+                }
+                case StoreRequest r -> {
+                    writeBytes(buf, r.key());
+                    if (r.handle().isPresent()) {
+                        buf.put((byte) 0);
+                        writeHandle(buf, r.handle().get());
+                    } else {
+                        writeVarint(buf, r.value().length + 1);
+                        buf.put(r.value());
+                    }
+                }
+                case FindNodeRequest r -> r.targetId().writeTo(buf);
+                case FindValueRequest r -> writeBytes(buf, r.key());
+                case FetchChunkRequest r -> {
+                    buf.putInt(r.transferId());
+                    writeVarint(buf, r.offset());
+                }
+                case StoreBatchRequest r -> {
+                    writeVarint(buf, r.entries().size());
+                    for (StoreBatchRequest.Entry e : r.entries()) {
+                        writeBytes(buf, e.key());
+                        writeBytes(buf, e.value());
+                    }
+                }
+                case FindNodeBatchRequest r -> {
+                    writeVarint(buf, r.targets().size());
+                    for (NodeId target : r.targets()) {
+                        target.writeTo(buf);
+                    }
+                }
+                case FindValueBatchRequest r -> {
+                    writeVarint(buf, r.keys().size());
+                    for (byte[] key : r.keys()) {
+                        writeBytes(buf, key);
+                    }
+                }
+            }
+            return;
+        }
+        RpcResponse resp = (RpcResponse) msg;
+        buf.put((byte) (MessageCodec.responseType(resp).getCode() | FLAG));
+        MessageCodec.writeMessageId(buf, resp.messageId());
+        switch (resp) {
+            case PingResponse r -> r.nodeId().writeTo(buf);
+            case StoreResponse r -> buf.put((byte) (r.success() ? 1 : 0));
+            case FindNodeResponse r -> writeNodeList(buf, r.nodes());
+            case FindValueResponse r -> {
+                if (r.value().isPresent()) {
+                    buf.put(MessageCodec.VALUE_INLINE);
+                    writeBytes(buf, r.value().get());
+                } else if (r.handle().isPresent()) {
+                    buf.put(MessageCodec.VALUE_HANDLE);
+                    writeHandle(buf, r.handle().get());
+                } else {
+                    buf.put(MessageCodec.VALUE_NODES);
+                    writeNodeList(buf, r.nodes());
+                }
+            }
+            case ChunkResponse r -> {
+                buf.put((byte) (r.found() ? 1 : 0));
+                if (r.found()) {
+                    writeVarint(buf, r.offset());
+                    writeBytes(buf, r.data());
+                }
+            }
+            case BusyResponse r -> {
+            }
+            case StoreBatchResponse r -> {
+                writeVarint(buf, r.stored().length);
+                MessageCodec.writeFlags(buf, r.stored());
+            }
+            case FindNodeBatchResponse r -> {
+                writeVarint(buf, r.nodes().size());
+                for (List<Node> nodes : r.nodes()) {
+                    writeNodeList(buf, nodes);
+                }
+            }
+            case FindValueBatchResponse r -> {
+                writeVarint(buf, r.items().size());
+                for (FindValueBatchResponse.Item item : r.items()) {
+                    if (item.value().isPresent()) {
+                        buf.put(MessageCodec.VALUE_INLINE);
+                        writeBytes(buf, item.value().get());
+                    } else if (item.handle().isPresent()) {
+                        buf.put(MessageCodec.VALUE_HANDLE);
+                        writeHandle(buf, item.handle().get());
+                    } else {
+                        buf.put(MessageCodec.ITEM_MISSING);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param fromIp   source address of the datagram, used as the sender's address of a request
+     * @param fromPort source port of the datagram
+     */
+    static RpcMessage decode(ByteBuffer buf, InetAddress fromIp, int fromPort) throws IOException {
+        MessageType type = MessageType.fromCode((byte) (buf.get() & ~FLAG));
+        byte[] msgId = MessageCodec.readMessageId(buf);
+        return switch (type) {
+            case PING -> new PingRequest(msgId, NodeId.readFrom(buf), fromIp, fromPort);
+            case STORE -> {
+                NodeId sender = NodeId.readFrom(buf);
+                byte[] key = readBytes(buf);
+                int marker = readVarint(buf);
+                yield marker == 0
+                        ? new StoreRequest(msgId, sender, fromIp, fromPort, key, new byte[0], Optional.of(readHandle(buf)))
+                        : new StoreRequest(msgId, sender, fromIp, fromPort, key, readBytes(buf, marker - 1));
+            }
+            case FIND_NODE -> new FindNodeRequest(msgId, NodeId.readFrom(buf), fromIp, fromPort, NodeId.readFrom(buf));
+            case FIND_VALUE -> new FindValueRequest(msgId, NodeId.readFrom(buf), fromIp, fromPort, readBytes(buf));
+            case FETCH_CHUNK -> new FetchChunkRequest(msgId, NodeId.readFrom(buf), fromIp, fromPort,
+                    buf.getInt(), readVarint(buf));
+            case PING_RESPONSE -> new PingResponse(msgId, NodeId.readFrom(buf));
+            case STORE_RESPONSE -> new StoreResponse(msgId, buf.get() != 0);
+            case FIND_NODE_RESPONSE -> new FindNodeResponse(msgId, readNodeList(buf));
+            case FIND_VALUE_RESPONSE -> switch (buf.get()) {
+                case MessageCodec.VALUE_NODES -> new FindValueResponse(msgId, Optional.empty(), readNodeList(buf));
+                case MessageCodec.VALUE_INLINE -> new FindValueResponse(msgId, Optional.of(readView(buf)), List.of());
+                case MessageCodec.VALUE_HANDLE -> new FindValueResponse(msgId, Optional.empty(), List.of(),
+                        Optional.of(readHandle(buf)));
+                default -> throw new IOException("Invalid FIND_VALUE_RESPONSE flag");
+            };
+            case CHUNK_RESPONSE -> buf.get() != 0
+                    ? new ChunkResponse(msgId, true, readVarint(buf), readView(buf))
+                    : new ChunkResponse(msgId, false, 0, ByteBuffer.allocate(0));
+            case BUSY -> new BusyResponse(msgId);
+            case STORE_BATCH -> {
+                NodeId sender = NodeId.readFrom(buf);
+                int n = readCount(buf, 2);
+                List<StoreBatchRequest.Entry> entries = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    entries.add(new StoreBatchRequest.Entry(readBytes(buf), readBytes(buf)));
+                }
+                yield new StoreBatchRequest(msgId, sender, fromIp, fromPort, entries);
+            }
+            case FIND_NODE_BATCH -> {
+                NodeId sender = NodeId.readFrom(buf);
+                int n = readCount(buf, NodeId.SIZE_BYTES);
+                List<NodeId> targets = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    targets.add(NodeId.readFrom(buf));
+                }
+                yield new FindNodeBatchRequest(msgId, sender, fromIp, fromPort, targets);
+            }
+            case FIND_VALUE_BATCH -> {
+                NodeId sender = NodeId.readFrom(buf);
+                int n = readCount(buf, 1);
+                List<byte[]> keys = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    keys.add(readBytes(buf));
+                }
+                yield new FindValueBatchRequest(msgId, sender, fromIp, fromPort, keys);
+            }
+            case STORE_BATCH_RESPONSE -> {
+                int n = readVarint(buf);
+                if (n > buf.remaining() * 8) {
+                    throw new IOException("Invalid item count " + n);
+                }
+                yield new StoreBatchResponse(msgId, MessageCodec.readFlags(buf, n));
+            }
+            case FIND_NODE_BATCH_RESPONSE -> {
+                int n = readCount(buf, 1);
+                List<List<Node>> lists = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    lists.add(readNodeList(buf));
+                }
+                yield new FindNodeBatchResponse(msgId, lists);
+            }
+            case FIND_VALUE_BATCH_RESPONSE -> {
+                int n = readCount(buf, 1);
+                List<FindValueBatchResponse.Item> items = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    items.add(switch (buf.get()) {
+                        case MessageCodec.ITEM_MISSING -> FindValueBatchResponse.Item.MISSING;
+                        case MessageCodec.VALUE_INLINE -> new FindValueBatchResponse.Item(Optional.of(readView(buf)),
+                                Optional.empty());
+                        case MessageCodec.VALUE_HANDLE -> new FindValueBatchResponse.Item(Optional.empty(),
+                                Optional.of(readHandle(buf)));
+                        default -> throw new IOException("Invalid FIND_VALUE_BATCH_RESPONSE flag");
+                    });
+                }
+                yield new FindValueBatchResponse(msgId, items);
+            }
+        };
+    }
+
+    /** Reads an item count; each item takes at least {@code minItemBytes}, which bounds it. */
+    private static int readCount(ByteBuffer buf, int minItemBytes) throws IOException {
+        int n = readVarint(buf);
+        if (n > buf.remaining() / minItemBytes) {
+            throw new IOException("Invalid item count " + n);
+        }
+        return n;
+    }
+
+    private static int nodeListSize(List<Node> nodes) {
+        int size = 1;
+        Node prev = null;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node n = nodes.get(i);
+            int shared = prev == null ? 0 : sharedBytes(prev.id(), n.id());
+            size += 1 + NodeId.SIZE_BYTES - shared;
+            if (prev == null || MessageCodec.ipv4(prev.ip()) != MessageCodec.ipv4(n.ip())) {
+                size += IPV4_LEN;
+            }
+            if (prev == null || prev.port() != n.port()) {
+                size += 2;
+            }
+            prev = n;
+        }
+        return size;
+    }
+
+    private static void writeNodeList(ByteBuffer buf, List<Node> nodes) {
+        if (nodes.size() > MAX_CONTACTS) {
+            throw new IllegalArgumentException("Too many contacts for a compact list: " + nodes.size());
+        }
+        buf.put((byte) nodes.size());
+        Node prev = null;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node n = nodes.get(i);
+            int shared = prev == null ? 0 : sharedBytes(prev.id(), n.id());
+            int ip = MessageCodec.ipv4(n.ip());
+            boolean sameIp = prev != null && MessageCodec.ipv4(prev.ip()) == ip;
+            boolean samePort = prev != null && prev.port() == n.port();
+            buf.put((byte) (shared | (sameIp ? SAME_IP : 0) | (samePort ? SAME_PORT : 0)));
+            n.id().writeTo(buf, shared);
+            if (!sameIp) {
+                buf.putInt(ip);
+            }
+            if (!samePort) {
+                buf.putShort((short) n.port());
+            }
+            prev = n;
+        }
+    }
+
+    /** Rebuilds the contacts in legacy layout inside one array, so the result is a plain {@link NodeList}. */
+    private static NodeList readNodeList(ByteBuffer buf) throws IOException {
+        int count = buf.get() & 0xFF;
+        if (count > buf.remaining()) {
+            throw new IOException("Invalid node count " + count);
+        }
+        int entry = NodeList.ENTRY_BYTES;
+        byte[] data = new byte[count * entry];
+        for (int i = 0; i < count; i++) {
+            int flags = buf.get() & 0xFF;
+            int shared = flags & SHARED_MASK;
+            int off = i * entry;
+            int prev = off - entry;
+            if ((flags & ~(SHARED_MASK | SAME_IP | SAME_PORT)) != 0 || shared > NodeId.SIZE_BYTES
+                    || (i == 0 && flags != 0)) {
+                throw new IOException("Invalid contact flags " + flags);
+            }
+            System.arraycopy(data, Math.max(prev, 0), data, off, shared);
+            buf.get(data, off + shared, NodeId.SIZE_BYTES - shared);
+            int ipOff = off + NodeId.SIZE_BYTES;
+            if ((flags & SAME_IP) != 0) {
+                System.arraycopy(data, ipOff - entry, data, ipOff, IPV4_LEN);
+            } else {
+                buf.get(data, ipOff, IPV4_LEN);
+            }
+            if ((flags & SAME_PORT) != 0) {
+                System.arraycopy(data, ipOff + IPV4_LEN - entry, data, ipOff + IPV4_LEN, 2);
+            } else {
+                buf.get(data, ipOff + IPV4_LEN, 2);
+            }
+        }
+        return NodeList.wrap(data, count);
+    }
+
+    private static int sharedBytes(NodeId a, NodeId b) {
+        return a.sharedPrefixLength(b) / 8;
+    }
+
+    private static int handleSize(ValueHandle handle) {
+        return 4 + varintSize(handle.length());
+    }
+
+    private static void writeHandle(ByteBuffer buf, ValueHandle handle) {
+        buf.putInt(handle.transferId());
+        writeVarint(buf, handle.length());
+    }
+
+    private static ValueHandle readHandle(ByteBuffer buf) throws IOException {
+        return new ValueHandle(buf.getInt(), readVarint(buf));
+    }
+
+    private static int bytesSize(int length) {
+        return varintSize(length) + length;
+    }
+
+    private static void writeBytes(ByteBuffer buf, byte[] b) {
+        writeVarint(buf, b.length);
+        buf.put(b);
+    }
+
+    /** Writes a value view without moving its position, so a retransmit can encode it again. */
+    private static void writeBytes(ByteBuffer buf, ByteBuffer b) {
+        writeVarint(buf, b.remaining());
+        Bytes.put(buf, b);
+    }
+
+    private static byte[] readBytes(ByteBuffer buf) throws IOException {
+        return readBytes(buf, readVarint(buf));
+    }
+
+    /** A value in its own array, wrapped so {@link Bytes#array} can hand the array on uncopied. */
+    private static ByteBuffer readView(ByteBuffer buf) throws IOException {
+        return ByteBuffer.wrap(readBytes(buf));
+    }
+
+    private static byte[] readBytes(ByteBuffer buf, int len) throws IOException {
+        if (len > buf.remaining()) {
+            throw new IOException("Invalid length " + len);
+        }
+        byte[] out = new byte[len];
+        buf.get(out);
+        return out;
+    }
+
+    static int varintSize(int v) {
+        return v < 0 ? 5 : (38 - Integer.numberOfLeadingZeros(v | 1)) / 7;
+    }
+
+    /** Unsigned LEB128: seven bits per byte, low bits first, high bit set on all but the last. */
+    static void writeVarint(ByteBuffer buf, int v) {
+        while ((v & ~0x7F) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    /** Reads a varint that must fit a non-negative int. */
+    static int readVarint(ByteBuffer buf) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = buf.get();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (v < 0) {
+                    break;
+                }
+                return v;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+}
@@ -0,0 +1,16 @@
+package com.kademlia.dht.protocol;
+
+import com.kademlia.dht.node.NodeId;
+
+import java.net.InetAddress;
+
+/**
+ * Asks for the chunk of an exported value starting at {@code offset}.
+ */
+public record FetchChunkRequest(byte[] messageId, NodeId senderId, InetAddress senderIp, int senderPort,
+                                int transferId, int offset) implements RpcRequest {
+    @Override
+    public MessageType type() {
+        return MessageType.FETCH_CHUNK;
+    }
+}
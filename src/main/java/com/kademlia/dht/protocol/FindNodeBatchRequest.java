@@ -0,0 +1,17 @@
+package com.kademlia.dht.protocol;
+
+import com.kademlia.dht.node.NodeId;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * Asks one peer for its closest contacts to each of several targets.
+ */
+public record FindNodeBatchRequest(byte[] messageId, NodeId senderId, InetAddress senderIp, int senderPort,
+                                   List<NodeId> targets) implements RpcRequest {
+    @Override
+    public MessageType type() {
+        return MessageType.FIND_NODE_BATCH;
+    }
+}
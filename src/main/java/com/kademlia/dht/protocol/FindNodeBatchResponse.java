@@ -0,0 +1,10 @@
+package com.kademlia.dht.protocol;
+
+import com.kademlia.dht.node.Node;
+
+import java.util.List;
+
+/**
+ * The closest contacts for each target of the {@link FindNodeBatchRequest}, in request order.
+ */
+public record FindNodeBatchResponse(byte[] messageId, List<List<Node>> nodes) implements RpcResponse {}
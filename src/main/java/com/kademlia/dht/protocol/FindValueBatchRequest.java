@@ -0,0 +1,17 @@
+package com.kademlia.dht.protocol;
+
+import com.kademlia.dht.node.NodeId;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * Looks up several keys held by one peer in one datagram.
+ */
+public record FindValueBatchRequest(byte[] messageId, NodeId senderId, InetAddress senderIp, int senderPort,
+                                    List<byte[]> keys) implements RpcRequest {
+    @Override
+    public MessageType type() {
+        return MessageType.FIND_VALUE_BATCH;
+    }
+}
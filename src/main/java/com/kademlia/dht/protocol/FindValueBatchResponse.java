@@ -0,0 +1,24 @@
+package com.kademlia.dht.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * One {@link Item} per key of the {@link FindValueBatchRequest}, in request order. Unlike
+ * FIND_VALUE, a miss carries no closest nodes: batches go to peers expected to hold the keys.
+ */
+public record FindValueBatchResponse(byte[] messageId, List<Item> items) implements RpcResponse {
+
+    /**
+     * The value inline, a {@link ValueHandle} to fetch it through when it did not fit the
+     * datagram, or neither when the peer does not have it.
+     */
+    public record Item(Optional<ByteBuffer> value, Optional<ValueHandle> handle) {
+        public static final Item MISSING = new Item(Optional.empty(), Optional.empty());
+
+        public boolean found() {
+            return value.isPresent() || handle.isPresent();
+        }
+    }
+}
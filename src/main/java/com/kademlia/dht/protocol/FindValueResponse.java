@@ -2,7 +2,19 @@ package com.kademlia.dht.protocol;
 
 import com.kademlia.dht.node.Node;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Optional;
 
-public record FindValueResponse(byte[] messageId, Optional<byte[]> value, List<Node> nodes) implements RpcResponse {}
+/**
+ * Either the value, a {@link ValueHandle} to fetch a large value through, or the closest nodes.
+ * A node answering from its storage passes the stored value as a read-only view, which the codec
+ * writes out without an intermediate copy.
+ */
+public record FindValueResponse(byte[] messageId, Optional<ByteBuffer> value, List<Node> nodes,
+                                Optional<ValueHandle> handle) implements RpcResponse {
+
+    public FindValueResponse(byte[] messageId, Optional<ByteBuffer> value, List<Node> nodes) {
+        this(messageId, value, nodes, Optional.empty());
+    }
+}
@@ -0,0 +1,36 @@
+package com.kademlia.dht.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the bytes of values this node is pulling in chunks at once, the receiving side of
+ * {@link ValueExports}'s cap. A handle's length is reserved before the pull starts and released
+ * when it ends, so forged STORE handles cannot make the node hold more than the cap in transit.
+ */
+final class ImportBudget {
+    static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final long maxBytes;
+
+    ImportBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** @return false, reserving nothing, if {@code bytes} more would exceed the cap */
+    boolean reserve(long bytes) {
+        if (reservedBytes.addAndGet(bytes) > maxBytes) {
+            reservedBytes.addAndGet(-bytes);
+            return false;
+        }
+        return true;
+    }
+
+    void release(long bytes) {
+        reservedBytes.addAndGet(-bytes);
+    }
+
+    long reservedBytes() {
+        return reservedBytes.get();
+    }
+}
@@ -2,41 +2,102 @@ package com.kademlia.dht.protocol;
 
 import com.kademlia.dht.node.Node;
 import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.routing.KBucket;
 import com.kademlia.dht.routing.RoutingTable;
+import com.kademlia.dht.storage.ByteArray;
 import com.kademlia.dht.storage.IStorage;
 import com.kademlia.dht.network.Transport;
+import com.kademlia.dht.util.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
 
 /**
  * Kademlia RPC handler: ping, store, find_node, find_value; async call methods.
+ * <p>
+ * Values larger than {@link #INLINE_VALUE_LIMIT} are not sent in one datagram. The holder
+ * exports the value and sends a {@link ValueHandle}, and the other side pulls it in
+ * {@link #CHUNK_SIZE}-byte chunks with FETCH_CHUNK. For FIND_VALUE the responder exports; for
+ * STORE the caller does and the receiver pulls before it answers.
+ * <p>
+ * Bulk traffic to one peer goes through the batch RPCs ({@link #callStoreBatch},
+ * {@link #callFindValueBatch}, {@link #callFindNodeBatch}), which pack as many items as fit in
+ * {@link #BATCH_BYTES} into each datagram and answer per item.
+ * <p>
+ * Calls wait for the contact's retransmission timeout (from its RTT history, see
+ * {@link com.kademlia.dht.routing.ContactHealth}) and are retransmitted with the same message ID
+ * up to {@link #RETRIES} times, so one lost datagram costs an RTO rather than the call.
  */
 public class KademliaProtocol {
     private static final Logger log = LoggerFactory.getLogger(KademliaProtocol.class);
     private static final AtomicInteger messageIdCounter = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+    /**
+     * Retransmissions after the first send; with backoff a call waits up to 7 RTOs before it
+     * fails, but never longer than {@link Transport#MAX_CALL_TIME}.
+     */
+    static final int RETRIES = 2;
+    /** Base deadline of a STORE whose value the receiver pulls before answering. */
+    private static final Duration LARGE_STORE_TIMEOUT = Duration.ofSeconds(5);
+
+    /** Values above this size travel as a {@link ValueHandle} and are fetched in chunks. */
+    public static final int INLINE_VALUE_LIMIT = 8 * 1024;
+    /** Chunk payload; with headers it stays under the 1280-byte IPv6 minimum MTU, so no IP fragmentation. */
+    public static final int CHUNK_SIZE = 1200;
+    /** Largest value accepted through a handle. */
+    public static final int MAX_VALUE_SIZE = 64 << 20;
+    private static final int CHUNK_WINDOW = 64;
+    /** Item payload budget of one batch request or response; about the size of a full inline value. */
+    static final int BATCH_BYTES = INLINE_VALUE_LIMIT;
+    /** Items per batch request, whatever their size. */
+    static final int MAX_BATCH_ITEMS = 256;
+    /** Targets per FIND_NODE_BATCH: each answer is up to k contacts, so few fit one response. */
+    static final int MAX_FIND_NODE_TARGETS = 8;
 
     private final Node selfNode;
     private final RoutingTable routingTable;
     private final IStorage storage;
     private final Transport transport;
     private final int ksize;
+    private final Set<NodeId> evictionPings = ConcurrentHashMap.newKeySet();
+    private final ValueExports exports = new ValueExports(CHUNK_SIZE);
+    private final ImportBudget imports;
 
     public KademliaProtocol(Node selfNode, IStorage storage, int ksize, Transport transport) {
+        this(selfNode, storage, ksize, transport, RoutingTable.DEFAULT_MAX_FAILURES);
+    }
+
+    /**
+     * @param maxContactFailures consecutive RPC failures tolerated before a contact is evicted
+     */
+    public KademliaProtocol(Node selfNode, IStorage storage, int ksize, Transport transport,
+                            int maxContactFailures) {
+        this(selfNode, storage, ksize, transport, maxContactFailures, ImportBudget.DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxImportBytes bytes of values that may be pulled through handles at once
+     */
+    KademliaProtocol(Node selfNode, IStorage storage, int ksize, Transport transport,
+                     int maxContactFailures, long maxImportBytes) {
         this.selfNode = selfNode;
-        this.routingTable = new RoutingTable(selfNode, ksize);
+        this.routingTable = new RoutingTable(selfNode, ksize, maxContactFailures);
         this.storage = storage;
         this.transport = transport;
         this.ksize = ksize;
+        this.imports = new ImportBudget(maxImportBytes);
     }
 
     public RoutingTable getRoutingTable() {
@@ -49,11 +110,20 @@ public class KademliaProtocol {
 
     public void handleRequest(RpcRequest request, InetAddress fromIp, int fromPort) {
         Node sender = new Node(request.senderId(), fromIp, fromPort);
+        routingTable.getHealth().recordHeard(sender.id());
+        if (request instanceof StoreRequest req && req.handle().isPresent()) {
+            pullAndStore(sender, req).thenAccept(response -> transport.sendResponse(response, fromIp, fromPort));
+            return;
+        }
         RpcResponse response = switch (request) {
             case PingRequest req -> handlePing(sender, req.messageId());
-            case StoreRequest req -> handleStore(sender, req.messageId(), req.key(), req.value());
+            case StoreRequest req -> handleStore(sender, req);
             case FindNodeRequest req -> handleFindNode(sender, req.messageId(), req.targetId());
             case FindValueRequest req -> handleFindValue(sender, req.messageId(), req.key());
+            case FetchChunkRequest req -> handleFetchChunk(req);
+            case StoreBatchRequest req -> handleStoreBatch(sender, req);
+            case FindNodeBatchRequest req -> handleFindNodeBatch(sender, req);
+            case FindValueBatchRequest req -> handleFindValueBatch(sender, req);
         };
         transport.sendResponse(response, fromIp, fromPort);
     }
@@ -63,11 +133,28 @@ public class KademliaProtocol {
         return new PingResponse(messageId, selfNode.id());
     }
 
-    private StoreResponse handleStore(Node sender, byte[] messageId, byte[] key, byte[] value) {
+    private StoreResponse handleStore(Node sender, StoreRequest req) {
         welcomeIfNew(sender);
-        storage.put(key, value);
+        storage.put(req.key(), req.value());
         log.debug("Stored key from {}", sender);
-        return new StoreResponse(messageId, true);
+        return new StoreResponse(req.messageId(), true);
+    }
+
+    /**
+     * Stores a value offered through a handle once it has been pulled. Returns at once, so the
+     * request thread and its admission slot are free while the chunks come in; the import
+     * budget bounds how many pulls run at a time.
+     */
+    private CompletableFuture<StoreResponse> pullAndStore(Node sender, StoreRequest req) {
+        welcomeIfNew(sender);
+        return fetchValue(sender, req.handle().get()).thenApply(value -> {
+            if (value == null) {
+                return new StoreResponse(req.messageId(), false);
+            }
+            storage.put(req.key(), value);
+            log.debug("Stored {}-byte value from {}", value.length, sender);
+            return new StoreResponse(req.messageId(), true);
+        });
     }
 
     private FindNodeResponse handleFindNode(Node sender, byte[] messageId, NodeId targetId) {
@@ -77,9 +164,20 @@ public class KademliaProtocol {
         return new FindNodeResponse(messageId, neighbors);
     }
 
-    private FindValueResponse handleFindValue(Node sender, byte[] messageId, byte[] key) {
+    /**
+     * Serves the stored value as a read-only view, so the bytes reach the codec uncopied. A large
+     * value is shared: every reader of the key gets the same transfer.
+     */
+    private RpcResponse handleFindValue(Node sender, byte[] messageId, byte[] key) {
         welcomeIfNew(sender);
-        Optional<byte[]> value = storage.get(key);
+        Optional<ByteBuffer> value = storage.view(key);
+        if (value.isPresent() && value.get().remaining() > INLINE_VALUE_LIMIT) {
+            Optional<ValueHandle> handle = exports.share(new ByteArray(key), value.get());
+            if (handle.isEmpty()) {
+                return new BusyResponse(messageId);
+            }
+            return new FindValueResponse(messageId, Optional.empty(), List.of(), handle);
+        }
         if (value.isPresent()) {
             return new FindValueResponse(messageId, value, List.of());
         }
@@ -88,26 +186,116 @@ public class KademliaProtocol {
         return new FindValueResponse(messageId, Optional.empty(), neighbors);
     }
 
+    private ChunkResponse handleFetchChunk(FetchChunkRequest req) {
+        ByteBuffer chunk = exports.chunk(req.transferId(), req.offset());
+        return chunk != null
+                ? new ChunkResponse(req.messageId(), true, req.offset(), chunk)
+                : new ChunkResponse(req.messageId(), false, req.offset(), ByteBuffer.allocate(0));
+    }
+
+    private StoreBatchResponse handleStoreBatch(Node sender, StoreBatchRequest req) {
+        welcomeIfNew(sender);
+        boolean[] stored = new boolean[req.entries().size()];
+        for (int i = 0; i < stored.length; i++) {
+            StoreBatchRequest.Entry e = req.entries().get(i);
+            storage.put(e.key(), e.value());
+            stored[i] = true;
+        }
+        log.debug("Stored {} keys from {}", stored.length, sender);
+        return new StoreBatchResponse(req.messageId(), stored);
+    }
+
+    /**
+     * Answers BUSY when asked for more targets than {@link #MAX_FIND_NODE_TARGETS}: the
+     * contacts could not all fit in one datagram.
+     */
+    private RpcResponse handleFindNodeBatch(Node sender, FindNodeBatchRequest req) {
+        welcomeIfNew(sender);
+        if (req.targets().size() > MAX_FIND_NODE_TARGETS) {
+            return new BusyResponse(req.messageId());
+        }
+        List<List<Node>> nodes = new ArrayList<>(req.targets().size());
+        for (NodeId target : req.targets()) {
+            nodes.add(routingTable.findNeighbors(new Node(target, null, 0), ksize));
+        }
+        return new FindNodeBatchResponse(req.messageId(), nodes);
+    }
+
+    /**
+     * Values go inline while the response stays within {@link #BATCH_BYTES}; the rest are
+     * exported and sent as handles, so a batch of hits never overflows the datagram.
+     */
+    private RpcResponse handleFindValueBatch(Node sender, FindValueBatchRequest req) {
+        welcomeIfNew(sender);
+        List<FindValueBatchResponse.Item> items = new ArrayList<>(req.keys().size());
+        List<ValueHandle> exported = new ArrayList<>();
+        int budget = BATCH_BYTES;
+        for (byte[] key : req.keys()) {
+            Optional<ByteBuffer> value = storage.view(key);
+            if (value.isEmpty()) {
+                items.add(FindValueBatchResponse.Item.MISSING);
+            } else if (value.get().remaining() <= Math.min(budget, INLINE_VALUE_LIMIT)) {
+                budget -= value.get().remaining();
+                items.add(new FindValueBatchResponse.Item(value, Optional.empty()));
+            } else {
+                Optional<ValueHandle> handle = exports.share(new ByteArray(key), value.get());
+                if (handle.isEmpty()) {
+                    // Other readers may hold these transfers, so only give back their pins
+                    exported.forEach(h -> exports.unpin(h.transferId()));
+                    return new BusyResponse(req.messageId());
+                }
+                exported.add(handle.get());
+                items.add(new FindValueBatchResponse.Item(Optional.empty(), handle));
+            }
+        }
+        return new FindValueBatchResponse(req.messageId(), items);
+    }
+
+    /**
+     * Called for every contact we hear from. New contacts are handed the keys they are now
+     * closest to; every contact is then added or moved to the tail of its bucket.
+     */
     private void welcomeIfNew(Node node) {
+        if (node.id().equals(selfNode.id())) {
+            return;
+        }
         if (routingTable.isNewNode(node)) {
             log.info("New node discovered: {}", node);
+            List<StoreBatchRequest.Entry> handOff = new ArrayList<>();
             for (var it = storage.iterator(); it.hasNext(); ) {
                 var entry = it.next();
-                Node keyNode = new Node(new NodeId(entry.getKey()), null, 0);
-                List<Node> neighbors = routingTable.findNeighbors(keyNode, ksize);
+                NodeId keyId = new NodeId(entry.getKey());
+                List<Node> neighbors = routingTable.findNeighbors(new Node(keyId, null, 0), ksize);
                 if (!neighbors.isEmpty()) {
-                    int lastDist = neighbors.get(neighbors.size() - 1).distanceTo(keyNode);
-                    int newNodeDist = node.distanceTo(keyNode);
-                    int thisDist = selfNode.distanceTo(keyNode);
-                    if (newNodeDist < lastDist && thisDist < neighbors.get(0).distanceTo(keyNode)) {
-                        callStore(node, entry.getKey(), entry.getValue());
+                    Node farthest = neighbors.get(neighbors.size() - 1);
+                    boolean newNodeCloser = keyId.compareDistance(node.id(), farthest.id()) < 0;
+                    boolean thisClosest = keyId.compareDistance(selfNode.id(), neighbors.get(0).id()) < 0;
+                    if (newNodeCloser && thisClosest) {
+                        handOff.add(new StoreBatchRequest.Entry(entry.getKey(), entry.getValue()));
                     }
                 }
             }
-            routingTable.addContact(node);
+            if (!handOff.isEmpty()) {
+                callStoreBatch(node, handOff);
+            }
+        }
+        Node leastRecent = routingTable.addContact(node);
+        if (leastRecent != null) {
+            pingBeforeEvict(leastRecent);
         }
     }
 
+    /**
+     * Kademlia LRU policy: a full bucket keeps its oldest contact if it still answers. A failed
+     * ping counts towards the contact's eviction; one ping per contact is in flight at a time.
+     */
+    private void pingBeforeEvict(Node leastRecent) {
+        if (!evictionPings.add(leastRecent.id())) {
+            return;
+        }
+        callPing(leastRecent).whenComplete((resp, ex) -> evictionPings.remove(leastRecent.id()));
+    }
+
     public byte[] generateMessageId() {
         int id = messageIdCounter.incrementAndGet();
         return new byte[]{
@@ -121,57 +309,281 @@ public class KademliaProtocol {
     public CompletableFuture<PingResponse> callPing(Node node) {
         byte[] msgId = generateMessageId();
         PingRequest req = new PingRequest(msgId, selfNode.id(), selfNode.ip(), selfNode.port());
-        return transport.send(req, node.ip(), node.port(), Duration.ofSeconds(5))
-                .thenApply(resp -> (PingResponse) resp)
-                .handle((resp, ex) -> handleCallResponse(resp, ex, node));
+        return call(PingResponse.class, req, node);
     }
 
     public CompletableFuture<StoreResponse> callStore(Node node, byte[] key, byte[] value) {
+        if (value.length > INLINE_VALUE_LIMIT) {
+            return callStoreLarge(node, key, value);
+        }
         byte[] msgId = generateMessageId();
         StoreRequest req = new StoreRequest(msgId, selfNode.id(), selfNode.ip(), selfNode.port(), key, value);
-        return transport.send(req, node.ip(), node.port(), Duration.ofSeconds(5))
-                .thenApply(resp -> (StoreResponse) resp)
-                .handle((resp, ex) -> handleCallResponse(resp, ex, node));
+        return call(StoreResponse.class, req, node);
+    }
+
+    /**
+     * Exports the value and sends its handle; the receiver pulls the chunks before it answers, so
+     * the deadline grows with the size (1 ms per KB on top of a fixed base). The request is not
+     * retransmitted, as a copy would start a second pull, and its reply is no RTT sample.
+     */
+    private CompletableFuture<StoreResponse> callStoreLarge(Node node, byte[] key, byte[] value) {
+        Optional<ValueHandle> handle = exports.export(Bytes.view(value));
+        if (handle.isEmpty()) {
+            log.warn("Too many values exported; not storing {} bytes at {}", value.length, node);
+            return CompletableFuture.completedFuture(null);
+        }
+        byte[] msgId = generateMessageId();
+        StoreRequest req = new StoreRequest(msgId, selfNode.id(), selfNode.ip(), selfNode.port(), key,
+                new byte[0], handle);
+        Duration timeout = LARGE_STORE_TIMEOUT.plusMillis(value.length / 1024);
+        return transport.send(req, node.ip(), node.port(), timeout)
+                .handle((resp, ex) -> handleCallResponse(StoreResponse.class, resp, ex, node, -1))
+                .whenComplete((resp, ex) -> exports.release(handle.get().transferId()));
+    }
+
+    /**
+     * Stores many values at one node: inline-sized values are packed into STORE_BATCH requests,
+     * larger ones go through {@link #callStore}. Completes with one flag per entry, false where
+     * the node did not confirm the store (including when its request failed).
+     */
+    public CompletableFuture<boolean[]> callStoreBatch(Node node, List<StoreBatchRequest.Entry> entries) {
+        boolean[] stored = new boolean[entries.size()];
+        List<CompletableFuture<?>> calls = new ArrayList<>();
+        List<Integer> small = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            StoreBatchRequest.Entry e = entries.get(i);
+            if (e.value().length > INLINE_VALUE_LIMIT) {
+                int index = i;
+                calls.add(callStore(node, e.key(), e.value())
+                        .thenAccept(resp -> stored[index] = resp != null && resp.success()));
+            } else {
+                small.add(i);
+            }
+        }
+        for (List<Integer> batch : pack(small, i -> entries.get(i).key().length + entries.get(i).value().length,
+                MAX_BATCH_ITEMS)) {
+            List<StoreBatchRequest.Entry> items = batch.stream().map(entries::get).toList();
+            StoreBatchRequest req = new StoreBatchRequest(generateMessageId(), selfNode.id(), selfNode.ip(),
+                    selfNode.port(), items);
+            calls.add(call(StoreBatchResponse.class, req, node)
+                    .thenAccept(resp -> {
+                        if (resp != null && resp.stored().length == batch.size()) {
+                            for (int j = 0; j < batch.size(); j++) {
+                                stored[batch.get(j)] = resp.stored()[j];
+                            }
+                        }
+                    }));
+        }
+        return CompletableFuture.allOf(calls.toArray(CompletableFuture[]::new)).thenApply(v -> stored);
     }
 
     public CompletableFuture<FindNodeResponse> callFindNode(Node node, NodeId targetId) {
         byte[] msgId = generateMessageId();
         FindNodeRequest req = new FindNodeRequest(msgId, selfNode.id(), selfNode.ip(), selfNode.port(), targetId);
-        return transport.send(req, node.ip(), node.port(), Duration.ofSeconds(5))
-                .thenApply(resp -> (FindNodeResponse) resp)
-                .handle((resp, ex) -> handleCallResponse(resp, ex, node));
+        return call(FindNodeResponse.class, req, node);
     }
 
     public CompletableFuture<FindValueResponse> callFindValue(Node node, byte[] key) {
         byte[] msgId = generateMessageId();
         FindValueRequest req = new FindValueRequest(msgId, selfNode.id(), selfNode.ip(), selfNode.port(), key);
-        return transport.send(req, node.ip(), node.port(), Duration.ofSeconds(5))
-                .thenApply(resp -> (FindValueResponse) resp)
-                .handle((resp, ex) -> handleCallResponse(resp, ex, node));
+        return call(FindValueResponse.class, req, node)
+                .thenCompose(resp -> resp == null || resp.handle().isEmpty()
+                        ? CompletableFuture.completedFuture(resp)
+                        : fetchValue(node, resp.handle().get()).thenApply(value -> value == null ? null
+                                : new FindValueResponse(resp.messageId(), Optional.of(ByteBuffer.wrap(value)),
+                                        List.of())));
+    }
+
+    /**
+     * Looks up many keys at one node in FIND_VALUE_BATCH requests. Completes with one entry per
+     * key: the value, or empty if the node does not have it or its request failed. Values the
+     * node sent as handles are fetched before the future completes.
+     */
+    public CompletableFuture<List<Optional<byte[]>>> callFindValueBatch(Node node, List<byte[]> keys) {
+        List<Optional<byte[]>> values = new ArrayList<>(keys.size());
+        List<Integer> indexes = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            values.add(Optional.empty());
+            indexes.add(i);
+        }
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (List<Integer> batch : pack(indexes, i -> keys.get(i).length, MAX_BATCH_ITEMS)) {
+            FindValueBatchRequest req = new FindValueBatchRequest(generateMessageId(), selfNode.id(), selfNode.ip(),
+                    selfNode.port(), batch.stream().map(keys::get).toList());
+            calls.add(call(FindValueBatchResponse.class, req, node)
+                    .thenCompose(resp -> {
+                        if (resp == null || resp.items().size() != batch.size()) {
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        List<CompletableFuture<Void>> fetches = new ArrayList<>();
+                        for (int j = 0; j < batch.size(); j++) {
+                            FindValueBatchResponse.Item item = resp.items().get(j);
+                            int index = batch.get(j);
+                            if (item.value().isPresent()) {
+                                values.set(index, item.value().map(Bytes::array));
+                            } else if (item.handle().isPresent()) {
+                                fetches.add(fetchValue(node, item.handle().get())
+                                        .thenAccept(value -> values.set(index, Optional.ofNullable(value))));
+                            }
+                        }
+                        return CompletableFuture.allOf(fetches.toArray(CompletableFuture[]::new));
+                    }));
+        }
+        // Batches only ever write their own indexes, and allOf orders those writes before the read
+        return CompletableFuture.allOf(calls.toArray(CompletableFuture[]::new)).thenApply(v -> values);
+    }
+
+    /**
+     * Asks one node for its closest contacts to each target, {@link #MAX_FIND_NODE_TARGETS} per
+     * request. Completes with one list per target, empty where the request failed.
+     */
+    public CompletableFuture<List<List<Node>>> callFindNodeBatch(Node node, List<NodeId> targets) {
+        List<List<Node>> nodes = new ArrayList<>(targets.size());
+        for (int i = 0; i < targets.size(); i++) {
+            nodes.add(List.of());
+        }
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (int from = 0; from < targets.size(); from += MAX_FIND_NODE_TARGETS) {
+            int offset = from;
+            List<NodeId> batch = targets.subList(from, Math.min(targets.size(), from + MAX_FIND_NODE_TARGETS));
+            FindNodeBatchRequest req = new FindNodeBatchRequest(generateMessageId(), selfNode.id(), selfNode.ip(),
+                    selfNode.port(), List.copyOf(batch));
+            calls.add(call(FindNodeBatchResponse.class, req, node)
+                    .thenAccept(resp -> {
+                        if (resp != null && resp.nodes().size() == batch.size()) {
+                            for (int j = 0; j < batch.size(); j++) {
+                                nodes.set(offset + j, resp.nodes().get(j));
+                            }
+                        }
+                    }));
+        }
+        return CompletableFuture.allOf(calls.toArray(CompletableFuture[]::new)).thenApply(v -> nodes);
+    }
+
+    /**
+     * Splits {@code items} into consecutive runs of at most {@code maxItems} whose sizes add up
+     * to at most {@link #BATCH_BYTES}; an item too big on its own gets a run to itself.
+     */
+    static <T> List<List<T>> pack(List<T> items, ToIntFunction<T> size, int maxItems) {
+        List<List<T>> batches = new ArrayList<>();
+        int start = 0;
+        int bytes = 0;
+        for (int i = 0; i < items.size(); i++) {
+            int s = size.applyAsInt(items.get(i));
+            if (i > start && (bytes + s > BATCH_BYTES || i - start == maxItems)) {
+                batches.add(items.subList(start, i));
+                start = i;
+                bytes = 0;
+            }
+            bytes += s;
+        }
+        if (start < items.size()) {
+            batches.add(items.subList(start, items.size()));
+        }
+        return batches;
+    }
+
+    public CompletableFuture<ChunkResponse> callFetchChunk(Node node, int transferId, int offset) {
+        byte[] msgId = generateMessageId();
+        FetchChunkRequest req = new FetchChunkRequest(msgId, selfNode.id(), selfNode.ip(), selfNode.port(),
+                transferId, offset);
+        return call(ChunkResponse.class, req, node);
+    }
+
+    /**
+     * Pulls a value exported by {@code node}. Completes with null if the handle is too large,
+     * the pulls already under way have used up the import budget, or the transfer fails.
+     */
+    private CompletableFuture<byte[]> fetchValue(Node node, ValueHandle handle) {
+        int length = handle.length();
+        if (length < 0 || length > MAX_VALUE_SIZE) {
+            log.warn("Refusing {}-byte value from {}", length, node);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!imports.reserve(length)) {
+            log.debug("Import budget exhausted; refusing {}-byte value from {}", length, node);
+            return CompletableFuture.completedFuture(null);
+        }
+        return new ChunkedFetch(length, CHUNK_SIZE, CHUNK_WINDOW,
+                offset -> callFetchChunk(node, handle.transferId(), offset))
+                .start()
+                .whenComplete((value, ex) -> imports.release(length))
+                .exceptionally(ex -> {
+                    log.debug("Fetching value from {} failed: {}", node, ex.getMessage());
+                    return null;
+                });
     }
 
-    private <T> T handleCallResponse(T response, Throwable ex, Node node) {
-        if (ex != null) {
-            log.warn("No response from {}, removing from router", node);
-            routingTable.removeContact(node);
+    /** Bytes reserved by pulls under way. */
+    long importingBytes() {
+        return imports.reservedBytes();
+    }
+
+    /** Bytes pinned by values this node is serving in chunks. */
+    long exportedBytes() {
+        return exports.pinnedBytes();
+    }
+
+    /**
+     * Sends {@code req} with the contact's RTO and {@link #RETRIES} retransmissions. An answer
+     * that arrives after the first RTO may be to a retransmitted copy, so it gives no RTT sample
+     * (Karn's algorithm) and backs the contact's RTO off instead.
+     */
+    private <T extends RpcResponse> CompletableFuture<T> call(Class<T> type, RpcRequest req, Node node) {
+        Duration rto = routingTable.getHealth().rto(node.id());
+        routingTable.getHealth().recordSent(node.id());
+        long start = System.nanoTime();
+        return transport.send(req, node.ip(), node.port(), rto, RETRIES)
+                .handle((resp, ex) -> {
+                    long elapsed = System.nanoTime() - start;
+                    boolean ambiguous = elapsed >= rto.toNanos();
+                    // A PING answer names the contact, which matters when we only knew its address
+                    Node from = resp instanceof PingResponse p ? new Node(p.nodeId(), node.ip(), node.port()) : node;
+                    T result = handleCallResponse(type, resp, ex, from, ambiguous ? -1 : elapsed);
+                    if (result != null && ambiguous) {
+                        routingTable.getHealth().backOffRto(from.id());
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * Returns the response, or null if the call failed or the peer answered BUSY. A busy peer is
+     * alive, so it is only marked as heard: no failure, and no RTT sample from the cheap reply.
+     *
+     * @param rttNanos RTT sample for a successful call, or -1 if the call gives none
+     */
+    private <T extends RpcResponse> T handleCallResponse(Class<T> type, RpcResponse response, Throwable ex,
+                                                         Node node, long rttNanos) {
+        if (response instanceof BusyResponse) {
+            log.debug("{} is busy, trying elsewhere", node);
+            routingTable.getHealth().recordHeard(node.id());
             return null;
         }
-        if (response != null) {
-            welcomeIfNew(node);
+        if (ex != null || !type.isInstance(response)) {
+            log.debug("No response from {}, recording failure", node);
+            routingTable.recordFailure(node);
+            return null;
         }
-        return response;
+        routingTable.getHealth().recordSuccess(node.id(), rttNanos);
+        welcomeIfNew(node);
+        return type.cast(response);
     }
 
     /**
-     * Returns node IDs for buckets that need refresh (e.g. not updated recently).
+     * Returns one random ID inside each bucket not updated within {@code staleAfter}, stalest
+     * first and at most {@code max} of them. The chosen buckets are marked refreshed so the next
+     * call moves on to other buckets while these lookups run.
      */
-    public List<NodeId> getRefreshIds() {
+    public List<NodeId> getRefreshIds(Duration staleAfter, int max) {
         List<NodeId> ids = new ArrayList<>();
         Random rnd = ThreadLocalRandom.current();
-        for (int i = 0; i < 5; i++) {
-            byte[] id = new byte[20];
-            rnd.nextBytes(id);
-            ids.add(new NodeId(id));
+        for (KBucket bucket : routingTable.getStaleBuckets(staleAfter.toNanos())) {
+            if (ids.size() >= max) {
+                break;
+            }
+            bucket.markRefreshed();
+            ids.add(bucket.randomId(rnd));
         }
         return ids;
     }
@@ -2,164 +2,628 @@ package com.kademlia.dht.protocol;
 
 import com.kademlia.dht.node.Node;
 import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.node.NodeList;
+import com.kademlia.dht.util.Bytes;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
 /**
  * Binary serialization for RPC messages. Format: [type:1][messageId:4][payload...]
+ * <p>
+ * Peers that advertise {@link #CAP_COMPACT} get the smaller {@link CompactCodec} format instead.
+ * A legacy message is followed by one byte of the sender's capability bits, which decoders that
+ * predate it ignore; {@link #peerCapabilities} reads it back so the transport knows which format
+ * to answer in. Decoding accepts both formats.
+ * <p>
+ * A large value travels as a {@link ValueHandle} instead: in STORE a value length of -1 is
+ * followed by [transferId:4][length:4], and FIND_VALUE_RESPONSE uses flag 2 with the same fields.
+ * <p>
+ * Batch messages carry [count:4] and then the items of the single-key message back to back;
+ * STORE_BATCH_RESPONSE packs its flags eight to a byte, and a FIND_VALUE_BATCH_RESPONSE item is
+ * a flag (0 missing, 1 inline, 2 handle) followed by the value or handle.
+ * <p>
+ * The {@link ByteBuffer} methods read and write at the buffer's position, so a transport can
+ * decode straight from its receive buffer and encode into a pooled one; {@link #encodedSize}
+ * gives the exact length up front. Encoding allocates nothing beyond what an {@link InetAddress}
+ * hands out for its bytes. Decoding allocates a fixed handful of objects per message: node lists
+ * come back as a {@link NodeList} holding a copy of their wire bytes, so a FIND_NODE_RESPONSE
+ * costs the response, its message ID, the list and one array, whatever the contact count.
  */
 public class MessageCodec {
 
-    private static final int NODE_ID_LEN = 20;
     private static final int MESSAGE_ID_LEN = 4;
     private static final int IPV4_LEN = 4;
+    private static final int NODE_LEN = NodeList.ENTRY_BYTES;
+    private static final int HEADER_LEN = 1 + MESSAGE_ID_LEN;
+    private static final int SENDER_LEN = NodeId.SIZE_BYTES + IPV4_LEN + 2;
+    private static final int HANDLE_LEN = 8;
+    private static final int HANDLE_MARKER = -1;
+    static final byte VALUE_NODES = 0;
+    static final byte ITEM_MISSING = 0;
+    static final byte VALUE_INLINE = 1;
+    static final byte VALUE_HANDLE = 2;
 
+    /** Capability bit: the peer decodes {@link CompactCodec} messages. */
+    public static final int CAP_COMPACT = 0x01;
+
+    private final int capabilities;
+
+    /** A codec that advertises, and speaks, every format it knows. */
+    public MessageCodec() {
+        this(CAP_COMPACT);
+    }
+
+    /**
+     * @param capabilities capability bits this side advertises; 0 for a legacy-only codec
+     */
+    public MessageCodec(int capabilities) {
+        if ((capabilities & ~0xFF) != 0) {
+            throw new IllegalArgumentException("capabilities must fit in one byte");
+        }
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * Capability bits the sender of the message starting at {@code buf[start]} advertised: a
+     * compact message implies {@link #CAP_COMPACT}; a legacy one carries its bits in one byte
+     * after the message, which old decoders never read. Call after {@link #decode}, with the
+     * buffer's position at the end of the decoded message and its limit at the end of the datagram.
+     */
+    public static int peerCapabilities(ByteBuffer buf, int start) {
+        if (CompactCodec.isCompact(buf, start)) {
+            return CAP_COMPACT;
+        }
+        return buf.hasRemaining() ? buf.get(buf.position()) & 0xFF : 0;
+    }
+
+    /**
+     * The message ID as the big-endian int {@link KademliaProtocol#generateMessageId} packed.
+     */
+    public static int messageId(RpcMessage msg) {
+        byte[] id = msg.messageId();
+        int v = 0;
+        for (int i = 0; i < MESSAGE_ID_LEN && i < id.length; i++) {
+            v = (v << 8) | (id[i] & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+     * Encodes {@code msg} in the legacy format, without a capability byte, into an array of
+     * exactly {@link #encodedSize} bytes.
+     */
     public byte[] encode(RpcMessage msg) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(encodedSize(msg));
+        encode(msg, buf);
+        return buf.array();
+    }
+
+    /**
+     * Encodes {@code msg} for a peer with capability bits {@code peerCaps} into an array of
+     * exactly {@link #encodedSize(RpcMessage, int)} bytes.
+     */
+    public byte[] encode(RpcMessage msg, int peerCaps) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(encodedSize(msg, peerCaps));
+        encode(msg, buf, peerCaps);
+        return buf.array();
+    }
+
+    /**
+     * Exact number of bytes {@link #encode} writes for {@code msg} in the legacy format, so a
+     * caller can size or check a buffer up front.
+     */
+    public int encodedSize(RpcMessage msg) {
+        return legacySize(msg);
+    }
+
+    /**
+     * Exact number of bytes {@link #encode(RpcMessage, ByteBuffer, int)} writes for {@code msg}.
+     */
+    public int encodedSize(RpcMessage msg, int peerCaps) {
+        if (compact(peerCaps)) {
+            return CompactCodec.encodedSize(msg);
+        }
+        return legacySize(msg) + (capabilities != 0 ? 1 : 0);
+    }
+
+    private boolean compact(int peerCaps) {
+        return (capabilities & peerCaps & CAP_COMPACT) != 0;
+    }
+
+    private static int legacySize(RpcMessage msg) {
+        int size = HEADER_LEN;
         if (msg instanceof RpcRequest req) {
-            return encodeRequest(req);
+            size += SENDER_LEN;
+            size += switch (req) {
+                case PingRequest r -> 0;
+                case StoreRequest r -> 4 + r.key().length
+                        + (r.handle().isPresent() ? 4 + HANDLE_LEN : 4 + r.value().length);
+                case FindNodeRequest r -> NodeId.SIZE_BYTES;
+                case FindValueRequest r -> 4 + r.key().length;
+                case FetchChunkRequest r -> 8;
+                case StoreBatchRequest r -> {
+                    int n = 4;
+                    for (StoreBatchRequest.Entry e : r.entries()) {
+                        n += 8 + e.key().length + e.value().length;
+                    }
+                    yield n;
+                }
+                case FindNodeBatchRequest r -> 4 + r.targets().size() * NodeId.SIZE_BYTES;
+                case FindValueBatchRequest r -> {
+                    int n = 4;
+                    for (byte[] key : r.keys()) {
+                        n += 4 + key.length;
+                    }
+                    yield n;
+                }
+            };
+            return size;
+        }
+        return size + switch ((RpcResponse) msg) {
+            case PingResponse r -> NodeId.SIZE_BYTES;
+            case StoreResponse r -> 1;
+            case FindNodeResponse r -> 4 + r.nodes().size() * NODE_LEN;
+            case FindValueResponse r -> 1 + (r.value().isPresent() ? 4 + r.value().get().remaining()
+                    : r.handle().isPresent() ? HANDLE_LEN
+                    : 4 + r.nodes().size() * NODE_LEN);
+            case ChunkResponse r -> 1 + (r.found() ? 8 + r.data().remaining() : 0);
+            case BusyResponse r -> 0;
+            case StoreBatchResponse r -> 4 + (r.stored().length + 7) / 8;
+            case FindNodeBatchResponse r -> {
+                int n = 4;
+                for (List<Node> nodes : r.nodes()) {
+                    n += 4 + nodes.size() * NODE_LEN;
+                }
+                yield n;
+            }
+            case FindValueBatchResponse r -> {
+                int n = 4;
+                for (FindValueBatchResponse.Item item : r.items()) {
+                    n += 1 + (item.value().isPresent() ? 4 + item.value().get().remaining()
+                            : item.handle().isPresent() ? HANDLE_LEN : 0);
+                }
+                yield n;
+            }
+        };
+    }
+
+    static MessageType responseType(RpcResponse msg) {
+        return switch (msg) {
+            case PingResponse r -> MessageType.PING_RESPONSE;
+            case StoreResponse r -> MessageType.STORE_RESPONSE;
+            case FindNodeResponse r -> MessageType.FIND_NODE_RESPONSE;
+            case FindValueResponse r -> MessageType.FIND_VALUE_RESPONSE;
+            case ChunkResponse r -> MessageType.CHUNK_RESPONSE;
+            case BusyResponse r -> MessageType.BUSY;
+            case StoreBatchResponse r -> MessageType.STORE_BATCH_RESPONSE;
+            case FindNodeBatchResponse r -> MessageType.FIND_NODE_BATCH_RESPONSE;
+            case FindValueBatchResponse r -> MessageType.FIND_VALUE_BATCH_RESPONSE;
+        };
+    }
+
+    /**
+     * Encodes {@code msg} in the legacy format, without a capability byte, at the buffer's
+     * position, advancing it.
+     *
+     * @throws IOException if the message does not fit in the remaining space
+     */
+    public void encode(RpcMessage msg, ByteBuffer buf) throws IOException {
+        try {
+            encodeLegacy(msg, buf);
+        } catch (BufferOverflowException e) {
+            throw new IOException("Message does not fit in " + buf.capacity() + " bytes", e);
+        }
+    }
+
+    /**
+     * Encodes {@code msg} at the buffer's position, advancing it: compact if both this codec and
+     * the peer ({@code peerCaps}) have {@link #CAP_COMPACT}, otherwise legacy followed by this
+     * codec's capability byte so the peer can pick compact for its next message.
+     *
+     * @throws IOException if the message does not fit in the remaining space or in the format
+     */
+    public void encode(RpcMessage msg, ByteBuffer buf, int peerCaps) throws IOException {
+        try {
+            if (compact(peerCaps)) {
+                CompactCodec.encode(msg, buf);
+                return;
+            }
+            encodeLegacy(msg, buf);
+            if (capabilities != 0) {
+                buf.put((byte) capabilities);
+            }
+        } catch (BufferOverflowException e) {
+            throw new IOException("Message does not fit in " + buf.capacity() + " bytes", e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Cannot encode " + msg.getClass().getSimpleName(), e);
+        }
+    }
+
+    private void encodeLegacy(RpcMessage msg, ByteBuffer buf) {
+        if (msg instanceof RpcRequest req) {
+            encodeRequest(req, buf);
+        } else {
+            encodeResponse((RpcResponse) msg, buf);
         }
-        return encodeResponse((RpcResponse) msg);
     }
 
-    private byte[] encodeRequest(RpcRequest msg) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeByte(msg.type().getCode());
-        writeMessageId(dos, msg.messageId());
+    private void encodeRequest(RpcRequest msg, ByteBuffer buf) {
+        buf.put(msg.type().getCode());
+        writeMessageId(buf, msg.messageId());
+        writeSender(buf, msg.senderId(), msg.senderIp(), msg.senderPort());
         switch (msg) {
-            case PingRequest req -> writeSender(dos, req.senderId(), req.senderIp(), req.senderPort());
+            case PingRequest req -> {
+            }
             case StoreRequest req -> {
-                writeSender(dos, req.senderId(), req.senderIp(), req.senderPort());
-                dos.writeInt(req.key().length);
-                dos.write(req.key());
-                dos.writeInt(req.value().length);
-                dos.write(req.value());
+                buf.putInt(req.key().length).put(req.key());
+                if (req.handle().isPresent()) {
+                    buf.putInt(HANDLE_MARKER);
+                    writeHandle(buf, req.handle().get());
+                } else {
+                    buf.putInt(req.value().length).put(req.value());
+                }
+            }
+            case FindNodeRequest req -> req.targetId().writeTo(buf);
+            case FindValueRequest req -> buf.putInt(req.key().length).put(req.key());
+            case FetchChunkRequest req -> buf.putInt(req.transferId()).putInt(req.offset());
+            case StoreBatchRequest req -> {
+                buf.putInt(req.entries().size());
+                for (StoreBatchRequest.Entry e : req.entries()) {
+                    buf.putInt(e.key().length).put(e.key());
+                    buf.putInt(e.value().length).put(e.value());
+                }
             }
-            case FindNodeRequest req -> {
-                writeSender(dos, req.senderId(), req.senderIp(), req.senderPort());
-                dos.write(req.targetId().getBytes());
+            case FindNodeBatchRequest req -> {
+                buf.putInt(req.targets().size());
+                for (NodeId target : req.targets()) {
+                    target.writeTo(buf);
+                }
             }
-            case FindValueRequest req -> {
-                writeSender(dos, req.senderId(), req.senderIp(), req.senderPort());
-                dos.writeInt(req.key().length);
-                dos.write(req.key());
+            case FindValueBatchRequest req -> {
+                buf.putInt(req.keys().size());
+                for (byte[] key : req.keys()) {
+                    buf.putInt(key.length).put(key);
+                }
             }
         }
-        return baos.toByteArray();
     }
 
-    private byte[] encodeResponse(RpcResponse msg) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeByte(msg instanceof PingResponse ? MessageType.PING_RESPONSE.getCode()
-                : msg instanceof StoreResponse ? MessageType.STORE_RESPONSE.getCode()
-                : msg instanceof FindNodeResponse ? MessageType.FIND_NODE_RESPONSE.getCode()
-                : MessageType.FIND_VALUE_RESPONSE.getCode());
-        writeMessageId(dos, msg.messageId());
+    private void encodeResponse(RpcResponse msg, ByteBuffer buf) {
+        buf.put(responseType(msg).getCode());
+        writeMessageId(buf, msg.messageId());
         switch (msg) {
-            case PingResponse r -> dos.write(r.nodeId().getBytes());
-            case StoreResponse r -> dos.writeBoolean(r.success());
-            case FindNodeResponse r -> {
-                dos.writeInt(r.nodes().size());
-                for (Node n : r.nodes()) {
-                    writeNode(dos, n);
-                }
-            }
+            case PingResponse r -> r.nodeId().writeTo(buf);
+            case StoreResponse r -> buf.put((byte) (r.success() ? 1 : 0));
+            case FindNodeResponse r -> writeNodeList(buf, r.nodes());
             case FindValueResponse r -> {
                 if (r.value().isPresent()) {
-                    dos.writeBoolean(true);
-                    byte[] v = r.value().get();
-                    dos.writeInt(v.length);
-                    dos.write(v);
+                    buf.put(VALUE_INLINE);
+                    writeBytes(buf, r.value().get());
+                } else if (r.handle().isPresent()) {
+                    buf.put(VALUE_HANDLE);
+                    writeHandle(buf, r.handle().get());
                 } else {
-                    dos.writeBoolean(false);
-                    dos.writeInt(r.nodes().size());
-                    for (Node n : r.nodes()) {
-                        writeNode(dos, n);
+                    buf.put(VALUE_NODES);
+                    writeNodeList(buf, r.nodes());
+                }
+            }
+            case ChunkResponse r -> {
+                buf.put((byte) (r.found() ? 1 : 0));
+                if (r.found()) {
+                    buf.putInt(r.offset());
+                    writeBytes(buf, r.data());
+                }
+            }
+            case BusyResponse r -> {
+            }
+            case StoreBatchResponse r -> {
+                buf.putInt(r.stored().length);
+                writeFlags(buf, r.stored());
+            }
+            case FindNodeBatchResponse r -> {
+                buf.putInt(r.nodes().size());
+                for (List<Node> nodes : r.nodes()) {
+                    writeNodeList(buf, nodes);
+                }
+            }
+            case FindValueBatchResponse r -> {
+                buf.putInt(r.items().size());
+                for (FindValueBatchResponse.Item item : r.items()) {
+                    if (item.value().isPresent()) {
+                        buf.put(VALUE_INLINE);
+                        writeBytes(buf, item.value().get());
+                    } else if (item.handle().isPresent()) {
+                        buf.put(VALUE_HANDLE);
+                        writeHandle(buf, item.handle().get());
+                    } else {
+                        buf.put(ITEM_MISSING);
                     }
                 }
             }
         }
-        return baos.toByteArray();
     }
 
     public RpcMessage decode(byte[] data) throws IOException {
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-        MessageType type = MessageType.fromCode(dis.readByte());
-        byte[] msgId = readMessageId(dis);
-        return (RpcMessage) switch (type) {
-            case PING -> new PingRequest(msgId, readNodeId(dis), readInetAddress(dis), dis.readUnsignedShort());
-            case STORE -> new StoreRequest(msgId, readNodeId(dis), readInetAddress(dis), dis.readUnsignedShort(),
-                    readBytes(dis, dis.readInt()), readBytes(dis, dis.readInt()));
-            case FIND_NODE -> new FindNodeRequest(msgId, readNodeId(dis), readInetAddress(dis), dis.readUnsignedShort(),
-                    readNodeId(dis));
-            case FIND_VALUE -> new FindValueRequest(msgId, readNodeId(dis), readInetAddress(dis), dis.readUnsignedShort(),
-                    readBytes(dis, dis.readInt()));
-            case PING_RESPONSE -> new PingResponse(msgId, new NodeId(dis.readNBytes(NODE_ID_LEN)));
-            case STORE_RESPONSE -> new StoreResponse(msgId, dis.readBoolean());
-            case FIND_NODE_RESPONSE -> new FindNodeResponse(msgId, readNodeList(dis));
-            case FIND_VALUE_RESPONSE -> {
-                boolean hasValue = dis.readBoolean();
-                if (hasValue) {
-                    yield new FindValueResponse(msgId, Optional.of(readBytes(dis, dis.readInt())), List.of());
-                } else {
-                    yield new FindValueResponse(msgId, Optional.empty(), readNodeList(dis));
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Decodes one message from the buffer's position, advancing the position. A compact request
+     * carries no sender address, so its address and port come back null and 0; use
+     * {@link #decode(ByteBuffer, InetAddress, int)} when the datagram's source is known.
+     *
+     * @throws IOException if the message is truncated or malformed
+     */
+    public RpcMessage decode(ByteBuffer buf) throws IOException {
+        return decode(buf, null, 0);
+    }
+
+    /**
+     * Decodes one message in either format from the buffer's position, advancing the position.
+     *
+     * @param fromIp   source of the datagram, taken as the sender address of a compact request
+     * @param fromPort source port of the datagram
+     * @throws IOException if the message is truncated or malformed
+     */
+    public RpcMessage decode(ByteBuffer buf, InetAddress fromIp, int fromPort) throws IOException {
+        try {
+            if (buf.hasRemaining() && CompactCodec.isCompact(buf, buf.position())) {
+                return CompactCodec.decode(buf, fromIp, fromPort);
+            }
+            MessageType type = MessageType.fromCode(buf.get());
+            byte[] msgId = readMessageId(buf);
+            return switch (type) {
+                case PING -> new PingRequest(msgId, NodeId.readFrom(buf), readInetAddress(buf), readPort(buf));
+                case STORE -> readStore(msgId, buf);
+                case FIND_NODE -> new FindNodeRequest(msgId, NodeId.readFrom(buf), readInetAddress(buf),
+                        readPort(buf), NodeId.readFrom(buf));
+                case FIND_VALUE -> new FindValueRequest(msgId, NodeId.readFrom(buf), readInetAddress(buf),
+                        readPort(buf), readBytes(buf));
+                case FETCH_CHUNK -> new FetchChunkRequest(msgId, NodeId.readFrom(buf), readInetAddress(buf),
+                        readPort(buf), buf.getInt(), buf.getInt());
+                case PING_RESPONSE -> new PingResponse(msgId, NodeId.readFrom(buf));
+                case STORE_RESPONSE -> new StoreResponse(msgId, buf.get() != 0);
+                case FIND_NODE_RESPONSE -> new FindNodeResponse(msgId, readNodeList(buf));
+                case FIND_VALUE_RESPONSE -> readFindValueResponse(msgId, buf);
+                case CHUNK_RESPONSE -> buf.get() != 0
+                        ? new ChunkResponse(msgId, true, buf.getInt(), readView(buf))
+                        : new ChunkResponse(msgId, false, 0, ByteBuffer.allocate(0));
+                case BUSY -> new BusyResponse(msgId);
+                case STORE_BATCH -> readStoreBatch(msgId, buf);
+                case FIND_NODE_BATCH -> readFindNodeBatch(msgId, buf);
+                case FIND_VALUE_BATCH -> readFindValueBatch(msgId, buf);
+                case STORE_BATCH_RESPONSE -> {
+                    int n = readCount(buf, 0);
+                    yield new StoreBatchResponse(msgId, readFlags(buf, n));
                 }
+                case FIND_NODE_BATCH_RESPONSE -> {
+                    int n = readCount(buf, 4);
+                    List<List<Node>> lists = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        lists.add(readNodeList(buf));
+                    }
+                    yield new FindNodeBatchResponse(msgId, lists);
+                }
+                case FIND_VALUE_BATCH_RESPONSE -> readFindValueBatchResponse(msgId, buf);
+            };
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed message", e);
+        }
+    }
+
+    private static StoreRequest readStore(byte[] msgId, ByteBuffer buf) throws IOException {
+        NodeId senderId = NodeId.readFrom(buf);
+        InetAddress senderIp = readInetAddress(buf);
+        int senderPort = readPort(buf);
+        byte[] key = readBytes(buf);
+        buf.mark();
+        if (buf.getInt() == HANDLE_MARKER) {
+            return new StoreRequest(msgId, senderId, senderIp, senderPort, key, new byte[0],
+                    Optional.of(readHandle(buf)));
+        }
+        buf.reset();
+        return new StoreRequest(msgId, senderId, senderIp, senderPort, key, readBytes(buf));
+    }
+
+    private static StoreBatchRequest readStoreBatch(byte[] msgId, ByteBuffer buf) throws IOException {
+        NodeId senderId = NodeId.readFrom(buf);
+        InetAddress senderIp = readInetAddress(buf);
+        int senderPort = readPort(buf);
+        int n = readCount(buf, 8);
+        List<StoreBatchRequest.Entry> entries = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            entries.add(new StoreBatchRequest.Entry(readBytes(buf), readBytes(buf)));
+        }
+        return new StoreBatchRequest(msgId, senderId, senderIp, senderPort, entries);
+    }
+
+    private static FindNodeBatchRequest readFindNodeBatch(byte[] msgId, ByteBuffer buf) throws IOException {
+        NodeId senderId = NodeId.readFrom(buf);
+        InetAddress senderIp = readInetAddress(buf);
+        int senderPort = readPort(buf);
+        int n = readCount(buf, NodeId.SIZE_BYTES);
+        List<NodeId> targets = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            targets.add(NodeId.readFrom(buf));
+        }
+        return new FindNodeBatchRequest(msgId, senderId, senderIp, senderPort, targets);
+    }
+
+    private static FindValueBatchRequest readFindValueBatch(byte[] msgId, ByteBuffer buf) throws IOException {
+        NodeId senderId = NodeId.readFrom(buf);
+        InetAddress senderIp = readInetAddress(buf);
+        int senderPort = readPort(buf);
+        int n = readCount(buf, 4);
+        List<byte[]> keys = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            keys.add(readBytes(buf));
+        }
+        return new FindValueBatchRequest(msgId, senderId, senderIp, senderPort, keys);
+    }
+
+    private static FindValueBatchResponse readFindValueBatchResponse(byte[] msgId, ByteBuffer buf) throws IOException {
+        int n = readCount(buf, 1);
+        List<FindValueBatchResponse.Item> items = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            items.add(switch (buf.get()) {
+                case ITEM_MISSING -> FindValueBatchResponse.Item.MISSING;
+                case VALUE_INLINE -> new FindValueBatchResponse.Item(Optional.of(readView(buf)), Optional.empty());
+                case VALUE_HANDLE -> new FindValueBatchResponse.Item(Optional.empty(), Optional.of(readHandle(buf)));
+                default -> throw new IOException("Invalid FIND_VALUE_BATCH_RESPONSE flag");
+            });
+        }
+        return new FindValueBatchResponse(msgId, items);
+    }
+
+    /**
+     * Reads an item count, rejecting one that could not fit in the rest of the message given
+     * that each item takes at least {@code minItemBytes}.
+     */
+    private static int readCount(ByteBuffer buf, int minItemBytes) throws IOException {
+        int n = buf.getInt();
+        if (n < 0 || (minItemBytes > 0 ? n > buf.remaining() / minItemBytes : n > buf.remaining() * 8)) {
+            throw new IOException("Invalid item count " + n);
+        }
+        return n;
+    }
+
+    /** Packs {@code flags} eight to a byte, first flag in the low bit. */
+    static void writeFlags(ByteBuffer buf, boolean[] flags) {
+        for (int i = 0; i < flags.length; i += 8) {
+            int b = 0;
+            for (int j = 0; j < 8 && i + j < flags.length; j++) {
+                b |= flags[i + j] ? 1 << j : 0;
+            }
+            buf.put((byte) b);
+        }
+    }
+
+    static boolean[] readFlags(ByteBuffer buf, int count) {
+        boolean[] flags = new boolean[count];
+        for (int i = 0; i < count; i += 8) {
+            int b = buf.get();
+            for (int j = 0; j < 8 && i + j < count; j++) {
+                flags[i + j] = (b & (1 << j)) != 0;
             }
+        }
+        return flags;
+    }
+
+    private static FindValueResponse readFindValueResponse(byte[] msgId, ByteBuffer buf) throws IOException {
+        return switch (buf.get()) {
+            case VALUE_NODES -> new FindValueResponse(msgId, Optional.empty(), readNodeList(buf));
+            case VALUE_INLINE -> new FindValueResponse(msgId, Optional.of(readView(buf)), List.of());
+            case VALUE_HANDLE -> new FindValueResponse(msgId, Optional.empty(), List.of(),
+                    Optional.of(readHandle(buf)));
+            default -> throw new IOException("Invalid FIND_VALUE_RESPONSE flag");
         };
     }
 
-    private static void writeMessageId(DataOutputStream dos, byte[] messageId) throws IOException {
-        dos.write(messageId.length >= MESSAGE_ID_LEN ? messageId : pad(messageId, MESSAGE_ID_LEN));
+    private static ValueHandle readHandle(ByteBuffer buf) throws IOException {
+        int transferId = buf.getInt();
+        int length = buf.getInt();
+        if (length < 0) {
+            throw new IOException("Invalid value length " + length);
+        }
+        return new ValueHandle(transferId, length);
     }
 
-    private static byte[] readMessageId(DataInputStream dis) throws IOException {
-        return dis.readNBytes(MESSAGE_ID_LEN);
+    private static void writeHandle(ByteBuffer buf, ValueHandle handle) {
+        buf.putInt(handle.transferId()).putInt(handle.length());
     }
 
-    private static void writeSender(DataOutputStream dos, NodeId senderId, InetAddress senderIp, int senderPort) throws IOException {
-        dos.write(senderId.getBytes());
-        dos.write(senderIp.getAddress().length >= IPV4_LEN ? senderIp.getAddress() : pad(senderIp.getAddress(), IPV4_LEN));
-        dos.writeShort(senderPort & 0xFFFF);
+    static void writeMessageId(ByteBuffer buf, byte[] messageId) {
+        buf.put(messageId.length >= MESSAGE_ID_LEN ? messageId : pad(messageId, MESSAGE_ID_LEN), 0, MESSAGE_ID_LEN);
     }
 
-    private static void writeNode(DataOutputStream dos, Node node) throws IOException {
-        dos.write(node.id().getBytes());
-        byte[] addr = node.ip().getAddress();
-        dos.write(addr.length >= IPV4_LEN ? addr : pad(addr, IPV4_LEN));
-        dos.writeShort(node.port() & 0xFFFF);
+    private static void writeSender(ByteBuffer buf, NodeId senderId, InetAddress senderIp, int senderPort) {
+        senderId.writeTo(buf);
+        writeAddress(buf, senderIp, senderPort);
     }
 
-    private static NodeId readNodeId(DataInputStream dis) throws IOException {
-        return new NodeId(dis.readNBytes(NODE_ID_LEN));
+    private static void writeAddress(ByteBuffer buf, InetAddress ip, int port) {
+        buf.putInt(ipv4(ip));
+        buf.putShort((short) port);
     }
 
-    private static InetAddress readInetAddress(DataInputStream dis) throws IOException {
-        return InetAddress.getByAddress(dis.readNBytes(IPV4_LEN));
+    /**
+     * The four address bytes both wire formats carry: an IPv4 address as is, otherwise the
+     * first four bytes. Every encoder goes through this so a contact decodes to the same address
+     * whichever format was negotiated.
+     */
+    public static int ipv4(InetAddress ip) {
+        byte[] addr = ip.getAddress();
+        int v = 0;
+        for (int i = 0; i < IPV4_LEN; i++) {
+            v = (v << 8) | (i < addr.length ? addr[i] & 0xFF : 0);
+        }
+        return v;
     }
 
-    private static byte[] readBytes(DataInputStream dis, int len) throws IOException {
-        return dis.readNBytes(len);
+    private static void writeNodeList(ByteBuffer buf, List<Node> nodes) {
+        buf.putInt(nodes.size());
+        if (nodes instanceof NodeList view) {
+            view.writeTo(buf);
+            return;
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            Node n = nodes.get(i);
+            n.id().writeTo(buf);
+            writeAddress(buf, n.ip(), n.port());
+        }
     }
 
-    private static List<Node> readNodeList(DataInputStream dis) throws IOException {
-        int n = dis.readInt();
-        List<Node> list = new ArrayList<>(n);
-        for (int i = 0; i < n; i++) {
-            NodeId id = new NodeId(dis.readNBytes(NODE_ID_LEN));
-            InetAddress ip = readInetAddress(dis);
-            int port = dis.readUnsignedShort();
-            list.add(new Node(id, ip, port));
+    static byte[] readMessageId(ByteBuffer buf) {
+        byte[] id = new byte[MESSAGE_ID_LEN];
+        buf.get(id);
+        return id;
+    }
+
+    private static InetAddress readInetAddress(ByteBuffer buf) throws IOException {
+        byte[] addr = new byte[IPV4_LEN];
+        buf.get(addr);
+        return InetAddress.getByAddress(addr);
+    }
+
+    private static int readPort(ByteBuffer buf) {
+        return buf.getShort() & 0xFFFF;
+    }
+
+    /** Writes {@code [length:4]} and the remaining bytes of a value view, leaving its position alone. */
+    private static void writeBytes(ByteBuffer buf, ByteBuffer value) {
+        buf.putInt(value.remaining());
+        Bytes.put(buf, value);
+    }
+
+    private static byte[] readBytes(ByteBuffer buf) throws IOException {
+        int len = buf.getInt();
+        if (len < 0 || len > buf.remaining()) {
+            throw new IOException("Invalid length " + len);
+        }
+        byte[] out = new byte[len];
+        buf.get(out);
+        return out;
+    }
+
+    /** A value in its own array, wrapped so {@link Bytes#array} can hand the array on uncopied. */
+    private static ByteBuffer readView(ByteBuffer buf) throws IOException {
+        return ByteBuffer.wrap(readBytes(buf));
+    }
+
+    /** Copies the list's contacts into one {@link NodeList} rather than decoding each. */
+    private static NodeList readNodeList(ByteBuffer buf) throws IOException {
+        int n = buf.getInt();
+        if (n < 0 || n > buf.remaining() / NODE_LEN) {
+            throw new IOException("Invalid node count " + n);
         }
-        return list;
+        return NodeList.read(buf, n);
     }
 
     private static byte[] pad(byte[] b, int len) {
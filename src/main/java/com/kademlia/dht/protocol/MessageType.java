@@ -8,10 +8,19 @@ public enum MessageType {
     STORE(0x02),
     FIND_NODE(0x03),
     FIND_VALUE(0x04),
+    FETCH_CHUNK(0x05),
+    STORE_BATCH(0x06),
+    FIND_NODE_BATCH(0x07),
+    FIND_VALUE_BATCH(0x08),
     PING_RESPONSE(0x11),
     STORE_RESPONSE(0x12),
     FIND_NODE_RESPONSE(0x13),
-    FIND_VALUE_RESPONSE(0x14);
+    FIND_VALUE_RESPONSE(0x14),
+    CHUNK_RESPONSE(0x15),
+    STORE_BATCH_RESPONSE(0x16),
+    FIND_NODE_BATCH_RESPONSE(0x17),
+    FIND_VALUE_BATCH_RESPONSE(0x18),
+    BUSY(0x1F);
 
     private final byte code;
 
@@ -7,7 +7,8 @@ import java.net.InetAddress;
 /**
  * RPC request: has type, messageId, and sender info.
  */
-public sealed interface RpcRequest extends RpcMessage permits PingRequest, StoreRequest, FindNodeRequest, FindValueRequest {
+public sealed interface RpcRequest extends RpcMessage permits PingRequest, StoreRequest, FindNodeRequest, FindValueRequest,
+        FetchChunkRequest, StoreBatchRequest, FindNodeBatchRequest, FindValueBatchRequest {
     MessageType type();
     byte[] messageId();
     NodeId senderId();
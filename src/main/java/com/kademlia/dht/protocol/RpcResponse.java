@@ -3,6 +3,7 @@ package com.kademlia.dht.protocol;
 /**
  * RPC response: has messageId to match request.
  */
-public sealed interface RpcResponse extends RpcMessage permits PingResponse, StoreResponse, FindNodeResponse, FindValueResponse {
+public sealed interface RpcResponse extends RpcMessage permits PingResponse, StoreResponse, FindNodeResponse, FindValueResponse,
+        ChunkResponse, BusyResponse, StoreBatchResponse, FindNodeBatchResponse, FindValueBatchResponse {
     byte[] messageId();
 }
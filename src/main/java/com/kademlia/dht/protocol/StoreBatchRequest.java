@@ -0,0 +1,20 @@
+package com.kademlia.dht.protocol;
+
+import com.kademlia.dht.node.NodeId;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * Stores several key/value pairs in one datagram. Values travel inline only; anything over
+ * {@link KademliaProtocol#INLINE_VALUE_LIMIT} goes through a single {@link StoreRequest}.
+ */
+public record StoreBatchRequest(byte[] messageId, NodeId senderId, InetAddress senderIp, int senderPort,
+                                List<Entry> entries) implements RpcRequest {
+    @Override
+    public MessageType type() {
+        return MessageType.STORE_BATCH;
+    }
+
+    public record Entry(byte[] key, byte[] value) {}
+}
@@ -0,0 +1,6 @@
+package com.kademlia.dht.protocol;
+
+/**
+ * One flag per entry of the {@link StoreBatchRequest}, in request order.
+ */
+public record StoreBatchResponse(byte[] messageId, boolean[] stored) implements RpcResponse {}
@@ -3,9 +3,20 @@ package com.kademlia.dht.protocol;
 import com.kademlia.dht.node.NodeId;
 
 import java.net.InetAddress;
+import java.util.Optional;
 
+/**
+ * Carries the value inline, or (for large values) a {@link ValueHandle} the receiver pulls it
+ * through; {@code value} is then empty.
+ */
 public record StoreRequest(byte[] messageId, NodeId senderId, InetAddress senderIp, int senderPort,
-                          byte[] key, byte[] value) implements RpcRequest {
+                           byte[] key, byte[] value, Optional<ValueHandle> handle) implements RpcRequest {
+
+    public StoreRequest(byte[] messageId, NodeId senderId, InetAddress senderIp, int senderPort,
+                        byte[] key, byte[] value) {
+        this(messageId, senderId, senderIp, senderPort, key, value, Optional.empty());
+    }
+
     @Override
     public MessageType type() {
         return MessageType.STORE;
@@ -0,0 +1,193 @@
+package com.kademlia.dht.protocol;
+
+import com.kademlia.dht.storage.ByteArray;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Large values this node is currently serving in chunks, keyed by transfer ID.
+ * <p>
+ * An export lives until it is released or goes {@code ttl} without a chunk being fetched.
+ * The bytes pinned by live exports are capped; {@link #export} refuses new ones past the cap.
+ * Exports hold read-only views, so serving a stored value shares its bytes rather than copying.
+ * <p>
+ * Stored values are exported through {@link #share}: every reader of a key gets the same
+ * transfer while the value is unchanged, so repeated FIND_VALUEs pin its bytes once. A shared
+ * export stops counting against the cap once its last chunk has been served, and is dropped
+ * after {@link #GRACE} without fetches, which leaves time for retries of chunks still in flight.
+ */
+final class ValueExports {
+    static final Duration DEFAULT_TTL = Duration.ofSeconds(30);
+    static final Duration GRACE = Duration.ofSeconds(5);
+    static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+    private final Map<Integer, Export> exports = new ConcurrentHashMap<>();
+    private final Map<ByteArray, Integer> shared = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+    private final AtomicLong pinnedBytes = new AtomicLong();
+    private final long ttlNanos;
+    private final long graceNanos;
+    private final long maxBytes;
+    private final int chunkSize;
+
+    ValueExports(int chunkSize) {
+        this(chunkSize, DEFAULT_TTL, DEFAULT_MAX_BYTES);
+    }
+
+    ValueExports(int chunkSize, Duration ttl, long maxBytes) {
+        this.chunkSize = chunkSize;
+        this.ttlNanos = ttl.toNanos();
+        this.graceNanos = Math.min(ttlNanos, GRACE.toNanos());
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the handle to fetch {@code value} through, or empty if too many bytes are exported
+     */
+    Optional<ValueHandle> export(ByteBuffer value) {
+        long now = System.nanoTime();
+        sweep(now);
+        return add(null, value.slice().asReadOnlyBuffer(), now);
+    }
+
+    /**
+     * Like {@link #export}, but reuses the transfer already serving {@code key} if it holds the
+     * same bytes; comparing costs about what {@link com.kademlia.dht.storage.IStorage#view}
+     * may already have spent copying the value.
+     */
+    Optional<ValueHandle> share(ByteArray key, ByteBuffer value) {
+        long now = System.nanoTime();
+        sweep(now);
+        ByteBuffer view = value.slice().asReadOnlyBuffer();
+        Integer id = shared.get(key);
+        Export e = id == null ? null : exports.get(id);
+        if (e != null && e.value.equals(view)) {
+            synchronized (e) {
+                if (exports.get(id) == e) {
+                    if (!e.pinned && !pin(e.value.capacity())) {
+                        return Optional.empty();
+                    }
+                    e.pinned = true;
+                    e.expiresAt = now + ttlNanos;
+                    return Optional.of(new ValueHandle(id, e.value.capacity()));
+                }
+            }
+        }
+        return add(key, view, now);
+    }
+
+    private Optional<ValueHandle> add(ByteArray key, ByteBuffer view, long now) {
+        int length = view.capacity();
+        if (!pin(length)) {
+            return Optional.empty();
+        }
+        int id = nextId.incrementAndGet();
+        exports.put(id, new Export(key, view, now + ttlNanos));
+        if (key != null) {
+            shared.put(key, id);
+        }
+        return Optional.of(new ValueHandle(id, length));
+    }
+
+    /**
+     * @return a read-only slice holding the chunk starting at {@code offset}, or null if the
+     *         transfer is unknown or the offset is not on a chunk boundary inside the value
+     */
+    ByteBuffer chunk(int transferId, int offset) {
+        Export e = exports.get(transferId);
+        int length = e == null ? 0 : e.value.capacity();
+        if (e == null || offset < 0 || offset >= length || offset % chunkSize != 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (e.key != null && offset + chunkSize >= length) {
+            unpin(transferId);
+        }
+        e.expiresAt = now + (e.pinned ? ttlNanos : graceNanos);
+        return e.value.slice(offset, Math.min(length - offset, chunkSize));
+    }
+
+    void release(int transferId) {
+        Export e = exports.remove(transferId);
+        if (e != null) {
+            synchronized (e) {
+                drop(transferId, e);
+            }
+        }
+    }
+
+    /** Stops counting the transfer against the cap; it is still served until it goes idle. */
+    void unpin(int transferId) {
+        Export e = exports.get(transferId);
+        if (e != null) {
+            synchronized (e) {
+                if (e.pinned) {
+                    e.pinned = false;
+                    pinnedBytes.addAndGet(-e.value.capacity());
+                }
+            }
+        }
+    }
+
+    int size() {
+        return exports.size();
+    }
+
+    long pinnedBytes() {
+        return pinnedBytes.get();
+    }
+
+    private boolean pin(int length) {
+        if (pinnedBytes.addAndGet(length) > maxBytes) {
+            pinnedBytes.addAndGet(-length);
+            return false;
+        }
+        return true;
+    }
+
+    /** Undoes an export's pin and share; the caller has removed it from the table. */
+    private void drop(int transferId, Export e) {
+        if (e.pinned) {
+            e.pinned = false;
+            pinnedBytes.addAndGet(-e.value.capacity());
+        }
+        if (e.key != null) {
+            shared.remove(e.key, transferId);
+        }
+    }
+
+    private void sweep(long now) {
+        for (var it = exports.entrySet().iterator(); it.hasNext(); ) {
+            var entry = it.next();
+            Export e = entry.getValue();
+            synchronized (e) {
+                if (now - e.expiresAt > 0 && exports.remove(entry.getKey(), e)) {
+                    drop(entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    private static final class Export {
+        /** Key of a shared export, null for a private one. */
+        final ByteArray key;
+        /** Never read through its position, only sliced, so threads can share it. */
+        final ByteBuffer value;
+        volatile long expiresAt;
+        /** Written under the export's monitor. */
+        volatile boolean pinned = true;
+
+        Export(ByteArray key, ByteBuffer value, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.kademlia.dht.protocol;
+
+/**
+ * Reference to a value too large to send inline: the holder serves it in chunks under
+ * {@code transferId} (see {@link FetchChunkRequest}) for a limited time.
+ */
+public record ValueHandle(int transferId, int length) {}
@@ -0,0 +1,164 @@
+package com.kademlia.dht.routing;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Liveness record for one contact: smoothed RTT, consecutive failures, and a phi-accrual
+ * suspicion level over the time its replies take.
+ * <p>
+ * Kademlia contacts are not heartbeated, so silence between requests says nothing: phi only
+ * accrues while a request to the contact is outstanding, from the oldest unanswered send until
+ * anything is heard from it. It is {@code -log10} of the probability that a reply this late is
+ * still normal, taking reply times as normal with mean SRTT and deviation RTTVAR, through a
+ * logistic approximation of the normal CDF (as in Hayashibara et al. and Akka). Phi 1 means
+ * about a 10% chance the reply is merely slow, phi 8 about 1e-8.
+ * <p>
+ * The retransmission timeout follows RFC 6298: {@code SRTT + 4 * RTTVAR}, clamped to
+ * [{@link #MIN_RTO_NANOS}, {@link #MAX_RTO_NANOS}], and {@link #INITIAL_RTO_NANOS} before the
+ * first sample. A response to a retransmitted request is no sample (it could answer either
+ * copy), so the caller reports it through {@link #backOffRto} instead, which doubles the RTO
+ * until an unambiguous sample comes in.
+ * <p>
+ * State is guarded by a {@link ReentrantLock} rather than a monitor, so the virtual threads
+ * that record responses are not pinned while they hold it.
+ */
+public final class ContactHealth {
+    public static final long INITIAL_RTO_NANOS = 1_000_000_000L;
+    public static final long MIN_RTO_NANOS = 200_000_000L;
+    public static final long MAX_RTO_NANOS = 3_000_000_000L;
+    private static final double RTT_GAIN = 0.125;
+    private static final double RTTVAR_GAIN = 0.25;
+    private static final double MIN_STD_DEV_NANOS = 100_000_000.0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private long smoothedRttNanos = -1;
+    private long rttVarNanos;
+    private long rtoNanos = INITIAL_RTO_NANOS;
+    private int failureStreak;
+    private long lastHeardNanos = -1;
+    private long awaitingSinceNanos = -1;
+
+    void recordSuccess(long nowNanos, long rttNanos) {
+        lock.lock();
+        try {
+            if (rttNanos >= 0) {
+                if (smoothedRttNanos < 0) {
+                    smoothedRttNanos = rttNanos;
+                    rttVarNanos = rttNanos / 2;
+                } else {
+                    rttVarNanos = (long) (rttVarNanos + RTTVAR_GAIN * (Math.abs(smoothedRttNanos - rttNanos) - rttVarNanos));
+                    smoothedRttNanos = (long) (smoothedRttNanos + RTT_GAIN * (rttNanos - smoothedRttNanos));
+                }
+                rtoNanos = Math.clamp(smoothedRttNanos + 4 * rttVarNanos, MIN_RTO_NANOS, MAX_RTO_NANOS);
+            }
+            recordHeard(nowNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void recordHeard(long nowNanos) {
+        lock.lock();
+        try {
+            failureStreak = 0;
+            lastHeardNanos = nowNanos;
+            awaitingSinceNanos = -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** A request went out; it opens a reply window unless one is already open. */
+    void recordSent(long nowNanos) {
+        lock.lock();
+        try {
+            if (awaitingSinceNanos < 0) {
+                awaitingSinceNanos = nowNanos;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int recordFailure() {
+        lock.lock();
+        try {
+            awaitingSinceNanos = -1;
+            return ++failureStreak;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Doubles the RTO (up to the maximum) after a request to the contact had to be retransmitted. */
+    void backOffRto() {
+        lock.lock();
+        try {
+            rtoNanos = Math.min(rtoNanos * 2, MAX_RTO_NANOS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Suspicion level at {@code nowNanos}; 0 while no request is outstanding or before the first
+     * RTT sample.
+     */
+    public double phi(long nowNanos) {
+        lock.lock();
+        try {
+            if (awaitingSinceNanos < 0 || smoothedRttNanos < 0) {
+                return 0.0;
+            }
+            double stdDev = Math.max(rttVarNanos, MIN_STD_DEV_NANOS);
+            double elapsed = nowNanos - awaitingSinceNanos;
+            double y = (elapsed - smoothedRttNanos) / stdDev;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if (elapsed > smoothedRttNanos) {
+                return -Math.log10(e / (1.0 + e));
+            }
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Whether anything has ever been heard from the contact. */
+    public boolean isProven() {
+        lock.lock();
+        try {
+            return lastHeardNanos >= 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Smoothed round-trip time in nanoseconds, or -1 if never measured. */
+    public long getSmoothedRttNanos() {
+        lock.lock();
+        try {
+            return smoothedRttNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Current retransmission timeout in nanoseconds. */
+    public long getRtoNanos() {
+        lock.lock();
+        try {
+            return rtoNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getFailureStreak() {
+        lock.lock();
+        try {
+            return failureStreak;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.kademlia.dht.routing;
+
+import com.kademlia.dht.node.Node;
+import com.kademlia.dht.node.NodeId;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Per-contact {@link ContactHealth} records kept alongside the routing table.
+ * <p>
+ * A contact is suspected while it has unanswered RPCs in a row or its phi exceeds the threshold,
+ * which only happens while a reply from it is overdue. Suspected contacts stay in the table;
+ * lookups try contacts that have answered first, then ones never heard from, then suspected
+ * ones. The map is pruned back to routing table members whenever it grows past
+ * {@code maxEntries}.
+ */
+public class HealthTracker {
+    public static final double DEFAULT_PHI_THRESHOLD = 8.0;
+
+    private final ConcurrentHashMap<NodeId, ContactHealth> records = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final double phiThreshold;
+    private final Predicate<NodeId> retain;
+
+    /**
+     * @param retain which IDs survive a prune (normally: is still in the routing table)
+     */
+    public HealthTracker(int maxEntries, double phiThreshold, Predicate<NodeId> retain) {
+        this.maxEntries = maxEntries;
+        this.phiThreshold = phiThreshold;
+        this.retain = retain;
+    }
+
+    /** A response arrived after {@code rttNanos}; pass -1 if the RTT is unknown. */
+    public void recordSuccess(NodeId id, long rttNanos) {
+        record(id).recordSuccess(System.nanoTime(), rttNanos);
+    }
+
+    /** Any message (e.g. an inbound request) was received from the contact. */
+    public void recordHeard(NodeId id) {
+        record(id).recordHeard(System.nanoTime());
+    }
+
+    /** A request was sent to the contact; phi accrues until it is heard from. */
+    public void recordSent(NodeId id) {
+        record(id).recordSent(System.nanoTime());
+    }
+
+    /** @return the contact's consecutive failure count including this one */
+    public int recordFailure(NodeId id) {
+        return record(id).recordFailure();
+    }
+
+    public void remove(NodeId id) {
+        records.remove(id);
+    }
+
+    /** Health record for {@code id}, or null if nothing has been recorded. */
+    public ContactHealth get(NodeId id) {
+        return records.get(id);
+    }
+
+    /** Smoothed RTT of {@code id} in nanoseconds, or -1 if it has not been measured. */
+    public long rttNanos(NodeId id) {
+        ContactHealth h = records.get(id);
+        return h == null ? -1 : h.getSmoothedRttNanos();
+    }
+
+    /** Retransmission timeout for {@code id}; the initial one if it has not been measured. */
+    public Duration rto(NodeId id) {
+        ContactHealth h = records.get(id);
+        return Duration.ofNanos(h == null ? ContactHealth.INITIAL_RTO_NANOS : h.getRtoNanos());
+    }
+
+    /** A response arrived only after the request was retransmitted; see {@link ContactHealth}. */
+    public void backOffRto(NodeId id) {
+        record(id).backOffRto();
+    }
+
+    public double phi(NodeId id) {
+        ContactHealth h = records.get(id);
+        return h == null ? 0.0 : h.phi(System.nanoTime());
+    }
+
+    public boolean isSuspected(NodeId id) {
+        ContactHealth h = records.get(id);
+        return h != null && (h.getFailureStreak() > 0 || h.phi(System.nanoTime()) > phiThreshold);
+    }
+
+    /**
+     * Picks up to {@code count} nodes from {@code candidates} (closest first): healthy ones that
+     * have answered before in order, then ones never heard from, then suspected ones, each group
+     * in order, as far as the earlier groups leave room.
+     */
+    public List<Node> preferHealthy(List<Node> candidates, int count) {
+        List<Node> picked = new ArrayList<>(Math.min(count, candidates.size()));
+        List<Node> unknown = new ArrayList<>();
+        List<Node> suspected = new ArrayList<>();
+        for (Node n : candidates) {
+            if (picked.size() >= count) {
+                return picked;
+            }
+            ContactHealth h = records.get(n.id());
+            if (isSuspected(n.id())) {
+                suspected.add(n);
+            } else if (h == null || !h.isProven()) {
+                unknown.add(n);
+            } else {
+                picked.add(n);
+            }
+        }
+        for (int i = 0; i < unknown.size() && picked.size() < count; i++) {
+            picked.add(unknown.get(i));
+        }
+        for (int i = 0; i < suspected.size() && picked.size() < count; i++) {
+            picked.add(suspected.get(i));
+        }
+        return picked;
+    }
+
+    /**
+     * Reorders {@code closestFirst} so that nodes at the same coarse distance from {@code target}
+     * (same shared prefix length) are ordered by smoothed RTT, unmeasured ones last. Nodes never
+     * move past a node at a different coarse distance, so lookups make the same progress per hop.
+     */
+    public List<Node> byProximity(NodeId target, List<Node> closestFirst) {
+        List<Node> ordered = new ArrayList<>(closestFirst);
+        int start = 0;
+        while (start < ordered.size()) {
+            int prefix = target.sharedPrefixLength(ordered.get(start).id());
+            int end = start + 1;
+            while (end < ordered.size() && target.sharedPrefixLength(ordered.get(end).id()) == prefix) {
+                end++;
+            }
+            if (end - start > 1) {
+                ordered.subList(start, end).sort(Comparator.comparingLong(n -> {
+                    long rtt = rttNanos(n.id());
+                    return rtt < 0 ? Long.MAX_VALUE : rtt;
+                }));
+            }
+            start = end;
+        }
+        return ordered;
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    private ContactHealth record(NodeId id) {
+        ContactHealth h = records.get(id);
+        if (h != null) {
+            return h;
+        }
+        if (records.size() >= maxEntries) {
+            records.keySet().removeIf(retain.negate());
+        }
+        return records.computeIfAbsent(id, k -> new ContactHealth());
+    }
+}
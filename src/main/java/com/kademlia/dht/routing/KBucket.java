@@ -6,26 +6,52 @@ import com.kademlia.dht.util.Pair;
 
 import java.math.BigInteger;
 import java.util.LinkedHashMap;
-import java.util.stream.Stream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
 
 /**
  * K-bucket: fixed capacity bucket in ID range with LRU eviction and replacement cache.
+ * When a contact is removed its slot goes to the replacement with the lowest measured RTT, or
+ * the most recently seen one if no replacement has been measured. A newcomer whose RTT is
+ * under a third of the slowest measured contact's takes that contact's slot; the displaced
+ * contact moves to the replacement cache.
+ * <p>
+ * Contacts are published as an immutable snapshot (least recently seen first), so reads never
+ * lock or copy. Writers serialize on a per-bucket {@link ReentrantLock}, which unlike a monitor
+ * does not pin the virtual threads that handle requests, and swap in a new snapshot of at most
+ * {@code ksize} entries. Once {@link #split} has copied a bucket it is retired: it refuses further
+ * writes, and a caller that finds {@link #isRetired} set after a write looks the bucket up again.
  */
 public class KBucket {
     private static final BigInteger TWO = BigInteger.valueOf(2);
     private static final BigInteger ONE = BigInteger.ONE;
+    private static final int DISPLACE_RTT_RATIO = 3;
 
     private final BigInteger rangeLower;
     private final BigInteger rangeUpper;
     private final int ksize;
-    private final LinkedHashMap<NodeId, Node> nodes = new LinkedHashMap<>();
+    private final ToLongFunction<NodeId> rttNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile List<Node> nodes = List.of();
     private final LinkedHashMap<NodeId, Node> replacements = new LinkedHashMap<>();
     private volatile long lastUpdated;
+    /** Set under the lock once {@link #split} has copied the contents. */
+    private volatile boolean retired;
 
     public KBucket(BigInteger rangeLower, BigInteger rangeUpper, int ksize) {
+        this(rangeLower, rangeUpper, ksize, id -> -1);
+    }
+
+    /**
+     * @param rttNanos smoothed round-trip time of a contact, or -1 if it has not been measured
+     */
+    public KBucket(BigInteger rangeLower, BigInteger rangeUpper, int ksize, ToLongFunction<NodeId> rttNanos) {
         this.rangeLower = rangeLower;
         this.rangeUpper = rangeUpper;
         this.ksize = ksize;
+        this.rttNanos = rttNanos;
         touchLastUpdated();
     }
 
@@ -33,42 +59,152 @@ public class KBucket {
         this.lastUpdated = System.nanoTime();
     }
 
-    public synchronized boolean addNode(Node node) {
-        if (nodes.containsKey(node.id())) {
-            nodes.remove(node.id());
-            nodes.put(node.id(), node);
-            touchLastUpdated();
-            return true;
-        }
-        if (nodes.size() < ksize) {
-            nodes.put(node.id(), node);
-            touchLastUpdated();
-            return true;
+    /**
+     * @return false if the bucket is full (the contact is cached as a replacement) or retired
+     */
+    public boolean addNode(Node node) {
+        lock.lock();
+        try {
+            if (retired) {
+                return false;
+            }
+            List<Node> current = nodes;
+            int idx = indexOf(current, node.id());
+            if (idx >= 0) {
+                if (idx != current.size() - 1 || !current.get(idx).equals(node)) {
+                    nodes = moveToTail(current, idx, node);
+                }
+                touchLastUpdated();
+                return true;
+            }
+            if (current.size() < ksize) {
+                replacements.remove(node.id());
+                nodes = append(current, node);
+                touchLastUpdated();
+                return true;
+            }
+            int slower = slowerSlot(current, node.id());
+            if (slower >= 0) {
+                // A newcomer seen before may be cached; it must not be promoted a second time
+                replacements.remove(node.id());
+                Node displaced = current.get(slower);
+                nodes = moveToTail(current, slower, node);
+                cacheReplacement(displaced);
+                touchLastUpdated();
+                return true;
+            }
+            cacheReplacement(node);
+            return false;
+        } finally {
+            lock.unlock();
         }
+    }
+
+    private void cacheReplacement(Node node) {
+        replacements.remove(node.id());
         replacements.put(node.id(), node);
         if (replacements.size() > ksize * 5) {
             replacements.remove(replacements.keySet().iterator().next());
         }
-        return false;
     }
 
-    public synchronized void removeNode(Node node) {
-        nodes.remove(node.id());
-        replacements.remove(node.id());
+    /**
+     * Slot of the slowest measured contact if {@code newcomer} is at least
+     * {@link #DISPLACE_RTT_RATIO} times faster than it, otherwise -1.
+     */
+    private int slowerSlot(List<Node> current, NodeId newcomer) {
+        long rtt = rttNanos.applyAsLong(newcomer);
+        if (rtt < 0) {
+            return -1;
+        }
+        int slowest = -1;
+        long slowestRtt = -1;
+        for (int i = 0; i < current.size(); i++) {
+            long r = rttNanos.applyAsLong(current.get(i).id());
+            if (r > slowestRtt) {
+                slowest = i;
+                slowestRtt = r;
+            }
+        }
+        return slowestRtt > rtt * DISPLACE_RTT_RATIO ? slowest : -1;
+    }
+
+    /**
+     * Removes and returns the replacement with the lowest measured RTT, preferring the most
+     * recently seen on ties and when none has been measured.
+     */
+    private Node pollFastestReplacement() {
+        Node best = null;
+        long bestRtt = Long.MAX_VALUE;
+        for (Node n : replacements.sequencedValues().reversed()) {
+            long r = rttNanos.applyAsLong(n.id());
+            long key = r < 0 ? Long.MAX_VALUE : r;
+            if (best == null || key < bestRtt) {
+                best = n;
+                bestRtt = key;
+            }
+        }
+        if (best != null) {
+            replacements.remove(best.id());
+        }
+        return best;
+    }
+
+    /**
+     * Removes {@code node} and promotes the replacement with the lowest measured RTT into its
+     * slot. Among replacements with equal RTTs, or when none has been measured, the most
+     * recently seen one is promoted; measured replacements always win over unmeasured ones.
+     */
+    public void removeNode(Node node) {
+        lock.lock();
+        try {
+            if (!retired) {
+                evict(node.id());
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized Pair<KBucket, KBucket> split() {
+    private void evict(NodeId id) {
+        replacements.remove(id);
+        List<Node> current = nodes;
+        int idx = indexOf(current, id);
+        if (idx < 0) {
+            return;
+        }
+        Node promoted = pollFastestReplacement();
+        // The promoted replacement takes the evicted slot as the most recently seen contact.
+        nodes = promoted != null ? moveToTail(current, idx, promoted) : without(current, idx);
+        touchLastUpdated();
+    }
+
+    public Pair<KBucket, KBucket> split() {
         BigInteger midpoint = rangeLower.add(rangeUpper).divide(TWO);
-        KBucket one = new KBucket(rangeLower, midpoint, ksize);
-        KBucket two = new KBucket(midpoint.add(ONE), rangeUpper, ksize);
-        Stream.concat(nodes.values().stream(), replacements.values().stream())
-                .forEach(n -> {
-                    KBucket bucket = n.id().toBigInteger().compareTo(midpoint) <= 0 ? one : two;
-                    bucket.addNode(n);
-                });
+        KBucket one = new KBucket(rangeLower, midpoint, ksize, rttNanos);
+        KBucket two = new KBucket(midpoint.add(ONE), rangeUpper, ksize, rttNanos);
+        lock.lock();
+        try {
+            for (Node n : nodes) {
+                (n.id().toBigInteger().compareTo(midpoint) <= 0 ? one : two).addNode(n);
+            }
+            for (Node n : replacements.values()) {
+                (n.id().toBigInteger().compareTo(midpoint) <= 0 ? one : two).addNode(n);
+            }
+            retired = true;
+        } finally {
+            lock.unlock();
+        }
         return Pair.of(one, two);
     }
 
+    /**
+     * True once this bucket has been split; its contents now live in the two halves.
+     */
+    public boolean isRetired() {
+        return retired;
+    }
+
     public boolean hasInRange(Node node) {
         BigInteger id = node.id().toBigInteger();
         return rangeLower.compareTo(id) <= 0 && id.compareTo(rangeUpper) <= 0;
@@ -87,11 +223,90 @@ public class KBucket {
         return lastUpdated;
     }
 
-    public synchronized java.util.List<Node> getNodes() {
-        return java.util.List.copyOf(nodes.values());
+    /**
+     * Records that a lookup into this bucket's range was started, which counts as a refresh.
+     */
+    public void markRefreshed() {
+        touchLastUpdated();
+    }
+
+    /**
+     * Uniformly random ID inside this bucket's range, used as a refresh lookup target.
+     */
+    public NodeId randomId(Random rnd) {
+        BigInteger span = rangeUpper.subtract(rangeLower).add(ONE);
+        BigInteger offset = new BigInteger(span.bitLength(), rnd).mod(span);
+        byte[] raw = rangeLower.add(offset).toByteArray();
+        byte[] id = new byte[NodeId.SIZE_BYTES];
+        int len = Math.min(raw.length, NodeId.SIZE_BYTES);
+        System.arraycopy(raw, raw.length - len, id, NodeId.SIZE_BYTES - len, len);
+        return new NodeId(id);
+    }
+
+    /**
+     * Least recently seen contact: the one to ping before giving its slot to a newcomer.
+     */
+    public Node getLeastRecentlySeen() {
+        List<Node> current = nodes;
+        return current.isEmpty() ? null : current.get(0);
+    }
+
+    public boolean contains(NodeId nodeId) {
+        return indexOf(nodes, nodeId) >= 0;
+    }
+
+    /**
+     * Current contacts, least recently seen first. The list is an immutable snapshot; callers
+     * must not expect it to reflect later updates.
+     */
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    public Node getReplacementFor(NodeId nodeId) {
+        lock.lock();
+        try {
+            return replacements.get(nodeId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int indexOf(List<Node> list, NodeId id) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).id().equals(id)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    public synchronized Node getReplacementFor(NodeId nodeId) {
-        return replacements.get(nodeId);
+    private static List<Node> append(List<Node> list, Node node) {
+        Node[] out = list.toArray(new Node[list.size() + 1]);
+        out[list.size()] = node;
+        return List.of(out);
+    }
+
+    private static List<Node> moveToTail(List<Node> list, int idx, Node node) {
+        Node[] out = new Node[list.size()];
+        int j = 0;
+        for (int i = 0; i < list.size(); i++) {
+            if (i != idx) {
+                out[j++] = list.get(i);
+            }
+        }
+        out[j] = node;
+        return List.of(out);
+    }
+
+    private static List<Node> without(List<Node> list, int idx) {
+        Node[] out = new Node[list.size() - 1];
+        int j = 0;
+        for (int i = 0; i < list.size(); i++) {
+            if (i != idx) {
+                out[j++] = list.get(i);
+            }
+        }
+        return List.of(out);
     }
 }
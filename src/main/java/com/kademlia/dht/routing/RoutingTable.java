@@ -6,27 +6,45 @@ import com.kademlia.dht.util.Pair;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * Routing table: list of K-buckets with splitting and neighbor lookup.
+ * Routing table: K-buckets indexed by the length of the ID prefix shared with this node.
+ * Bucket i (i below the own depth) holds contacts sharing exactly i leading bits with us;
+ * the bucket at the own depth holds everything closer and is the only one that splits.
  */
 public class RoutingTable {
     private static final BigInteger TWO = BigInteger.valueOf(2);
     private static final BigInteger ONE = BigInteger.ONE;
     private static final BigInteger MAX_ID = TWO.pow(160).subtract(ONE);
 
+    public static final int DEFAULT_MAX_FAILURES = 3;
+
     private final Node selfNode;
     private final int ksize;
-    private final List<KBucket> buckets = new CopyOnWriteArrayList<>();
+    private final int maxFailures;
+    private final HealthTracker health;
+    private final AtomicReferenceArray<KBucket> buckets = new AtomicReferenceArray<>(NodeId.SIZE_BITS + 1);
+    private volatile int ownDepth;
 
     public RoutingTable(Node selfNode, int ksize) {
+        this(selfNode, ksize, DEFAULT_MAX_FAILURES);
+    }
+
+    /**
+     * @param maxFailures consecutive RPC failures a contact may have before it is evicted
+     */
+    public RoutingTable(Node selfNode, int ksize, int maxFailures) {
         this.selfNode = selfNode;
         this.ksize = ksize;
-        buckets.add(new KBucket(BigInteger.ZERO, MAX_ID, ksize));
+        this.maxFailures = Math.max(1, maxFailures);
+        int maxTracked = 2 * (NodeId.SIZE_BITS + 1) * ksize;
+        this.health = new HealthTracker(maxTracked, HealthTracker.DEFAULT_PHI_THRESHOLD,
+                id -> bucketFor(id).contains(id));
+        buckets.set(0, new KBucket(BigInteger.ZERO, MAX_ID, ksize, health::rttNanos));
     }
 
     public Node getSelfNode() {
@@ -37,87 +55,219 @@ public class RoutingTable {
         return ksize;
     }
 
+    public HealthTracker getHealth() {
+        return health;
+    }
+
+    /**
+     * Snapshot of the buckets in prefix-length order (farthest first, own bucket last).
+     */
     public List<KBucket> getBuckets() {
-        return buckets;
+        int depth = ownDepth;
+        List<KBucket> list = new ArrayList<>(depth + 1);
+        for (int i = 0; i <= depth; i++) {
+            list.add(buckets.get(i));
+        }
+        return list;
     }
 
+    /**
+     * Index of the bucket covering {@code node}: its shared prefix length, capped at the own bucket.
+     */
     public int getBucketFor(Node node) {
-        BigInteger id = node.id().toBigInteger();
-        for (int i = 0; i < buckets.size(); i++) {
-            KBucket b = buckets.get(i);
-            if (b.hasInRange(node)) {
-                return i;
+        return Math.min(selfNode.id().sharedPrefixLength(node.id()), ownDepth);
+    }
+
+    /**
+     * Re-reads the own depth after loading the bucket so a concurrent split cannot hand back
+     * the far half for an ID that belongs to the new own bucket, and skips a bucket the split
+     * has already retired. A write can still race with the split that retires its bucket, so
+     * callers retry while the bucket they wrote to {@link KBucket#isRetired is retired}.
+     */
+    private KBucket bucketFor(NodeId id) {
+        int prefix = selfNode.id().sharedPrefixLength(id);
+        while (true) {
+            int depth = ownDepth;
+            KBucket bucket = buckets.get(Math.min(prefix, depth));
+            if (depth == ownDepth && !bucket.isRetired()) {
+                return bucket;
             }
+            Thread.onSpinWait();
         }
-        return buckets.size() - 1;
     }
 
-    public void addContact(Node node) {
+    /**
+     * Adds or refreshes a contact. If its bucket is full and cannot split, the contact goes to
+     * the replacement cache and the bucket's least recently seen contact is returned so the
+     * caller can ping it; it is only evicted (and a replacement promoted) if it keeps failing.
+     *
+     * @return null if the contact is in the table, otherwise the contact to ping
+     */
+    public Node addContact(Node node) {
         if (node.id().equals(selfNode.id())) {
-            return;
-        }
-        int idx = getBucketFor(node);
-        KBucket bucket = buckets.get(idx);
-        if (bucket.addNode(node)) {
-            return;
-        }
-        if (bucket.hasInRange(selfNode) || bucket.depth() % 5 != 0) {
-            synchronized (this) {
-                if (idx < buckets.size()) {
-                    splitBucket(idx);
-                    addContact(node);
-                }
+            return null;
+        }
+        KBucket bucket;
+        boolean added;
+        do {
+            bucket = bucketFor(node.id());
+            added = bucket.addNode(node);
+        } while (bucket.isRetired());
+        if (added) {
+            return null;
+        }
+        synchronized (this) {
+            int depth = ownDepth;
+            if (bucket == buckets.get(depth) && depth < NodeId.SIZE_BITS - 1) {
+                splitOwnBucket();
+                return addContact(node);
             }
         }
+        if (bucket.isRetired()) {
+            // Split by another thread since the add; the contact was carried into a half
+            return addContact(node);
+        }
+        return bucket.getLeastRecentlySeen();
     }
 
     public void removeContact(Node node) {
-        int idx = getBucketFor(node);
-        if (idx < buckets.size()) {
-            buckets.get(idx).removeNode(node);
-        }
+        KBucket bucket;
+        do {
+            bucket = bucketFor(node.id());
+            bucket.removeNode(node);
+        } while (bucket.isRetired());
+        health.remove(node.id());
+    }
+
+    /**
+     * Counts a failed RPC to {@code node}; evicts it after {@code maxFailures} in a row.
+     * A contact that is only in the replacement cache is dropped straight away.
+     */
+    public void recordFailure(Node node) {
+        int streak = health.recordFailure(node.id());
+        KBucket bucket;
+        do {
+            bucket = bucketFor(node.id());
+            if (streak < maxFailures && bucket.contains(node.id())) {
+                return;
+            }
+            bucket.removeNode(node);
+        } while (bucket.isRetired());
+        health.remove(node.id());
     }
 
     public boolean isNewNode(Node node) {
-        int idx = getBucketFor(node);
-        if (idx >= buckets.size()) return true;
-        List<Node> nodes = buckets.get(idx).getNodes();
-        return nodes.stream().noneMatch(n -> n.id().equals(node.id()));
+        return !bucketFor(node.id()).contains(node.id());
     }
 
-    private synchronized void splitBucket(int idx) {
-        if (idx >= buckets.size()) return;
-        KBucket bucket = buckets.get(idx);
-        Pair<KBucket, KBucket> split = bucket.split();
-        buckets.set(idx, split.left());
-        buckets.add(idx + 1, split.right());
+    /**
+     * Splits the own bucket in place: the far half takes its slot and the near half becomes
+     * the new own bucket one level deeper. No other bucket moves. The old bucket is retired
+     * by {@link KBucket#split}, so a write that reaches it afterwards is refused and retried.
+     */
+    private synchronized void splitOwnBucket() {
+        int depth = ownDepth;
+        Pair<KBucket, KBucket> split = buckets.get(depth).split();
+        boolean selfInLeft = split.left().hasInRange(selfNode);
+        KBucket near = selfInLeft ? split.left() : split.right();
+        KBucket far = selfInLeft ? split.right() : split.left();
+        buckets.set(depth + 1, near);
+        ownDepth = depth + 1;
+        buckets.set(depth, far);
     }
 
     /**
-     * Find K closest nodes to target by XOR distance. Uses min-heap: smaller distance = closer.
+     * Find K closest nodes to target, ordered by full XOR distance (closest first).
+     * <p>
+     * Buckets are visited in tiers of increasing distance: the target's own bucket, then the
+     * buckets deeper than it (all of which differ from the target at the same bit), then each
+     * shallower bucket in turn. Every tier is strictly farther than the previous one, so the
+     * scan stops as soon as a tier leaves K candidates in hand.
      */
     public List<Node> findNeighbors(Node target, int k) {
-        PriorityQueue<Pair<Integer, Node>> heap = new PriorityQueue<>(
-                Comparator.comparingInt(Pair::left)
-        );
-        TableTraverser traverser = new TableTraverser(this, target);
-        while (traverser.hasNext()) {
-            Node node = traverser.next();
-            if (!node.id().equals(target.id())) {
-                heap.offer(Pair.of(target.distanceTo(node), node));
-                if (heap.size() > k) {
-                    heap.poll();
-                }
+        if (k <= 0) {
+            return List.of();
+        }
+        int depth = ownDepth;
+        int t = Math.min(selfNode.id().sharedPrefixLength(target.id()), depth);
+        Neighbors neighbors = new Neighbors(target.id(), k);
+        neighbors.offerAll(buckets.get(t));
+        if (t < depth && !neighbors.isFull()) {
+            for (int i = t + 1; i <= depth; i++) {
+                neighbors.offerAll(buckets.get(i));
             }
         }
-        List<Node> result = new ArrayList<>();
-        while (!heap.isEmpty()) {
-            result.add(heap.poll().right());
+        for (int i = t - 1; i >= 0 && !neighbors.isFull(); i--) {
+            neighbors.offerAll(buckets.get(i));
+        }
+        return neighbors.toList();
+    }
+
+    /**
+     * Buckets whose last update is older than {@code maxAgeNanos}, least recently updated first.
+     */
+    public List<KBucket> getStaleBuckets(long maxAgeNanos) {
+        long now = System.nanoTime();
+        List<KBucket> stale = new ArrayList<>();
+        for (KBucket bucket : getBuckets()) {
+            if (now - bucket.getLastUpdated() > maxAgeNanos) {
+                stale.add(bucket);
+            }
         }
-        return result;
+        stale.sort(Comparator.comparingLong(KBucket::getLastUpdated));
+        return stale;
     }
 
     public int getNodeCount() {
-        return buckets.stream().mapToInt(KBucket::size).sum();
+        int depth = ownDepth;
+        int count = 0;
+        for (int i = 0; i <= depth; i++) {
+            count += buckets.get(i).size();
+        }
+        return count;
+    }
+
+    /**
+     * Bounded array of the closest nodes seen so far, kept sorted by insertion.
+     */
+    private static final class Neighbors {
+        private final NodeId target;
+        private final Node[] nodes;
+        private int size;
+
+        Neighbors(NodeId target, int k) {
+            this.target = target;
+            this.nodes = new Node[k];
+        }
+
+        boolean isFull() {
+            return size == nodes.length;
+        }
+
+        void offerAll(KBucket bucket) {
+            for (Node node : bucket.getNodes()) {
+                offer(node);
+            }
+        }
+
+        private void offer(Node node) {
+            if (node.id().equals(target)) {
+                return;
+            }
+            int pos = size;
+            while (pos > 0 && target.compareDistance(node.id(), nodes[pos - 1].id()) < 0) {
+                pos--;
+            }
+            if (pos == nodes.length) {
+                return;
+            }
+            int end = isFull() ? size - 1 : size++;
+            System.arraycopy(nodes, pos, nodes, pos + 1, end - pos);
+            nodes[pos] = node;
+        }
+
+        List<Node> toList() {
+            return Arrays.asList(isFull() ? nodes : Arrays.copyOf(nodes, size));
+        }
     }
 }
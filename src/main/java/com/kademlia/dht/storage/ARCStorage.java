@@ -1,100 +1,154 @@
 package com.kademlia.dht.storage;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Adaptive Replacement Cache: T1 (recent), T2 (frequent), B1/B2 (ghost lists).
+ * <p>
+ * The key space is split into shards by key hash, each a complete ARC with its own lists,
+ * target {@code p} and lock, so threads touching different keys rarely contend. Shards are
+ * kept large enough ({@link #MIN_SHARD_CAPACITY} entries) that each one sees a representative
+ * slice of the workload; small caches are a single shard and behave exactly like one ARC.
+ * Locks are {@link ReentrantLock}s, which do not pin virtual threads.
+ * <p>
+ * Capacity is counted either in entries or, for a store built with {@link #withByteBudget},
+ * in bytes: each entry is charged its key and value length plus a fixed per-entry overhead,
+ * and the lists, {@code p} and the adaptation steps are all measured in those bytes. The ghost
+ * lists keep only a 64-bit fingerprint and the charge of each evicted key; they cover at most
+ * twice the capacity, so a byte-budgeted store holds at most {@code 2 * maxBytes /
+ * OVERHEAD_BYTES} fingerprints however small or large the values are.
  */
 public class ARCStorage implements IStorage {
-    private final int capacity;
-    private int p;
-    private final LinkedHashMap<ByteArray, StorageEntry> T1 = new LinkedHashMap<>();
-    private final LinkedHashMap<ByteArray, StorageEntry> T2 = new LinkedHashMap<>();
-    private final LinkedHashMap<ByteArray, StorageEntry> B1 = new LinkedHashMap<>();
-    private final LinkedHashMap<ByteArray, StorageEntry> B2 = new LinkedHashMap<>();
+    static final int MIN_SHARD_CAPACITY = 64;
+    /** Smallest shard of a byte-budgeted store: room for 64 values of 64 KB. */
+    static final long MIN_SHARD_BYTES = 4L << 20;
+
+    private final Shard[] shards;
+    private final int shardShift;
 
     public ARCStorage(int capacity) {
-        this.capacity = Math.max(1, capacity);
-        this.p = 0;
+        this(capacity, defaultShards(capacity, MIN_SHARD_CAPACITY));
     }
 
-    @Override
-    public synchronized void put(byte[] key, byte[] value) {
-        ByteArray k = new ByteArray(key);
-        StorageEntry entry = new StorageEntry(System.nanoTime(), value);
+    /**
+     * @param shards number of shards, rounded down to a power of two and to at most one per entry
+     */
+    public ARCStorage(int capacity, int shards) {
+        this(Math.max(1, capacity), shards, false);
+    }
 
-        if (T1.containsKey(k) || T2.containsKey(k)) {
-            T1.remove(k);
-            T2.put(k, entry);
-            return;
+    private ARCStorage(long capacity, int shards, boolean bySize) {
+        int n = Integer.highestOneBit((int) Math.clamp(shards, 1, Math.min(capacity, 1 << 30)));
+        this.shards = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            // Spread the remainder so the shard capacities add up to the total
+            this.shards[i] = new Shard(capacity / n + (i < capacity % n ? 1 : 0), bySize);
         }
+        this.shardShift = 32 - Integer.numberOfTrailingZeros(n);
+    }
 
-        if (B1.containsKey(k)) {
-            p = Math.min(capacity, p + Math.max(B2.size() / Math.max(1, B1.size()), 1));
-            B1.remove(k);
-            T2.put(k, entry);
-        } else if (B2.containsKey(k)) {
-            p = Math.max(0, p - Math.max(B1.size() / Math.max(1, B2.size()), 1));
-            B2.remove(k);
-            T2.put(k, entry);
-        } else {
-            if (T1.size() + T2.size() >= capacity) {
-                replace(k);
-            }
-            T1.put(k, entry);
+    /**
+     * A store holding at most {@code maxBytes} of entries, counting key and value length plus
+     * {@link StorageEntry#OVERHEAD_BYTES} each. A value too large for its shard is not kept.
+     */
+    public static ARCStorage withByteBudget(long maxBytes) {
+        return withByteBudget(maxBytes, defaultShards(maxBytes, MIN_SHARD_BYTES));
+    }
+
+    /**
+     * @param shards number of shards, rounded down to a power of two; each gets an equal part of
+     *               the budget, which also bounds the largest value it keeps
+     */
+    public static ARCStorage withByteBudget(long maxBytes, int shards) {
+        return new ARCStorage(Math.max(StorageEntry.OVERHEAD_BYTES, maxBytes), shards, true);
+    }
+
+    private static int defaultShards(long capacity, long minShard) {
+        int byCores = Runtime.getRuntime().availableProcessors() * 4;
+        return (int) Math.max(1, Math.min(byCores, capacity / minShard));
+    }
+
+    /**
+     * Picks the shard from the high bits of a mixed hash; the shard's own maps index by the low
+     * bits of the same hash, so using those here would crowd each map into a few buckets.
+     */
+    private Shard shardFor(ByteArray key) {
+        if (shards.length == 1) {
+            return shards[0];
         }
+        return shards[(key.hashCode() * 0x9E3779B9) >>> shardShift];
     }
 
-    private void replace(ByteArray k) {
-        if (T1.size() >= 1 && (T1.size() > p || (B2.containsKey(k) && T1.size() == p))) {
-            ByteArray evict = T1.keySet().iterator().next();
-            T1.remove(evict);
-            B1.put(evict, new StorageEntry(System.nanoTime(), null));
-        } else {
-            ByteArray evict = T2.keySet().iterator().next();
-            T2.remove(evict);
-            B2.put(evict, new StorageEntry(System.nanoTime(), null));
+    int shardCount() {
+        return shards.length;
+    }
+
+    /** Entries resident in T1 and T2 across all shards. */
+    int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
         }
-        while (B1.size() + B2.size() > capacity) {
-            if (B1.size() > 0) {
-                B1.remove(B1.keySet().iterator().next());
-            } else {
-                B2.remove(B2.keySet().iterator().next());
-            }
+        return size;
+    }
+
+    /** Capacity in use across all shards: bytes for a byte-budgeted store, else entries. */
+    long residentUnits() {
+        long units = 0;
+        for (Shard shard : shards) {
+            units += shard.resident();
         }
+        return units;
+    }
+
+    /** Fingerprints held in the ghost lists across all shards. */
+    int ghostCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.ghosts();
+        }
+        return count;
     }
 
     @Override
-    public synchronized Optional<byte[]> get(byte[] key) {
+    public void put(byte[] key, byte[] value) {
         ByteArray k = new ByteArray(key);
-        StorageEntry entry = T1.remove(k);
-        if (entry != null) {
-            T2.put(k, entry);
-            return Optional.of(entry.value());
-        }
-        entry = T2.get(k);
-        if (entry != null) {
-            T2.remove(k);
-            T2.put(k, entry);
-            return Optional.of(entry.value());
-        }
-        return Optional.empty();
+        shardFor(k).put(k, StorageEntry.copyOf(System.nanoTime(), value));
+    }
+
+    @Override
+    public Optional<byte[]> get(byte[] key) {
+        StorageEntry entry = lookup(key);
+        return entry == null ? Optional.empty() : Optional.of(entry.toArray());
     }
 
+    @Override
+    public Optional<ByteBuffer> view(byte[] key) {
+        StorageEntry entry = lookup(key);
+        return entry == null ? Optional.empty() : Optional.of(entry.value());
+    }
+
+    private StorageEntry lookup(byte[] key) {
+        ByteArray k = ByteArray.probe(key);
+        return shardFor(k).get(k);
+    }
+
+    /** Iterates over a snapshot taken one shard at a time. */
     @Override
     public Iterator<Map.Entry<byte[], byte[]>> iterator() {
-        Map<ByteArray, StorageEntry> copy;
-        synchronized (this) {
-            copy = new LinkedHashMap<>();
-            copy.putAll(T1);
-            copy.putAll(T2);
-        }
-        return copy.entrySet().stream()
-                .filter(e -> e.getValue().value() != null)
-                .map(e -> Map.<byte[], byte[]>entry(e.getKey().getBytes(), e.getValue().value()))
+        List<Map.Entry<ByteArray, StorageEntry>> copy = new ArrayList<>();
+        for (Shard shard : shards) {
+            shard.snapshot(copy);
+        }
+        return copy.stream()
+                .map(e -> Map.<byte[], byte[]>entry(e.getKey().getBytes(), e.getValue().toArray()))
                 .iterator();
     }
 
@@ -102,4 +156,198 @@ public class ARCStorage implements IStorage {
     public void cull() {
         // ARC is in-memory only; no TTL cull. Optional: evict oldest from B1/B2
     }
+
+    /**
+     * One ARC over its slice of the keys, following Megiddo and Modha: a ghost hit adapts
+     * {@code p} and makes room before the key returns in T2, and the ghost lists are trimmed so
+     * T1 + B1 stays within capacity and all four lists within twice that. Sizes are in units of
+     * {@link #charge}; at one unit per entry this is the paper's algorithm, and with bytes
+     * admitting one entry may evict several.
+     */
+    private static final class Shard {
+        private final long capacity;
+        private final boolean bySize;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<ByteArray, StorageEntry> T1 = new LinkedHashMap<>();
+        /** In access order, so a hit moves its entry to the MRU end without re-inserting it. */
+        private final LinkedHashMap<ByteArray, StorageEntry> T2 = new LinkedHashMap<>(16, 0.75f, true);
+        /** Fingerprint of an evicted key to the charge it had while resident. */
+        private final LinkedHashMap<Long, Long> B1 = new LinkedHashMap<>();
+        private final LinkedHashMap<Long, Long> B2 = new LinkedHashMap<>();
+        private long t1;
+        private long t2;
+        private long b1;
+        private long b2;
+        private long p;
+
+        Shard(long capacity, boolean bySize) {
+            this.capacity = capacity;
+            this.bySize = bySize;
+        }
+
+        private long charge(ByteArray k, StorageEntry entry) {
+            return bySize ? entry.footprint(k) : 1;
+        }
+
+        void put(ByteArray k, StorageEntry entry) {
+            long size = charge(k, entry);
+            lock.lock();
+            try {
+                StorageEntry old;
+                if ((old = T1.remove(k)) != null) {
+                    t1 -= charge(k, old);
+                } else if ((old = T2.remove(k)) != null) {
+                    t2 -= charge(k, old);
+                }
+                if (size > capacity) {
+                    // Never fits; dropping the old value above keeps get from returning it
+                    return;
+                }
+                if (old != null) {
+                    makeRoom(size, false);
+                    insertT2(k, entry, size);
+                    trimGhosts();
+                    return;
+                }
+                long fp = k.fingerprint();
+                Long ghost;
+                if ((ghost = B1.remove(fp)) != null) {
+                    p = Math.min(capacity, p + Math.max(b2 / b1, 1) * size);
+                    b1 -= ghost;
+                    makeRoom(size, false);
+                    insertT2(k, entry, size);
+                } else if ((ghost = B2.remove(fp)) != null) {
+                    p = Math.max(0, p - Math.max(b1 / b2, 1) * size);
+                    b2 -= ghost;
+                    makeRoom(size, true);
+                    insertT2(k, entry, size);
+                } else {
+                    // Case IV: trim the ghosts first so the new entry keeps within both bounds
+                    while (t1 + b1 + size > capacity && !B1.isEmpty()) {
+                        b1 -= B1.pollFirstEntry().getValue();
+                    }
+                    while (t1 + size > capacity) {
+                        // T1 alone fills the cache: drop its LRU without remembering it
+                        t1 -= charge(T1.pollFirstEntry());
+                    }
+                    while (t1 + t2 + b1 + b2 + size > 2 * capacity && !B2.isEmpty()) {
+                        b2 -= B2.pollFirstEntry().getValue();
+                    }
+                    makeRoom(size, false);
+                    T1.put(k, entry);
+                    t1 += size;
+                }
+                trimGhosts();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Restores T1 + B1 within c and all four lists within 2c. With one unit per entry the
+         * paper's cases already keep these; with bytes, evicting several entries for a larger
+         * one can overshoot.
+         */
+        private void trimGhosts() {
+            while (t1 + b1 > capacity && !B1.isEmpty()) {
+                b1 -= B1.pollFirstEntry().getValue();
+            }
+            while (t1 + t2 + b1 + b2 > 2 * capacity && !B2.isEmpty()) {
+                b2 -= B2.pollFirstEntry().getValue();
+            }
+        }
+
+        private void insertT2(ByteArray k, StorageEntry entry, long size) {
+            T2.put(k, entry);
+            t2 += size;
+        }
+
+        /** Evicts resident entries into their ghost lists until {@code size} more fits. */
+        private void makeRoom(long size, boolean hitInB2) {
+            while (t1 + t2 + size > capacity) {
+                if (!T1.isEmpty() && (t1 > p || (hitInB2 && t1 == p) || T2.isEmpty())) {
+                    Map.Entry<ByteArray, StorageEntry> e = T1.pollFirstEntry();
+                    long c = charge(e);
+                    t1 -= c;
+                    b1 += c - orZero(B1.put(e.getKey().fingerprint(), c));
+                } else {
+                    Map.Entry<ByteArray, StorageEntry> e = T2.pollFirstEntry();
+                    long c = charge(e);
+                    t2 -= c;
+                    b2 += c - orZero(B2.put(e.getKey().fingerprint(), c));
+                }
+            }
+        }
+
+        /** Charge of a ghost replaced by a fingerprint collision, if any. */
+        private static long orZero(Long replaced) {
+            return replaced == null ? 0 : replaced;
+        }
+
+        private long charge(Map.Entry<ByteArray, StorageEntry> e) {
+            return charge(e.getKey(), e.getValue());
+        }
+
+        /**
+         * The entry under {@code k}, now at the MRU end of T2; null on a miss. {@code k} may be
+         * a probe, so it is copied before T2 keeps it.
+         */
+        StorageEntry get(ByteArray k) {
+            lock.lock();
+            try {
+                StorageEntry entry = T2.get(k);
+                if (entry != null) {
+                    return entry;
+                }
+                entry = T1.remove(k);
+                if (entry == null) {
+                    return null;
+                }
+                long c = charge(k, entry);
+                t1 -= c;
+                t2 += c;
+                T2.put(k.copy(), entry);
+                return entry;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return T1.size() + T2.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long resident() {
+            lock.lock();
+            try {
+                return t1 + t2;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int ghosts() {
+            lock.lock();
+            try {
+                return B1.size() + B2.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void snapshot(List<Map.Entry<ByteArray, StorageEntry>> out) {
+            lock.lock();
+            try {
+                T1.forEach((k, v) -> out.add(Map.entry(k, v)));
+                T2.forEach((k, v) -> out.add(Map.entry(k, v)));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
 }
@@ -10,14 +10,51 @@ public final class ByteArray {
     private final int hash;
 
     public ByteArray(byte[] data) {
-        this.data = data == null ? new byte[0] : data.clone();
+        this(data == null ? new byte[0] : data, true);
+    }
+
+    private ByteArray(byte[] data, boolean copy) {
+        this.data = copy ? data.clone() : data;
         this.hash = Arrays.hashCode(this.data);
     }
 
+    /**
+     * Wraps {@code key} without copying, for a lookup that does not outlive the call. Never
+     * store the result: the caller may still change the array.
+     */
+    static ByteArray probe(byte[] key) {
+        return new ByteArray(key == null ? new byte[0] : key, false);
+    }
+
+    /** A key with its own copy of the bytes, safe to store even if this one is a probe. */
+    ByteArray copy() {
+        return new ByteArray(data, true);
+    }
+
     public byte[] getBytes() {
         return data.clone();
     }
 
+    int length() {
+        return data.length;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the bytes, for remembering a key without keeping it. Distinct keys
+     * collide with probability about 2^-64 per pair.
+     */
+    long fingerprint() {
+        return fingerprint(data);
+    }
+
+    static long fingerprint(byte[] data) {
+        long h = 0xCBF29CE484222325L;
+        for (byte b : data) {
+            h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        return h;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -1,36 +1,120 @@
 package com.kademlia.dht.storage;
 
+import java.nio.ByteBuffer;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TTL-based storage with automatic eviction on get and via cull().
+ * <p>
+ * With a byte budget, each entry is charged its key and value length plus
+ * {@link StorageEntry#OVERHEAD_BYTES}, and a put that takes the total over the budget evicts the
+ * oldest entries first, the same ones the TTL would drop next.
  */
 public class ForgetfulStorage implements IStorage {
     private final ConcurrentHashMap<ByteArray, StorageEntry> data = new ConcurrentHashMap<>();
+    /**
+     * Entries in insertion order, kept only under a budget. Records of replaced or expired
+     * entries are skipped when polled and pruned once they outnumber the live entries.
+     */
+    private final ConcurrentLinkedQueue<Map.Entry<ByteArray, StorageEntry>> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger staleRecords = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
     private final long ttlNanos;
+    private final long maxBytes;
 
     public ForgetfulStorage(long ttlSeconds) {
+        this(ttlSeconds, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxBytes budget for resident entries; a value larger than the whole budget is not kept
+     */
+    public ForgetfulStorage(long ttlSeconds, long maxBytes) {
         this.ttlNanos = ttlSeconds * 1_000_000_000L;
+        this.maxBytes = maxBytes;
     }
 
     @Override
     public void put(byte[] key, byte[] value) {
-        data.put(new ByteArray(key), new StorageEntry(System.nanoTime(), value));
+        ByteArray k = new ByteArray(key);
+        StorageEntry entry = StorageEntry.copyOf(System.nanoTime(), value);
+        long size = entry.footprint(k);
+        if (size > maxBytes) {
+            StorageEntry old = data.remove(k);
+            if (old != null) {
+                bytes.addAndGet(-old.footprint(k));
+                staleRecords.incrementAndGet();
+            }
+            return;
+        }
+        StorageEntry old = data.put(k, entry);
+        long total = bytes.addAndGet(old == null ? size : size - old.footprint(k));
+        if (maxBytes == Long.MAX_VALUE) {
+            return;
+        }
+        order.add(Map.entry(k, entry));
+        if (old != null && staleRecords.incrementAndGet() > data.size()) {
+            pruneOrder();
+        }
+        while (total > maxBytes) {
+            Map.Entry<ByteArray, StorageEntry> eldest = order.poll();
+            if (eldest == null) {
+                break;
+            }
+            total = remove(eldest.getKey(), eldest.getValue()) ? bytes.get() : total;
+        }
+    }
+
+    /** Removes {@code entry} if it is still the mapping for {@code key}, releasing its bytes. */
+    private boolean remove(ByteArray key, StorageEntry entry) {
+        if (!data.remove(key, entry)) {
+            return false;
+        }
+        bytes.addAndGet(-entry.footprint(key));
+        return true;
+    }
+
+    private void pruneOrder() {
+        staleRecords.set(0);
+        order.removeIf(e -> data.get(e.getKey()) != e.getValue());
+    }
+
+    /** Bytes charged for the entries currently held. */
+    long residentBytes() {
+        return bytes.get();
     }
 
     @Override
     public Optional<byte[]> get(byte[] key) {
-        StorageEntry entry = data.get(new ByteArray(key));
-        if (entry == null) return Optional.empty();
+        StorageEntry entry = live(key);
+        return entry == null ? Optional.empty() : Optional.of(entry.toArray());
+    }
+
+    @Override
+    public Optional<ByteBuffer> view(byte[] key) {
+        StorageEntry entry = live(key);
+        return entry == null ? Optional.empty() : Optional.of(entry.value());
+    }
+
+    /** The entry under {@code key} if it has not expired; an expired one is removed. */
+    private StorageEntry live(byte[] key) {
+        ByteArray k = ByteArray.probe(key);
+        StorageEntry entry = data.get(k);
+        if (entry == null) return null;
         if (System.nanoTime() - entry.timestamp() > ttlNanos) {
-            data.remove(new ByteArray(key));
-            return Optional.empty();
+            if (remove(k, entry)) {
+                staleRecords.incrementAndGet();
+            }
+            return null;
         }
-        return Optional.of(entry.value());
+        return entry;
     }
 
     @Override
@@ -51,7 +135,7 @@ public class ForgetfulStorage implements IStorage {
                 if (now - entry.timestamp() > ttlNanos) {
                     throw new ConcurrentModificationException("expired during iteration");
                 }
-                return Map.entry(e.getKey().getBytes(), entry.value());
+                return Map.entry(e.getKey().getBytes(), entry.toArray());
             }
         };
     }
@@ -59,6 +143,11 @@ public class ForgetfulStorage implements IStorage {
     @Override
     public void cull() {
         long now = System.nanoTime();
-        data.entrySet().removeIf(e -> now - e.getValue().timestamp() > ttlNanos);
+        data.forEach((k, entry) -> {
+            if (now - entry.timestamp() > ttlNanos) {
+                remove(k, entry);
+            }
+        });
+        pruneOrder();
     }
 }
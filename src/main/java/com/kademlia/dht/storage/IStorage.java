@@ -1,5 +1,6 @@
 package com.kademlia.dht.storage;
 
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
@@ -12,6 +13,14 @@ public interface IStorage {
 
     Optional<byte[]> get(byte[] key);
 
+    /**
+     * The stored value as a read-only view, for callers that only read it (e.g. to encode it
+     * into a response). Unlike {@link #get}, an engine can serve this without copying.
+     */
+    default Optional<ByteBuffer> view(byte[] key) {
+        return get(key).map(ByteBuffer::wrap).map(ByteBuffer::asReadOnlyBuffer);
+    }
+
     Iterator<Map.Entry<byte[], byte[]>> iterator();
 
     void cull();
@@ -0,0 +1,662 @@
+package com.kademlia.dht.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable storage in append-only segment files, so a restarted node serves its values at once
+ * instead of waiting for peers to republish them.
+ * <p>
+ * Every put appends a record {@code [crc:4][expiresAt:8][keyLen:2][valueLen:4][key][value]} to
+ * the active segment, and an in-memory index maps each key to its latest record. Segments are
+ * memory-mapped: appends are copied into the mapping, so a record is in the page cache and
+ * survives a crash of the process once put returns; the mapping is forced to disk when a
+ * segment fills up and on {@link #close}, so an OS crash can lose the writes since then. Reads
+ * and {@link #view}s go straight to the mapping without taking a lock. Expiry is wall-clock
+ * time, which unlike {@link System#nanoTime} carries over a restart.
+ * <p>
+ * A full segment is sealed and gets a hint file listing its records without their values. On
+ * open, the index is rebuilt from the hints and only segments without one are scanned, checking
+ * each record's CRC; the scan stops at the first bad record, and a torn write at the end of
+ * the last segment is cut off. A background thread rewrites sealed segments in which less than
+ * {@link #MIN_LIVE_RATIO} of the bytes are still live, copying their live records to the active
+ * segment and deleting the file, which reclaims overwritten and expired values.
+ * <p>
+ * The store holds an exclusive lock on a {@code LOCK} file in its directory until it is closed,
+ * so a second store (in this process or another) cannot open the directory and write to it.
+ */
+public class LogStructuredStorage implements IStorage, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(LogStructuredStorage.class);
+
+    static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+    static final int HEADER_BYTES = 18;
+    static final double MIN_LIVE_RATIO = 0.5;
+    private static final int HINT_HEADER_BYTES = 12;
+    private static final int HINT_ENTRY_BYTES = 18;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final String LOCK_FILE = "LOCK";
+
+    private final Path dir;
+    private final long ttlMillis;
+    private final int segmentBytes;
+    private final FileChannel lockChannel;
+    private final ConcurrentHashMap<ByteArray, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    /** Held to append and to repoint the index at the new record, so both happen in log order. */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ExecutorService background =
+            Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().name("log-compaction").factory());
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+    private volatile Segment active;
+    private volatile boolean closed;
+
+    public LogStructuredStorage(Path dir, long ttlSeconds) throws IOException {
+        this(dir, ttlSeconds, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param segmentBytes size at which the active segment is sealed; a larger record gets a
+     *                     segment of its own
+     * @throws IOException also if another store has the directory open
+     */
+    public LogStructuredStorage(Path dir, long ttlSeconds, int segmentBytes) throws IOException {
+        if (segmentBytes < HEADER_BYTES || segmentBytes > 1 << 30) {
+            throw new IllegalArgumentException("segmentBytes out of range: " + segmentBytes);
+        }
+        this.dir = Files.createDirectories(dir);
+        this.ttlMillis = ttlSeconds * 1000L;
+        this.segmentBytes = segmentBytes;
+        this.lockChannel = lockDirectory(this.dir);
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            background.shutdown();
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /** Opens the directory's lock file and locks it; the lock goes when the channel is closed. */
+    private static FileChannel lockDirectory(Path dir) throws IOException {
+        FileChannel channel = FileChannel.open(dir.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            if (channel.tryLock() != null) {
+                return channel;
+            }
+        } catch (OverlappingFileLockException e) {
+            // Held by another store in this process
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        channel.close();
+        throw new IOException(dir + " is in use by another store");
+    }
+
+    /** The latest record of a key; the segment's mapping stays valid after it is compacted. */
+    private record Location(Segment segment, int offset, int keyLength, int valueLength, long expiresAt) {
+        int length() {
+            return HEADER_BYTES + keyLength + valueLength;
+        }
+
+        ByteBuffer value() {
+            return segment.map.slice(offset + HEADER_BYTES + keyLength, valueLength);
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final MappedByteBuffer map;
+        /** Bytes of valid records; written under the write lock while the segment is active. */
+        int size;
+        /** Bytes of records the index still points at. */
+        final AtomicLong live = new AtomicLong();
+
+        Segment(int id, Path path, MappedByteBuffer map) {
+            this.id = id;
+            this.path = path;
+            this.map = map;
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordVisitor {
+        void visit(int offset, long expiresAt, byte[] key, int valueLength);
+    }
+
+    // ---- recovery ----
+
+    private void recover() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    String id = name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+                    if (!id.isEmpty() && id.length() <= 10 && id.chars().allMatch(Character::isDigit)
+                            && Long.parseLong(id) <= Integer.MAX_VALUE) {
+                        ids.add(Integer.parseInt(id));
+                    } else {
+                        log.warn("Ignoring {}: not a segment written by this store", file);
+                    }
+                } else if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        ids.sort(null);
+        long start = System.nanoTime();
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            boolean last = i == ids.size() - 1;
+            Segment segment = last ? reopenActive(id) : openSealed(id);
+            segments.put(id, segment);
+            if (last) {
+                active = segment;
+            }
+        }
+        if (active == null) {
+            active = createSegment(0, segmentBytes);
+            segments.put(0, active);
+        }
+        // Hints whose segment was compacted away just before a crash
+        try (DirectoryStream<Path> hints = Files.newDirectoryStream(dir, "*" + HINT_SUFFIX)) {
+            for (Path hint : hints) {
+                String name = hint.getFileName().toString();
+                if (!Files.exists(dir.resolve(name.replace(HINT_SUFFIX, SEGMENT_SUFFIX)))) {
+                    Files.deleteIfExists(hint);
+                }
+            }
+        }
+        if (!ids.isEmpty()) {
+            log.info("Recovered {} keys from {} segments in {} ms", index.size(), ids.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    private Segment openSealed(int id) throws IOException {
+        Path path = segmentPath(id);
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        Segment segment = new Segment(id, path, map);
+        int end = scan(segment, loadHint(segment), map.capacity(), index(segment));
+        segment.size = end;
+        return segment;
+    }
+
+    /**
+     * Reopens the newest segment for appending. Anything after its last valid record is a
+     * write torn by a crash; it is cut off before the segment is mapped again for writing, so
+     * new records follow the valid ones and zeroes follow them.
+     */
+    private Segment reopenActive(int id) throws IOException {
+        Path path = segmentPath(id);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Segment written = new Segment(id, path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            int end = scan(written, hintCoverage(written), written.map.capacity(), null);
+            for (int i = end; i < Math.min(end + HEADER_BYTES, written.map.capacity()); i++) {
+                if (written.map.get(i) != 0) {
+                    log.warn("Truncating torn write at offset {} of {}", end, path);
+                    break;
+                }
+            }
+            channel.truncate(end);
+            Segment segment = new Segment(id, path,
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, end)));
+            segment.size = scan(segment, loadHint(segment), end, index(segment));
+            return segment;
+        }
+    }
+
+    private Segment createSegment(int id, int capacity) throws IOException {
+        Path path = segmentPath(id);
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+    }
+
+    /** Applies a recovered record to the index; later records win over earlier ones. */
+    private RecordVisitor index(Segment segment) {
+        long now = System.currentTimeMillis();
+        return (offset, expiresAt, key, valueLength) -> {
+            Location loc = new Location(segment, offset, key.length, valueLength, expiresAt);
+            ByteArray k = new ByteArray(key);
+            Location old = expiresAt <= now ? index.remove(k) : index.put(k, loc);
+            if (old != null) {
+                old.segment.live.addAndGet(-old.length());
+            }
+            if (expiresAt > now) {
+                segment.live.addAndGet(loc.length());
+            }
+        };
+    }
+
+    /**
+     * Visits the valid records in {@code [from, to)} and returns the end of the last one. Zeroes
+     * mark the unwritten rest of a segment; a short or corrupt record ends the scan.
+     */
+    private static int scan(Segment segment, int from, int to, RecordVisitor visitor) {
+        ByteBuffer map = segment.map;
+        CRC32C crc = new CRC32C();
+        int pos = from;
+        while (pos + HEADER_BYTES <= to) {
+            int checksum = map.getInt(pos);
+            long expiresAt = map.getLong(pos + 4);
+            int keyLength = Short.toUnsignedInt(map.getShort(pos + 12));
+            int valueLength = map.getInt(pos + 14);
+            if (checksum == 0 && expiresAt == 0 && keyLength == 0 && valueLength == 0) {
+                break;
+            }
+            long end = (long) pos + HEADER_BYTES + keyLength + valueLength;
+            if (valueLength < 0 || end > to) {
+                break;
+            }
+            crc.reset();
+            crc.update(map.slice(pos + 4, (int) end - pos - 4));
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            if (visitor != null) {
+                byte[] key = new byte[keyLength];
+                map.get(pos + HEADER_BYTES, key);
+                visitor.visit(pos, expiresAt, key, valueLength);
+            }
+            pos = (int) end;
+        }
+        return pos;
+    }
+
+    // ---- hints ----
+
+    private Path segmentPath(int id) {
+        return dir.resolve(String.format("%010d%s", id, SEGMENT_SUFFIX));
+    }
+
+    private Path hintPath(Segment segment) {
+        return dir.resolve(String.format("%010d%s", segment.id, HINT_SUFFIX));
+    }
+
+    /**
+     * Writes {@code [covered:8][count:4]} and {@code [expiresAt:8][offset:4][keyLen:2][valueLen:4][key]}
+     * per record of the segment, then a CRC of all of it. Replaces any older hint atomically.
+     */
+    private void writeHint(Segment segment, int covered) throws IOException {
+        List<byte[]> keys = new ArrayList<>();
+        List<long[]> records = new ArrayList<>();
+        int[] bytes = {HINT_HEADER_BYTES + 4};
+        scan(segment, 0, covered, (offset, expiresAt, key, valueLength) -> {
+            keys.add(key);
+            records.add(new long[] {expiresAt, offset, valueLength});
+            bytes[0] += HINT_ENTRY_BYTES + key.length;
+        });
+        ByteBuffer buf = ByteBuffer.allocate(bytes[0]);
+        buf.putLong(covered).putInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            long[] r = records.get(i);
+            buf.putLong(r[0]).putInt((int) r[1]).putShort((short) keys.get(i).length).putInt((int) r[2]).put(keys.get(i));
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue()).flip();
+        Path tmp = hintPath(segment).resolveSibling(hintPath(segment).getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(false);
+        }
+        Files.move(tmp, hintPath(segment), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Indexes the records listed in the segment's hint and returns how far into the segment the
+     * hint goes, or 0 if there is no usable hint and the whole segment must be scanned.
+     */
+    private int loadHint(Segment segment) throws IOException {
+        ByteBuffer hint = readHint(segment);
+        if (hint == null) {
+            return 0;
+        }
+        RecordVisitor visitor = index(segment);
+        int count = hint.getInt(8);
+        hint.position(HINT_HEADER_BYTES);
+        for (int i = 0; i < count; i++) {
+            long expiresAt = hint.getLong();
+            int offset = hint.getInt();
+            byte[] key = new byte[Short.toUnsignedInt(hint.getShort())];
+            int valueLength = hint.getInt();
+            hint.get(key);
+            visitor.visit(offset, expiresAt, key, valueLength);
+        }
+        return (int) hint.getLong(0);
+    }
+
+    private int hintCoverage(Segment segment) throws IOException {
+        ByteBuffer hint = readHint(segment);
+        return hint == null ? 0 : (int) hint.getLong(0);
+    }
+
+    /** The hint's contents without its CRC, or null if it is missing or does not match the segment. */
+    private ByteBuffer readHint(Segment segment) throws IOException {
+        Path path = hintPath(segment);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        if (bytes.length < HINT_HEADER_BYTES + 4) {
+            return null;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - 4);
+        ByteBuffer hint = ByteBuffer.wrap(bytes, 0, bytes.length - 4).slice();
+        if ((int) crc.getValue() != ByteBuffer.wrap(bytes).getInt(bytes.length - 4)
+                || hint.getLong(0) > segment.map.capacity()) {
+            log.warn("Ignoring damaged hint {}", path);
+            return null;
+        }
+        return hint;
+    }
+
+    // ---- writes ----
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        if (key.length > 0xFFFF) {
+            throw new IllegalArgumentException("key longer than 65535 bytes");
+        }
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        byte[] record = new byte[HEADER_BYTES + key.length + value.length];
+        ByteBuffer.wrap(record, 4, HEADER_BYTES - 4)
+                .putLong(expiresAt).putShort((short) key.length).putInt(value.length);
+        System.arraycopy(key, 0, record, HEADER_BYTES, key.length);
+        System.arraycopy(value, 0, record, HEADER_BYTES + key.length, value.length);
+        CRC32C crc = new CRC32C();
+        crc.update(record, 4, record.length - 4);
+        ByteBuffer.wrap(record).putInt((int) crc.getValue());
+        ByteArray k = new ByteArray(key);
+        writeLock.lock();
+        try {
+            append(k, record, expiresAt, value.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** Appends an encoded record and points the index at it. Caller holds the write lock. */
+    private void append(ByteArray key, byte[] record, long expiresAt, int valueLength) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("storage is closed");
+        }
+        Segment segment = active;
+        if (segment.size + record.length > segment.map.capacity()) {
+            segment = roll(record.length);
+        }
+        int offset = segment.size;
+        segment.map.put(offset, record);
+        segment.size += record.length;
+        Location loc = new Location(segment, offset, key.length(), valueLength, expiresAt);
+        segment.live.addAndGet(loc.length());
+        Location old = index.put(key, loc);
+        if (old != null) {
+            old.segment.live.addAndGet(-old.length());
+        }
+    }
+
+    /** Seals the active segment and starts the next one. Caller holds the write lock. */
+    private Segment roll(int recordLength) throws IOException {
+        Segment sealed = active;
+        sealed.map.force();
+        Segment next = createSegment(segments.lastKey() + 1, Math.max(segmentBytes, recordLength));
+        segments.put(next.id, next);
+        active = next;
+        Runnable hint = () -> {
+            try {
+                writeHint(sealed, sealed.size);
+            } catch (IOException e) {
+                log.warn("Failed to write hint for {}: {}", sealed.path, e.toString());
+            }
+        };
+        try {
+            background.execute(hint);
+        } catch (RejectedExecutionException e) {
+            // Shutting down: write it here rather than leave the segment to be scanned on open
+            hint.run();
+        }
+        scheduleCompaction();
+        return next;
+    }
+
+    // ---- compaction ----
+
+    private void scheduleCompaction() {
+        if (closed || !compactionQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            background.execute(() -> {
+                compactionQueued.set(false);
+                try {
+                    compact();
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Compaction failed: {}", e.toString());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed since the check above; nothing will run it
+            compactionQueued.set(false);
+        }
+    }
+
+    /** Rewrites every sealed segment that is mostly dead. Runs on the background thread, or in tests. */
+    void compact() throws IOException {
+        for (Segment segment : segments.values()) {
+            long live = segment.live.get();
+            if (segment != active && !closed && (live == 0 || live < segment.size * MIN_LIVE_RATIO)) {
+                rewrite(segment);
+            }
+        }
+    }
+
+    private void rewrite(Segment segment) throws IOException {
+        long now = System.currentTimeMillis();
+        List<IOException> failure = new ArrayList<>(1);
+        scan(segment, 0, segment.size, (offset, expiresAt, key, valueLength) -> {
+            ByteArray k = new ByteArray(key);
+            Location loc = index.get(k);
+            if (loc == null || loc.segment != segment || loc.offset != offset || !failure.isEmpty()) {
+                return;
+            }
+            if (expiresAt <= now) {
+                if (index.remove(k, loc)) {
+                    segment.live.addAndGet(-loc.length());
+                }
+                return;
+            }
+            byte[] record = new byte[loc.length()];
+            segment.map.get(offset, record);
+            writeLock.lock();
+            try {
+                // A put since the lookup has superseded this record; copying it would undo that
+                if (index.get(k) == loc) {
+                    append(k, record, expiresAt, valueLength);
+                }
+            } catch (IOException e) {
+                failure.add(e);
+            } finally {
+                writeLock.unlock();
+            }
+        });
+        if (!failure.isEmpty()) {
+            throw failure.get(0);
+        }
+        // The copies must be on disk before the originals go
+        writeLock.lock();
+        try {
+            active.map.force();
+        } finally {
+            writeLock.unlock();
+        }
+        segments.remove(segment.id);
+        Files.deleteIfExists(segment.path);
+        Files.deleteIfExists(hintPath(segment));
+        log.debug("Compacted {}", segment.path);
+    }
+
+    // ---- reads ----
+
+    @Override
+    public Optional<byte[]> get(byte[] key) {
+        Location loc = live(key);
+        if (loc == null) {
+            return Optional.empty();
+        }
+        byte[] value = new byte[loc.valueLength()];
+        loc.value().get(value);
+        return Optional.of(value);
+    }
+
+    @Override
+    public Optional<ByteBuffer> view(byte[] key) {
+        Location loc = live(key);
+        return loc == null ? Optional.empty() : Optional.of(loc.value().asReadOnlyBuffer());
+    }
+
+    /** The location of {@code key}'s value if it has not expired; an expired one is unindexed. */
+    private Location live(byte[] key) {
+        ByteArray k = ByteArray.probe(key);
+        Location loc = index.get(k);
+        if (loc == null) {
+            return null;
+        }
+        if (loc.expiresAt() <= System.currentTimeMillis()) {
+            if (index.remove(k, loc)) {
+                loc.segment().live.addAndGet(-loc.length());
+            }
+            return null;
+        }
+        return loc;
+    }
+
+    /** Iterates over the index as it changes, skipping values that have expired. */
+    @Override
+    public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+        return new Iterator<>() {
+            private final Iterator<Map.Entry<ByteArray, Location>> it = index.entrySet().iterator();
+            private final long now = System.currentTimeMillis();
+            private Map.Entry<byte[], byte[]> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && it.hasNext()) {
+                    Map.Entry<ByteArray, Location> e = it.next();
+                    Location loc = e.getValue();
+                    if (loc.expiresAt() > now) {
+                        byte[] value = new byte[loc.valueLength()];
+                        loc.value().get(value);
+                        next = Map.entry(e.getKey().getBytes(), value);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<byte[], byte[]> e = next;
+                next = null;
+                return e;
+            }
+        };
+    }
+
+    /** Unindexes expired values and queues compaction of the segments left mostly dead. */
+    @Override
+    public void cull() {
+        long now = System.currentTimeMillis();
+        index.forEach((k, loc) -> {
+            if (loc.expiresAt() <= now && index.remove(k, loc)) {
+                loc.segment().live.addAndGet(-loc.length());
+            }
+        });
+        scheduleCompaction();
+    }
+
+    /** Keys currently indexed, including any that expired since the last read or cull. */
+    int size() {
+        return index.size();
+    }
+
+    /** Segment files on disk, the active one included. */
+    int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Stops compaction, forces the active segment to disk and writes its hint, so the next open
+     * reads hints only, then unlocks the directory.
+     */
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            writeLock.unlock();
+        }
+        background.shutdown();
+        try {
+            background.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            Segment segment = active;
+            segment.map.force();
+            writeHint(segment, segment.size);
+        } finally {
+            lockChannel.close();
+        }
+    }
+}
@@ -0,0 +1,567 @@
+package com.kademlia.dht.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * TTL storage that keeps keys, values and its index in direct (off-heap) memory, so the heap
+ * and the collector's work stay the same however much is stored.
+ * <p>
+ * Records live in 1 MB slabs carved into fixed-size chunks, one chunk size per slab, with the
+ * sizes growing by 1.25x from 64 bytes (memcached-style slab classes); a record bigger than a
+ * slab gets a direct buffer of its own. A record is {@code [expiresAt:8][keyLen:2][valueLen:4]}
+ * followed by the key and value, so the TTL is checked in place. Freed chunks go on a free list
+ * per slab, linked through their first four bytes, and a slab whose chunks are all free goes
+ * back to the budget, to be carved again for whichever class needs it next.
+ * <p>
+ * The index is an open-addressing table, also off-heap, of {@code [hash:8][ref:8]} slots with
+ * linear probing and backward-shift deletion; {@code ref} names the slab and offset of the
+ * record, where the full key is compared. Keys are usually 20-byte digests but any length up
+ * to 65,535 bytes works.
+ * <p>
+ * Slabs are allocated until {@code maxBytes}; after that a put reuses a chunk of its class,
+ * evicting the record there in clock order. A class that owns no slab, or a record bigger than a
+ * slab, takes room from the others instead: a global clock hand picks a slab, evicts every
+ * record in it and frees it for reuse (memcached's slab rebalancing). The index adds 16 bytes per
+ * slot at most 75% full. Reads copy the value onto the heap, as the chunk may be reused once
+ * the lock is released; {@link #view} therefore costs one copy here.
+ * Reads share a read lock and never modify the table: an expired record is skipped and left
+ * for {@link #cull} or a later put.
+ */
+public class OffHeapStorage implements IStorage {
+    static final int SLAB_BYTES = 1 << 20;
+    static final int MIN_CHUNK = 64;
+    static final long DEFAULT_MAX_BYTES = 256L << 20;
+    private static final int INITIAL_SLOTS = 1 << 10;
+    private static final int SLOT_BYTES = 16;
+    private static final int HEADER_BYTES = 14;
+    private static final int FREE = -1;
+    /** Chunk size of each slab class, ascending; a slab of one class holds SLAB_BYTES / size chunks. */
+    private static final int[] CLASS_SIZES = classSizes();
+
+    private final long ttlNanos;
+    private final long maxBytes;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Index
+    private ByteBuffer index;
+    private int mask;
+    private int count;
+
+    // Slabs: chunk size 0 marks a record with a slab of its own; free list heads are offsets
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private int[] slabChunk = new int[16];
+    private int[] slabCarved = new int[16];
+    private int[] slabLive = new int[16];
+    private int[] slabFree = new int[16];
+    private final List<Integer> freeSlabIds = new ArrayList<>();
+    private long allocatedBytes;
+    private int stealHand;
+
+    // Per class: slabs with free chunks, slab being carved (-1 if none) and clock hand for eviction
+    private final List<List<Integer>> partial = new ArrayList<>();
+    private final int[] carving = new int[CLASS_SIZES.length];
+    private final int[] handSlab = new int[CLASS_SIZES.length];
+    private final int[] handOffset = new int[CLASS_SIZES.length];
+
+    public OffHeapStorage(long ttlSeconds) {
+        this(ttlSeconds, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes budget for slab memory; the index comes on top
+     */
+    public OffHeapStorage(long ttlSeconds, long maxBytes) {
+        this.ttlNanos = ttlSeconds * 1_000_000_000L;
+        this.maxBytes = maxBytes;
+        this.index = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_BYTES);
+        this.mask = INITIAL_SLOTS - 1;
+        Arrays.fill(carving, -1);
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            partial.add(new ArrayList<>());
+        }
+    }
+
+    private static int[] classSizes() {
+        List<Integer> sizes = new ArrayList<>();
+        for (long size = MIN_CHUNK; size < SLAB_BYTES; size = (size * 5 / 4 + 7) & ~7L) {
+            sizes.add((int) size);
+        }
+        sizes.add(SLAB_BYTES);
+        return sizes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /** Slab class for a record of {@code size} bytes, or -1 if it needs a slab of its own. */
+    private static int classFor(int size) {
+        int i = Arrays.binarySearch(CLASS_SIZES, size);
+        i = i >= 0 ? i : -i - 1;
+        return i < CLASS_SIZES.length ? i : -1;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) {
+        if (key.length > 0xFFFF) {
+            throw new IllegalArgumentException("Key too long: " + key.length);
+        }
+        long size = (long) HEADER_BYTES + key.length + value.length;
+        if (size > Integer.MAX_VALUE) {
+            return;
+        }
+        long hash = ByteArray.fingerprint(key);
+        lock.writeLock().lock();
+        try {
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                long old = refAt(slot);
+                int cls = classFor((int) size);
+                if (cls >= 0 && slabChunk[slabOf(old)] == CLASS_SIZES[cls]) {
+                    writeRecord(old, key, value);
+                    return;
+                }
+                removeSlot(slot);
+                free(old);
+            }
+            long ref = allocate((int) size);
+            if (ref == 0) {
+                return;
+            }
+            writeRecord(ref, key, value);
+            insert(hash, ref);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<byte[]> get(byte[] key) {
+        long hash = ByteArray.fingerprint(key);
+        lock.readLock().lock();
+        try {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                return Optional.empty();
+            }
+            long ref = refAt(slot);
+            ByteBuffer slab = slabs.get(slabOf(ref));
+            int off = offsetOf(ref);
+            if (expired(slab, off, System.nanoTime())) {
+                return Optional.empty();
+            }
+            byte[] value = new byte[slab.getInt(off + 10)];
+            slab.get(off + HEADER_BYTES + key.length, value);
+            return Optional.of(value);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Walks the slabs; like {@link ForgetfulStorage}'s, it is weakly consistent with writes. */
+    @Override
+    public Iterator<Map.Entry<byte[], byte[]>> iterator() {
+        return new Iterator<>() {
+            private final long now = System.nanoTime();
+            private int slab;
+            private int offset;
+            private Map.Entry<byte[], byte[]> next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<byte[], byte[]> e = next;
+                next = advance();
+                return e;
+            }
+
+            /** Copies out the next live record after the cursor, under the read lock. */
+            private Map.Entry<byte[], byte[]> advance() {
+                lock.readLock().lock();
+                try {
+                    for (; slab < slabs.size(); slab++, offset = 0) {
+                        ByteBuffer buf = slabs.get(slab);
+                        if (buf == null) {
+                            continue;
+                        }
+                        int step = slabChunk[slab] == 0 ? buf.capacity() : slabChunk[slab];
+                        while (offset < slabCarved[slab]) {
+                            int off = offset;
+                            offset += step;
+                            if (buf.getInt(off + 10) != FREE && !expired(buf, off, now)) {
+                                return Map.entry(readKey(buf, off), readValue(buf, off));
+                            }
+                        }
+                    }
+                    return null;
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+        };
+    }
+
+    /** Frees every expired record, one slab per lock hold. */
+    @Override
+    public void cull() {
+        long now = System.nanoTime();
+        int slabCount;
+        lock.readLock().lock();
+        try {
+            slabCount = slabs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (int s = 0; s < slabCount; s++) {
+            lock.writeLock().lock();
+            try {
+                ByteBuffer buf = slabs.get(s);
+                if (buf == null) {
+                    continue;
+                }
+                int step = slabChunk[s] == 0 ? buf.capacity() : slabChunk[s];
+                for (int off = 0; off < slabCarved[s] && slabs.get(s) != null; off += step) {
+                    if (buf.getInt(off + 10) != FREE && expired(buf, off, now)) {
+                        evict(ref(s, off));
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /** Live records. */
+    int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Bytes of slab memory allocated. */
+    long allocatedBytes() {
+        lock.readLock().lock();
+        try {
+            return allocatedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Records
+
+    private boolean expired(ByteBuffer slab, int off, long now) {
+        return now - slab.getLong(off) > 0;
+    }
+
+    private void writeRecord(long ref, byte[] key, byte[] value) {
+        ByteBuffer slab = slabs.get(slabOf(ref));
+        int off = offsetOf(ref);
+        slab.putLong(off, System.nanoTime() + ttlNanos);
+        slab.putShort(off + 8, (short) key.length);
+        slab.putInt(off + 10, value.length);
+        slab.put(off + HEADER_BYTES, key);
+        slab.put(off + HEADER_BYTES + key.length, value);
+    }
+
+    private static byte[] readKey(ByteBuffer slab, int off) {
+        byte[] key = new byte[slab.getShort(off + 8) & 0xFFFF];
+        slab.get(off + HEADER_BYTES, key);
+        return key;
+    }
+
+    private static byte[] readValue(ByteBuffer slab, int off) {
+        byte[] value = new byte[slab.getInt(off + 10)];
+        slab.get(off + HEADER_BYTES + (slab.getShort(off + 8) & 0xFFFF), value);
+        return value;
+    }
+
+    private boolean keyMatches(long ref, byte[] key) {
+        ByteBuffer slab = slabs.get(slabOf(ref));
+        int off = offsetOf(ref);
+        if ((slab.getShort(off + 8) & 0xFFFF) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (slab.get(off + HEADER_BYTES + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Removes the record at {@code ref} from the index and frees its chunk. */
+    private void evict(long ref) {
+        ByteBuffer slab = slabs.get(slabOf(ref));
+        byte[] key = readKey(slab, offsetOf(ref));
+        int slot = find(key, ByteArray.fingerprint(key));
+        if (slot >= 0) {
+            removeSlot(slot);
+        }
+        free(ref);
+    }
+
+    // Slab allocation
+
+    private static long ref(int slab, int offset) {
+        return ((long) (slab + 1) << 32) | offset;
+    }
+
+    private static int slabOf(long ref) {
+        return (int) (ref >>> 32) - 1;
+    }
+
+    private static int offsetOf(long ref) {
+        return (int) ref;
+    }
+
+    /** A chunk for a record of {@code size} bytes, or 0 if there is no room for it. */
+    private long allocate(int size) {
+        int cls = classFor(size);
+        int slabSize = cls < 0 ? size : SLAB_BYTES;
+        if (slabSize > maxBytes) {
+            return 0;
+        }
+        while (true) {
+            if (cls >= 0) {
+                long ref = takeChunk(cls);
+                if (ref != 0) {
+                    return ref;
+                }
+            }
+            if (allocatedBytes + slabSize <= maxBytes) {
+                if (cls < 0) {
+                    int s = newSlab(size, 0);
+                    slabLive[s] = 1;
+                    return ref(s, 0);
+                }
+                carving[cls] = newSlab(SLAB_BYTES, CLASS_SIZES[cls]);
+                continue;
+            }
+            // Each pass frees a chunk of the class or a whole slab, so the loop ends
+            if (!(cls >= 0 && reclaim(cls)) && !evictSlab()) {
+                return 0;
+            }
+        }
+    }
+
+    /** A free or uncarved chunk of the class, or 0 if it has none. */
+    private long takeChunk(int cls) {
+        List<Integer> withFree = partial.get(cls);
+        if (!withFree.isEmpty()) {
+            int s = withFree.get(withFree.size() - 1);
+            int off = slabFree[s];
+            slabFree[s] = slabs.get(s).getInt(off);
+            if (slabFree[s] == FREE) {
+                withFree.remove(withFree.size() - 1);
+            }
+            slabLive[s]++;
+            return ref(s, off);
+        }
+        int chunk = CLASS_SIZES[cls];
+        int s = carving[cls];
+        if (s >= 0 && slabCarved[s] + chunk <= SLAB_BYTES) {
+            int off = slabCarved[s];
+            slabCarved[s] += chunk;
+            slabLive[s]++;
+            return ref(s, off);
+        }
+        return 0;
+    }
+
+    /**
+     * Evicts the record under the class's clock hand, or returns false if the class owns no slab.
+     * All of a class's chunks are live here: it has no free chunk and its last slab is carved.
+     */
+    private boolean reclaim(int cls) {
+        int chunk = CLASS_SIZES[cls];
+        for (int tries = 0; tries <= slabs.size(); tries++) {
+            int s = handSlab[cls];
+            if (s < slabs.size() && slabs.get(s) != null && slabChunk[s] == chunk
+                    && handOffset[cls] < slabCarved[s]) {
+                long ref = ref(s, handOffset[cls]);
+                handOffset[cls] += chunk;
+                evict(ref);
+                return true;
+            }
+            handSlab[cls] = s + 1 < slabs.size() ? s + 1 : 0;
+            handOffset[cls] = 0;
+        }
+        return false;
+    }
+
+    /** Evicts every record of the slab under the global clock hand, which frees the slab. */
+    private boolean evictSlab() {
+        for (int tries = 0; tries < slabs.size(); tries++) {
+            int s = stealHand;
+            stealHand = s + 1 < slabs.size() ? s + 1 : 0;
+            ByteBuffer buf = slabs.get(s);
+            if (buf == null) {
+                continue;
+            }
+            int step = slabChunk[s] == 0 ? buf.capacity() : slabChunk[s];
+            for (int off = 0; off < slabCarved[s] && slabs.get(s) != null; off += step) {
+                if (buf.getInt(off + 10) != FREE) {
+                    evict(ref(s, off));
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private int newSlab(int size, int chunk) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(size);
+        int s;
+        if (!freeSlabIds.isEmpty()) {
+            s = freeSlabIds.remove(freeSlabIds.size() - 1);
+            slabs.set(s, buf);
+        } else {
+            s = slabs.size();
+            slabs.add(buf);
+            if (s == slabChunk.length) {
+                slabChunk = Arrays.copyOf(slabChunk, s * 2);
+                slabCarved = Arrays.copyOf(slabCarved, s * 2);
+                slabLive = Arrays.copyOf(slabLive, s * 2);
+                slabFree = Arrays.copyOf(slabFree, s * 2);
+            }
+        }
+        slabChunk[s] = chunk;
+        slabCarved[s] = chunk == 0 ? size : 0;
+        slabLive[s] = 0;
+        slabFree[s] = FREE;
+        allocatedBytes += size;
+        return s;
+    }
+
+    private void free(long ref) {
+        int s = slabOf(ref);
+        if (--slabLive[s] == 0) {
+            releaseSlab(s);
+            return;
+        }
+        ByteBuffer slab = slabs.get(s);
+        int off = offsetOf(ref);
+        slab.putInt(off, slabFree[s]);
+        slab.putInt(off + 10, FREE);
+        if (slabFree[s] == FREE) {
+            partial.get(classFor(slabChunk[s])).add(s);
+        }
+        slabFree[s] = off;
+    }
+
+    /** Gives an empty slab back to the budget; any class may carve the memory again. */
+    private void releaseSlab(int s) {
+        if (slabChunk[s] != 0) {
+            int cls = classFor(slabChunk[s]);
+            if (slabFree[s] != FREE) {
+                partial.get(cls).remove(Integer.valueOf(s));
+            }
+            if (carving[cls] == s) {
+                carving[cls] = -1;
+            }
+        }
+        allocatedBytes -= slabs.get(s).capacity();
+        slabs.set(s, null);
+        slabCarved[s] = 0;
+        slabFree[s] = FREE;
+        freeSlabIds.add(s);
+    }
+
+    // Index
+
+    private long hashAt(int slot) {
+        return index.getLong(slot * SLOT_BYTES);
+    }
+
+    private long refAt(int slot) {
+        return index.getLong(slot * SLOT_BYTES + 8);
+    }
+
+    private void setSlot(int slot, long hash, long ref) {
+        index.putLong(slot * SLOT_BYTES, hash);
+        index.putLong(slot * SLOT_BYTES + 8, ref);
+    }
+
+    private int home(long hash) {
+        return (int) ((hash * 0x9E3779B97F4A7C15L) >>> 33) & mask;
+    }
+
+    /** Slot holding {@code key}, or -1. */
+    private int find(byte[] key, long hash) {
+        for (int i = home(hash); ; i = (i + 1) & mask) {
+            long ref = refAt(i);
+            if (ref == 0) {
+                return -1;
+            }
+            if (hashAt(i) == hash && keyMatches(ref, key)) {
+                return i;
+            }
+        }
+    }
+
+    private void insert(long hash, long ref) {
+        if ((count + 1) * 4L > (mask + 1) * 3L) {
+            resize();
+        }
+        int i = home(hash);
+        while (refAt(i) != 0) {
+            i = (i + 1) & mask;
+        }
+        setSlot(i, hash, ref);
+        count++;
+    }
+
+    private void resize() {
+        ByteBuffer old = index;
+        int oldSlots = mask + 1;
+        index = ByteBuffer.allocateDirect(oldSlots * 2 * SLOT_BYTES);
+        mask = oldSlots * 2 - 1;
+        for (int j = 0; j < oldSlots; j++) {
+            long ref = old.getLong(j * SLOT_BYTES + 8);
+            if (ref != 0) {
+                long hash = old.getLong(j * SLOT_BYTES);
+                int i = home(hash);
+                while (refAt(i) != 0) {
+                    i = (i + 1) & mask;
+                }
+                setSlot(i, hash, ref);
+            }
+        }
+    }
+
+    /** Backward-shift deletion: later slots of the probe run move up so lookups never see a gap. */
+    private void removeSlot(int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            long ref = refAt(j);
+            if (ref == 0) {
+                break;
+            }
+            long hash = hashAt(j);
+            int k = home(hash);
+            boolean stays = i <= j ? i < k && k <= j : i < k || k <= j;
+            if (!stays) {
+                setSlot(i, hash, ref);
+                i = j;
+            }
+        }
+        setSlot(i, 0, 0);
+        count--;
+    }
+}
@@ -1,16 +1,55 @@
 package com.kademlia.dht.storage;
 
+import java.nio.ByteBuffer;
+
 /**
  * Timestamped value for TTL and eviction.
+ * <p>
+ * The value is held as a read-only buffer and handed out as read-only views, so reads share
+ * the stored bytes instead of copying them. {@link #copyOf} is the one place a value is copied.
  */
-public record StorageEntry(long timestamp, byte[] value) {
+public record StorageEntry(long timestamp, ByteBuffer value) {
+    /**
+     * Estimated heap cost of one stored entry beyond its key and value bytes: the two array
+     * headers, the key wrapper, this record and a map node.
+     */
+    static final int OVERHEAD_BYTES = 128;
+
+    /**
+     * @param value the bytes to hold; nothing may write to them afterwards
+     */
     public StorageEntry {
         if (value != null) {
-            value = value.clone();
+            value = value.slice().asReadOnlyBuffer();
         }
     }
 
-    public byte[] value() {
-        return value == null ? null : value.clone();
+    /** An entry holding its own copy of {@code value}. */
+    public static StorageEntry copyOf(long timestamp, byte[] value) {
+        return new StorageEntry(timestamp, value == null ? null : ByteBuffer.wrap(value.clone()));
+    }
+
+    /** A read-only view of the value with a position of its own; no bytes are copied. */
+    public ByteBuffer value() {
+        return value == null ? null : value.duplicate();
+    }
+
+    /** A copy of the value, for callers that need an array they may modify. */
+    public byte[] toArray() {
+        if (value == null) {
+            return null;
+        }
+        byte[] out = new byte[value.capacity()];
+        value.get(0, out);
+        return out;
+    }
+
+    int valueLength() {
+        return value == null ? 0 : value.capacity();
+    }
+
+    /** Bytes charged against a storage budget for this entry under {@code key}. */
+    long footprint(ByteArray key) {
+        return OVERHEAD_BYTES + key.length() + valueLength();
     }
 }
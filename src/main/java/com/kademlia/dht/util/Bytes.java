@@ -0,0 +1,39 @@
+package com.kademlia.dht.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for passing values around as {@link ByteBuffer} views instead of copied arrays.
+ * None of them move the position of the buffer they are given.
+ */
+public final class Bytes {
+
+    private Bytes() {}
+
+    /** A read-only view of {@code value}; the array is shared, not copied. */
+    public static ByteBuffer view(byte[] value) {
+        return ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
+
+    /**
+     * The remaining bytes as an array. A writable buffer that wraps a whole array, as decoded
+     * messages and fetched values do, hands over that array; anything else, including every
+     * read-only view, is copied.
+     */
+    public static byte[] array(ByteBuffer buf) {
+        if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0
+                && buf.remaining() == buf.array().length) {
+            return buf.array();
+        }
+        byte[] out = new byte[buf.remaining()];
+        buf.get(buf.position(), out);
+        return out;
+    }
+
+    /** Writes the remaining bytes of {@code src} at the position of {@code dst}, advancing only it. */
+    public static void put(ByteBuffer dst, ByteBuffer src) {
+        int n = src.remaining();
+        dst.put(dst.position(), src, src.position(), n);
+        dst.position(dst.position() + n);
+    }
+}
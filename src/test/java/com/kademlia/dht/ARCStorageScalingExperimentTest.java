@@ -0,0 +1,91 @@
+package com.kademlia.dht;
+
+import com.kademlia.dht.storage.ARCStorage;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Microbenchmark: read throughput of {@link ARCStorage} vs. reader threads, for one shard
+ * (equivalent to a single-lock ARC) and for the default shard count.
+ *
+ * The store is filled to capacity and every read hits, so each {@code get} also promotes its
+ * entry to T2 under the shard lock. Results go to build/experiments/arc_read_scaling.csv.
+ * Run with:
+ *
+ *   ./gradlew test --tests "com.kademlia.dht.ARCStorageScalingExperimentTest"
+ */
+@Tag("experiment")
+@org.junit.jupiter.api.Disabled("Microbenchmark; enable manually to get CSV output")
+class ARCStorageScalingExperimentTest {
+
+    private static final int CAPACITY = 1 << 16;
+    private static final long WARMUP_MS = 500;
+    private static final long MEASURE_MS = 2_000;
+
+    @Test
+    void readThroughputScalesWithThreads() throws Exception {
+        byte[][] keys = new byte[CAPACITY][];
+        for (int i = 0; i < CAPACITY; i++) {
+            keys[i] = ("key-" + i).getBytes(StandardCharsets.UTF_8);
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        StringBuilder sb = new StringBuilder("shards,threads,reads,duration_ms,reads_per_sec\n");
+        for (int shards : new int[]{1, 0}) {
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                ARCStorage storage = shards == 0 ? new ARCStorage(CAPACITY) : new ARCStorage(CAPACITY, shards);
+                for (byte[] key : keys) {
+                    storage.put(key, key);
+                }
+                run(storage, keys, threads, WARMUP_MS);
+                long reads = run(storage, keys, threads, MEASURE_MS);
+                sb.append(shards == 0 ? "default" : String.valueOf(shards)).append(',')
+                        .append(threads).append(',')
+                        .append(reads).append(',')
+                        .append(MEASURE_MS).append(',')
+                        .append(reads * 1000.0 / MEASURE_MS).append('\n');
+            }
+        }
+        writeCsv(sb.toString(), "arc_read_scaling.csv");
+    }
+
+    /** Returns the number of reads completed in {@code durationMs}. */
+    private long run(ARCStorage storage, byte[][] keys, int threads, long durationMs) throws Exception {
+        LongAdder reads = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            Thread.ofPlatform().start(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                long n = 0;
+                while (running.get()) {
+                    storage.get(keys[rnd.nextInt(keys.length)]);
+                    n++;
+                }
+                reads.add(n);
+                done.countDown();
+            });
+        }
+        TimeUnit.MILLISECONDS.sleep(durationMs);
+        running.set(false);
+        done.await();
+        return reads.sum();
+    }
+
+    private void writeCsv(String csv, String fileName) throws IOException {
+        Path dir = Path.of("build", "experiments");
+        Files.createDirectories(dir);
+        Path file = dir.resolve(fileName);
+        Files.writeString(file, csv, StandardCharsets.UTF_8);
+        System.out.println("Wrote ARC read scaling metrics to " + file.toAbsolutePath());
+    }
+}
@@ -0,0 +1,120 @@
+package com.kademlia.dht;
+
+import com.kademlia.dht.node.Node;
+import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.routing.RoutingTable;
+import com.kademlia.dht.util.Digest;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Microbenchmark: routing table lookup throughput vs. reader threads while contacts churn.
+ *
+ * For each thread count (1, 2, 4, ... up to the number of cores) it runs reader threads that
+ * call {@link RoutingTable#findNeighbors} on random targets while one writer thread keeps
+ * touching, removing and re-adding contacts. Results go to
+ * build/experiments/routing_lookup_scaling.csv. Run with:
+ *
+ *   ./gradlew test --tests "com.kademlia.dht.RoutingLookupExperimentTest"
+ */
+@Tag("experiment")
+@org.junit.jupiter.api.Disabled("Microbenchmark; enable manually to get CSV output")
+class RoutingLookupExperimentTest {
+
+    private static final int KSIZE = 20;
+    private static final int CONTACTS = 5_000;
+    private static final long WARMUP_MS = 500;
+    private static final long MEASURE_MS = 2_000;
+
+    @Test
+    void lookupThroughputScalesWithCores() throws Exception {
+        RoutingTable table = new RoutingTable(node(-1), KSIZE);
+        List<Node> contacts = new ArrayList<>(CONTACTS);
+        for (int i = 0; i < CONTACTS; i++) {
+            Node n = node(i);
+            contacts.add(n);
+            table.addContact(n);
+        }
+        assertTrue(table.getNodeCount() > KSIZE, "table should hold more than one bucket of contacts");
+
+        StringBuilder sb = new StringBuilder("threads,lookups,updates,duration_ms,lookups_per_sec\n");
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            run(table, contacts, threads, WARMUP_MS);
+            long[] result = run(table, contacts, threads, MEASURE_MS);
+            double perSec = result[0] * 1000.0 / MEASURE_MS;
+            sb.append(threads).append(',')
+                    .append(result[0]).append(',')
+                    .append(result[1]).append(',')
+                    .append(MEASURE_MS).append(',')
+                    .append(perSec).append('\n');
+        }
+        writeCsv(sb.toString(), "routing_lookup_scaling.csv");
+    }
+
+    /** Returns {lookups, updates} completed in {@code durationMs}. */
+    private long[] run(RoutingTable table, List<Node> contacts, int readers, long durationMs)
+            throws InterruptedException {
+        LongAdder lookups = new LongAdder();
+        LongAdder updates = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch done = new CountDownLatch(readers + 1);
+
+        Thread writer = new Thread(() -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            while (running.get()) {
+                Node n = contacts.get(rnd.nextInt(contacts.size()));
+                if (rnd.nextInt(10) == 0) {
+                    table.removeContact(n);
+                }
+                table.addContact(n);
+                updates.increment();
+            }
+            done.countDown();
+        });
+        writer.start();
+        for (int i = 0; i < readers; i++) {
+            new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                byte[] id = new byte[NodeId.SIZE_BYTES];
+                while (running.get()) {
+                    rnd.nextBytes(id);
+                    table.findNeighbors(new Node(new NodeId(id), null, 0), KSIZE);
+                    lookups.increment();
+                }
+                done.countDown();
+            }).start();
+        }
+        TimeUnit.MILLISECONDS.sleep(durationMs);
+        running.set(false);
+        done.await();
+        return new long[]{lookups.sum(), updates.sum()};
+    }
+
+    private static Node node(int seed) throws IOException {
+        return new Node(new NodeId(Digest.hash("contact" + seed)), InetAddress.getByName("127.0.0.1"), 30000 + (seed & 0x7FFF));
+    }
+
+    private void writeCsv(String csv, String fileName) throws IOException {
+        Path dir = Path.of("build", "experiments");
+        Files.createDirectories(dir);
+        Path file = dir.resolve(fileName);
+        Files.writeString(file, csv, StandardCharsets.UTF_8);
+        System.out.println("Wrote routing lookup metrics to " + file.toAbsolutePath());
+    }
+}
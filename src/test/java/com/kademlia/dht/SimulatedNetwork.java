@@ -1,5 +1,6 @@
 package com.kademlia.dht;
 
+import com.kademlia.dht.network.TimerWheel;
 import com.kademlia.dht.network.Transport;
 import com.kademlia.dht.protocol.RpcRequest;
 import com.kademlia.dht.protocol.RpcResponse;
@@ -15,11 +16,17 @@ import java.time.Duration;
 /**
  * In-process "network" that routes RPCs between SimulatedTransport instances by port.
  * Used so multi-node experiments run without real UDP and always produce output.
+ * All transports on the network share one {@link TimerWheel} for RPC timeouts.
  */
 public final class SimulatedNetwork {
 
     private final Map<Integer, SimulatedTransport> byPort = new ConcurrentHashMap<>();
     private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final TimerWheel timer = new TimerWheel();
+
+    TimerWheel timer() {
+        return timer;
+    }
 
     public void register(int port, SimulatedTransport transport) {
         byPort.put(port, transport);
@@ -37,6 +44,10 @@ public final class SimulatedNetwork {
         executor.submit(() -> target.handleIncomingRequest(request, fromIp, fromPort));
     }
 
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
     void completePending(int senderPort, RpcResponse response) {
         SimulatedTransport sender = byPort.get(senderPort);
         if (sender != null) {
@@ -46,5 +57,6 @@ public final class SimulatedNetwork {
 
     public void shutdown() {
         executor.shutdown();
+        timer.close();
     }
 }
@@ -1,17 +1,17 @@
 package com.kademlia.dht;
 
+import com.kademlia.dht.network.TimerWheel;
 import com.kademlia.dht.network.Transport;
 import com.kademlia.dht.protocol.RpcRequest;
 import com.kademlia.dht.protocol.RpcResponse;
 import com.kademlia.dht.storage.ByteArray;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.time.Duration;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -23,8 +23,7 @@ public final class SimulatedTransport implements Transport {
 
     private final SimulatedNetwork network;
     private final int myPort;
-    private final Map<ByteArray, CompletableFuture<RpcResponse>> pending = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService timeoutExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Map<ByteArray, PendingCall> pending = new ConcurrentHashMap<>();
     private volatile RequestHandler requestHandler;
 
     public SimulatedTransport(SimulatedNetwork network, int myPort) {
@@ -39,17 +38,16 @@ public final class SimulatedTransport implements Transport {
 
     @Override
     public CompletableFuture<RpcResponse> send(RpcRequest request, InetAddress ip, int port, Duration timeout) {
-        CompletableFuture<RpcResponse> future = new CompletableFuture<>();
         ByteArray key = new ByteArray(request.messageId());
-        pending.put(key, future);
-        timeoutExecutor.schedule(() -> {
-            CompletableFuture<RpcResponse> removed = pending.remove(key);
-            if (removed != null && !removed.isDone()) {
-                removed.completeExceptionally(new TimeoutException("RPC timeout"));
+        PendingCall call = new PendingCall();
+        pending.put(key, call);
+        call.timeout = network.timer().schedule(() -> {
+            if (pending.remove(key, call)) {
+                network.execute(() -> call.future.completeExceptionally(new TimeoutException("RPC timeout")));
             }
-        }, timeout.toMillis(), java.util.concurrent.TimeUnit.MILLISECONDS);
+        }, timeout);
         network.deliverRequest(port, request, ip, myPort);
-        return future;
+        return call.future;
     }
 
     @Override
@@ -65,14 +63,30 @@ public final class SimulatedTransport implements Transport {
     }
 
     void completePending(RpcResponse response) {
-        CompletableFuture<RpcResponse> future = pending.remove(new ByteArray(response.messageId()));
-        if (future != null) {
-            future.complete(response);
+        PendingCall call = pending.remove(new ByteArray(response.messageId()));
+        if (call != null) {
+            call.timeout.cancel();
+            call.future.complete(response);
         }
     }
 
     @Override
     public void close() {
-        timeoutExecutor.shutdown();
+        for (ByteArray key : pending.keySet()) {
+            PendingCall call = pending.remove(key);
+            if (call == null) {
+                continue;
+            }
+            TimerWheel.Timeout t = call.timeout;
+            if (t != null) {
+                t.cancel();
+            }
+            call.future.completeExceptionally(new IOException("Transport closed"));
+        }
+    }
+
+    private static final class PendingCall {
+        final CompletableFuture<RpcResponse> future = new CompletableFuture<>();
+        volatile TimerWheel.Timeout timeout;
     }
 }
@@ -0,0 +1,111 @@
+package com.kademlia.dht;
+
+import com.kademlia.dht.network.UdpTransport;
+import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.protocol.PingRequest;
+import com.kademlia.dht.protocol.PingResponse;
+import com.kademlia.dht.util.Digest;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Microbenchmark: PING throughput of one {@link UdpTransport} vs. its number of receive channels.
+ *
+ * For each receiver count (1, 2, 4, ... up to the number of cores) it starts a server transport
+ * on loopback and drives it from many client transports (distinct source ports, so
+ * {@code SO_REUSEPORT} spreads them over the channels), each keeping a few pings in flight.
+ * The clients share the machine, so expect the curve to flatten before the core count.
+ * Results go to build/experiments/udp_receive_scaling.csv. Run with:
+ *
+ *   ./gradlew test --tests "com.kademlia.dht.UdpReceiveScalingExperimentTest"
+ */
+@Tag("experiment")
+@org.junit.jupiter.api.Disabled("Microbenchmark; enable manually to get CSV output")
+class UdpReceiveScalingExperimentTest {
+
+    private static final int CLIENTS = 32;
+    private static final int IN_FLIGHT_PER_CLIENT = 8;
+    private static final long WARMUP_MS = 500;
+    private static final long MEASURE_MS = 2_000;
+
+    @Test
+    void pingThroughputScalesWithReceivers() throws Exception {
+        StringBuilder sb = new StringBuilder("receivers,responses,timeouts,duration_ms,responses_per_sec\n");
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int receivers = 1; receivers <= cores; receivers *= 2) {
+            try (UdpTransport server = new UdpTransport(0, null, receivers)) {
+                NodeId serverId = new NodeId(Digest.hash("server"));
+                server.setRequestHandler((req, ip, port) ->
+                        server.sendResponse(new PingResponse(req.messageId(), serverId), ip, port));
+                run(server.localPort(), WARMUP_MS);
+                long[] result = run(server.localPort(), MEASURE_MS);
+                sb.append(server.receivers()).append(',')
+                        .append(result[0]).append(',')
+                        .append(result[1]).append(',')
+                        .append(MEASURE_MS).append(',')
+                        .append(result[0] * 1000.0 / MEASURE_MS).append('\n');
+            }
+        }
+        writeCsv(sb.toString(), "udp_receive_scaling.csv");
+    }
+
+    /** Returns {responses, timeouts} completed in {@code durationMs}. */
+    private long[] run(int serverPort, long durationMs) throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        LongAdder responses = new LongAdder();
+        LongAdder timeouts = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch done = new CountDownLatch(CLIENTS * IN_FLIGHT_PER_CLIENT);
+        List<UdpTransport> clients = new ArrayList<>();
+        for (int c = 0; c < CLIENTS; c++) {
+            UdpTransport client = new UdpTransport(0);
+            clients.add(client);
+            NodeId clientId = new NodeId(Digest.hash("client" + c));
+            for (int w = 0; w < IN_FLIGHT_PER_CLIENT; w++) {
+                int lane = w;
+                Thread.ofVirtual().start(() -> {
+                    int seq = lane;
+                    while (running.get()) {
+                        byte[] msgId = ByteBuffer.allocate(4).putInt(seq).array();
+                        seq += IN_FLIGHT_PER_CLIENT;
+                        PingRequest ping = new PingRequest(msgId, clientId, loopback, client.localPort());
+                        try {
+                            client.send(ping, loopback, serverPort, Duration.ofSeconds(1)).join();
+                            responses.increment();
+                        } catch (Exception e) {
+                            timeouts.increment();
+                        }
+                    }
+                    done.countDown();
+                });
+            }
+        }
+        TimeUnit.MILLISECONDS.sleep(durationMs);
+        running.set(false);
+        done.await();
+        clients.forEach(UdpTransport::close);
+        return new long[]{responses.sum(), timeouts.sum()};
+    }
+
+    private void writeCsv(String csv, String fileName) throws IOException {
+        Path dir = Path.of("build", "experiments");
+        Files.createDirectories(dir);
+        Path file = dir.resolve(fileName);
+        Files.writeString(file, csv, StandardCharsets.UTF_8);
+        System.out.println("Wrote UDP receive scaling metrics to " + file.toAbsolutePath());
+    }
+}
@@ -0,0 +1,128 @@
+package com.kademlia.dht.crawling;
+
+import com.kademlia.dht.network.Transport;
+import com.kademlia.dht.node.Node;
+import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.protocol.BusyResponse;
+import com.kademlia.dht.protocol.FindNodeRequest;
+import com.kademlia.dht.protocol.FindNodeResponse;
+import com.kademlia.dht.protocol.KademliaProtocol;
+import com.kademlia.dht.protocol.RpcRequest;
+import com.kademlia.dht.protocol.RpcResponse;
+import com.kademlia.dht.storage.ForgetfulStorage;
+import com.kademlia.dht.util.Digest;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NodeSpiderCrawlTest {
+
+    private static final int KSIZE = 4;
+    private static final int ALPHA = 3;
+
+    /**
+     * Every peer answers FIND_NODE at once with the K closest nodes it knows (all of them),
+     * except {@code silentPort}, whose reply never arrives, and {@code busyPort}, which answers BUSY.
+     */
+    private static final class FakeTransport implements Transport {
+        private final List<Node> network;
+        private final int silentPort;
+        private final int busyPort;
+        private final List<Integer> queried = new ArrayList<>();
+
+        FakeTransport(List<Node> network, int silentPort) {
+            this(network, silentPort, -1);
+        }
+
+        FakeTransport(List<Node> network, int silentPort, int busyPort) {
+            this.network = network;
+            this.silentPort = silentPort;
+            this.busyPort = busyPort;
+        }
+
+        @Override
+        public void setRequestHandler(RequestHandler handler) {
+        }
+
+        @Override
+        public synchronized CompletableFuture<RpcResponse> send(RpcRequest request, InetAddress ip, int port,
+                                                                Duration timeout) {
+            queried.add(port);
+            if (port == silentPort) {
+                return new CompletableFuture<>();
+            }
+            if (port == busyPort) {
+                return CompletableFuture.completedFuture(new BusyResponse(request.messageId()));
+            }
+            NodeId target = ((FindNodeRequest) request).targetId();
+            List<Node> closest = new ArrayList<>(network);
+            closest.sort((a, b) -> target.compareDistance(a.id(), b.id()));
+            return CompletableFuture.completedFuture(
+                    new FindNodeResponse(request.messageId(), closest.subList(0, KSIZE)));
+        }
+
+        @Override
+        public void sendResponse(RpcResponse response, InetAddress ip, int port) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static Node node(int seed) throws Exception {
+        return new Node(new NodeId(Digest.hash("crawl" + seed)), InetAddress.getByName("127.0.0.1"), 9000 + seed);
+    }
+
+    @Test
+    void testSlowPeerDoesNotStallLookup() throws Exception {
+        List<Node> network = new ArrayList<>();
+        for (int i = 1; i <= 50; i++) {
+            network.add(node(i));
+        }
+        Node target = new Node(new NodeId(Digest.hash("target")), null, 0);
+        List<Node> byDistance = new ArrayList<>(network);
+        byDistance.sort((a, b) -> target.id().compareDistance(a.id(), b.id()));
+        Node slow = byDistance.get(byDistance.size() - 1);
+        List<Node> initial = List.of(slow, byDistance.get(30), byDistance.get(40));
+
+        FakeTransport transport = new FakeTransport(network, slow.port());
+        KademliaProtocol protocol = new KademliaProtocol(node(0), new ForgetfulStorage(3600), KSIZE, transport);
+        List<Node> found = new NodeSpiderCrawl(protocol, target, initial, KSIZE, ALPHA)
+                .find()
+                .get(2, TimeUnit.SECONDS);
+
+        assertEquals(byDistance.subList(0, KSIZE), found);
+        assertTrue(transport.queried.contains(slow.port()));
+    }
+
+    @Test
+    void testBusyPeerIsRoutedAroundWithoutPenalty() throws Exception {
+        List<Node> network = new ArrayList<>();
+        for (int i = 1; i <= 50; i++) {
+            network.add(node(i));
+        }
+        Node target = new Node(new NodeId(Digest.hash("target")), null, 0);
+        List<Node> byDistance = new ArrayList<>(network);
+        byDistance.sort((a, b) -> target.id().compareDistance(a.id(), b.id()));
+        Node busy = byDistance.get(0);
+
+        FakeTransport transport = new FakeTransport(network, -1, busy.port());
+        KademliaProtocol protocol = new KademliaProtocol(node(0), new ForgetfulStorage(3600), KSIZE, transport);
+        List<Node> found = new NodeSpiderCrawl(protocol, target, byDistance.subList(10, 13), KSIZE, ALPHA)
+                .find()
+                .get(2, TimeUnit.SECONDS);
+
+        assertTrue(transport.queried.contains(busy.port()));
+        assertFalse(found.contains(busy));
+        assertEquals(byDistance.subList(1, KSIZE), found.subList(0, KSIZE - 1));
+        assertEquals(0, protocol.getRoutingTable().getHealth().get(busy.id()).getFailureStreak());
+    }
+}
@@ -0,0 +1,73 @@
+package com.kademlia.dht.network;
+
+import com.kademlia.dht.protocol.MessageType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControlTest {
+
+    @Test
+    void testShedsWhenLaneQueueIsFull() throws Exception {
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        AdmissionControl admission = new AdmissionControl(executor, new AdmissionControl.Limits(8,
+                Map.of(MessageType.STORE, new AdmissionControl.Limit(1, 1))));
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(2);
+        Runnable blocking = () -> {
+            awaitQuietly(release);
+            ran.countDown();
+        };
+
+        assertTrue(admission.submit(MessageType.STORE, blocking));
+        assertTrue(admission.submit(MessageType.STORE, blocking));
+        assertEquals(1, admission.queued(MessageType.STORE));
+        assertFalse(admission.submit(MessageType.STORE, blocking));
+        assertEquals(1, admission.shedCount());
+        assertTrue(admission.submit(MessageType.PING, () -> { }), "other lanes are unaffected");
+
+        release.countDown();
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    @Test
+    void testFreedSlotGoesToCheapestWaitingLane() throws Exception {
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        AdmissionControl admission = new AdmissionControl(executor, new AdmissionControl.Limits(1, Map.of()));
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        List<MessageType> order = new CopyOnWriteArrayList<>();
+
+        assertTrue(admission.submit(MessageType.FIND_VALUE, () -> {
+            awaitQuietly(release);
+            done.countDown();
+        }));
+        for (MessageType type : List.of(MessageType.STORE, MessageType.PING)) {
+            assertTrue(admission.submit(type, () -> {
+                order.add(type);
+                done.countDown();
+            }));
+        }
+        release.countDown();
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(MessageType.PING, MessageType.STORE), order);
+        executor.shutdown();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
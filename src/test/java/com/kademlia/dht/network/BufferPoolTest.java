@@ -0,0 +1,38 @@
+package com.kademlia.dht.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+
+    @Test
+    void testReusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(128, 2);
+        ByteBuffer a = pool.acquire();
+        assertTrue(a.isDirect());
+        assertEquals(128, a.capacity());
+        a.putInt(42);
+        pool.release(a);
+        ByteBuffer b = pool.acquire();
+        assertSame(a, b);
+        assertEquals(0, b.position());
+        assertEquals(128, b.limit());
+    }
+
+    @Test
+    void testPoolIsBounded() {
+        BufferPool pool = new BufferPool(16, 2);
+        ByteBuffer a = pool.acquire();
+        ByteBuffer b = pool.acquire();
+        ByteBuffer c = pool.acquire();
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(2, pool.pooled());
+        pool.release(ByteBuffer.allocate(32));
+        assertEquals(2, pool.pooled());
+    }
+}
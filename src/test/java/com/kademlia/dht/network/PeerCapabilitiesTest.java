@@ -0,0 +1,65 @@
+package com.kademlia.dht.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerCapabilitiesTest {
+
+    @Test
+    void testRemembersBitsPerAddressAndPort() throws Exception {
+        PeerCapabilities peers = new PeerCapabilities(64);
+        InetAddress a = InetAddress.getByName("10.0.0.1");
+        InetAddress b = InetAddress.getByName("10.0.0.2");
+        assertEquals(0, peers.get(a, 4000));
+        peers.put(a, 4000, 1);
+        assertEquals(1, peers.get(a, 4000));
+        assertEquals(0, peers.get(a, 4001));
+        assertEquals(0, peers.get(b, 4000));
+
+        peers.put(a, 4000, 0);
+        assertEquals(0, peers.get(a, 4000));
+        peers.put(a, 4000, 3);
+        peers.forget(a, 4000);
+        assertEquals(0, peers.get(a, 4000));
+    }
+
+    @Test
+    void testCollidingPeersNeverReadEachOthersBits() throws Exception {
+        PeerCapabilities peers = new PeerCapabilities(2);
+        for (int i = 1; i <= 100; i++) {
+            peers.put(InetAddress.getByName("10.0.1." + i), 5000, 1);
+        }
+        int known = 0;
+        for (int i = 1; i <= 100; i++) {
+            int caps = peers.get(InetAddress.getByName("10.0.1." + i), 5000);
+            assertTrue(caps == 0 || caps == 1);
+            known += caps;
+        }
+        assertTrue(known >= 1 && known <= 2, "known " + known);
+        peers.forget(InetAddress.getByName("10.0.1.100"), 5000);
+        assertEquals(0, peers.get(InetAddress.getByName("10.0.1.100"), 5000));
+    }
+
+    @Test
+    void testIpv6PeersInOnePrefixKeepTheirOwnBits() throws Exception {
+        InetAddress a = InetAddress.getByName("2001:db8::1");
+        InetAddress b = InetAddress.getByName("2001:db8::2");
+        PeerCapabilities peers = new PeerCapabilities(64);
+        peers.put(a, 4000, 1);
+        assertEquals(1, peers.get(a, 4000));
+        assertEquals(0, peers.get(b, 4000));
+
+        // Even when they share a slot, one never reads the other's bits
+        PeerCapabilities tiny = new PeerCapabilities(2);
+        for (int i = 1; i <= 100; i++) {
+            tiny.put(InetAddress.getByName("2001:db8::" + Integer.toHexString(i)), 4000, i % 2);
+        }
+        for (int i = 1; i <= 100; i++) {
+            int caps = tiny.get(InetAddress.getByName("2001:db8::" + Integer.toHexString(i)), 4000);
+            assertTrue(caps == 0 || i % 2 == 1, "legacy peer " + i + " read as compact");
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.kademlia.dht.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PendingTableTest {
+
+    @Test
+    void testMatchesOnIdAndSender() throws Exception {
+        InetAddress peer = InetAddress.getByName("10.0.0.1");
+        InetAddress spoofer = InetAddress.getByName("10.0.0.2");
+        PendingTable table = new PendingTable(64);
+        PendingCall call = new PendingCall(42, peer, 4000);
+        assertTrue(table.put(call));
+
+        assertNull(table.remove(42, spoofer, 4000));
+        assertNull(table.remove(42, peer, 4001));
+        assertNull(table.remove(43, peer, 4000));
+        assertSame(call, table.remove(42, peer, 4000));
+        assertNull(table.remove(42, peer, 4000));
+        assertFalse(table.remove(call));
+    }
+
+    @Test
+    void testCollidingIdsProbeAndBoundedCapacity() throws Exception {
+        InetAddress peer = InetAddress.getByName("10.0.0.1");
+        PendingTable table = new PendingTable(16);
+        PendingCall[] calls = new PendingCall[16];
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = new PendingCall(5 + 16 * i, peer, 4000);
+            assertTrue(table.put(calls[i]));
+        }
+        assertFalse(table.put(new PendingCall(5 + 16 * 16, peer, 4000)));
+        assertTrue(table.remove(calls[3]));
+        assertSame(calls[7], table.remove(5 + 16 * 7, peer, 4000));
+        assertTrue(table.put(new PendingCall(5 + 16 * 16, peer, 4000)));
+    }
+}
@@ -0,0 +1,66 @@
+package com.kademlia.dht.network;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+
+    @Test
+    void testFiresAfterDelay() throws Exception {
+        try (TimerWheel timer = new TimerWheel(Duration.ofMillis(5), 8)) {
+            CountDownLatch fired = new CountDownLatch(1);
+            long start = System.nanoTime();
+            TimerWheel.Timeout t = timer.schedule(fired::countDown, Duration.ofMillis(100));
+            assertTrue(fired.await(2, TimeUnit.SECONDS));
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            assertTrue(elapsedMillis >= 100, "fired early: " + elapsedMillis);
+            assertTrue(t.isExpired());
+            assertFalse(t.cancel());
+            awaitNoPending(timer);
+        }
+    }
+
+    @Test
+    void testCancelledTimeoutsNeverFire() throws Exception {
+        try (TimerWheel timer = new TimerWheel(Duration.ofMillis(5), 8)) {
+            AtomicInteger fired = new AtomicInteger();
+            CountDownLatch kept = new CountDownLatch(5_000);
+            List<TimerWheel.Timeout> timeouts = new ArrayList<>();
+            // Seconds of delay, so nothing fires before the cancels below even on a slow machine
+            for (int i = 0; i < 10_000; i++) {
+                timeouts.add(timer.schedule(() -> {
+                    fired.incrementAndGet();
+                    kept.countDown();
+                }, Duration.ofMillis(2_000 + i % 200)));
+            }
+            assertEquals(10_000, timer.pendingCount());
+            for (int i = 0; i < timeouts.size(); i += 2) {
+                assertTrue(timeouts.get(i).cancel());
+            }
+            assertEquals(5_000, timer.pendingCount());
+            assertTrue(kept.await(10, TimeUnit.SECONDS));
+            awaitNoPending(timer);
+            assertEquals(5_000, fired.get());
+            for (int i = 0; i < timeouts.size(); i++) {
+                assertEquals(i % 2 == 0, timeouts.get(i).isCancelled());
+            }
+        }
+    }
+
+    /** Tasks count as pending until they return, which is just after they signal the test. */
+    private static void awaitNoPending(TimerWheel timer) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (timer.pendingCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, timer.pendingCount());
+    }
+}
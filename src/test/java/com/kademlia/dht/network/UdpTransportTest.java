@@ -0,0 +1,235 @@
+package com.kademlia.dht.network;
+
+import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.protocol.BusyResponse;
+import com.kademlia.dht.protocol.MessageCodec;
+import com.kademlia.dht.protocol.MessageType;
+import com.kademlia.dht.protocol.PingRequest;
+import com.kademlia.dht.protocol.PingResponse;
+import com.kademlia.dht.protocol.RpcMessage;
+import com.kademlia.dht.protocol.RpcResponse;
+import com.kademlia.dht.util.Digest;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UdpTransportTest {
+
+    @Test
+    void testShardedReceiversAnswerEveryPeer() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        NodeId serverId = new NodeId(Digest.hash("server"));
+        List<UdpTransport> clients = new ArrayList<>();
+        try (UdpTransport server = new UdpTransport(0, null, 4)) {
+            server.setRequestHandler((req, ip, port) ->
+                    server.sendResponse(new PingResponse(req.messageId(), serverId), ip, port));
+            assertEquals(reusePortSupported() ? 4 : 1, server.receivers());
+
+            List<CompletableFuture<RpcResponse>> calls = new ArrayList<>();
+            for (int c = 0; c < 8; c++) {
+                UdpTransport client = new UdpTransport(0);
+                clients.add(client);
+                NodeId clientId = new NodeId(Digest.hash("client" + c));
+                for (int i = 0; i < 20; i++) {
+                    byte[] msgId = ByteBuffer.allocate(4).putInt(c * 100 + i).array();
+                    PingRequest ping = new PingRequest(msgId, clientId, loopback, client.localPort());
+                    calls.add(client.send(ping, loopback, server.localPort(), Duration.ofSeconds(5)));
+                }
+            }
+            for (CompletableFuture<RpcResponse> call : calls) {
+                PingResponse resp = (PingResponse) call.get(5, TimeUnit.SECONDS);
+                assertEquals(serverId, resp.nodeId());
+            }
+        } finally {
+            clients.forEach(UdpTransport::close);
+        }
+    }
+
+    @Test
+    void testOverloadedLaneAnswersBusy() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        NodeId id = new NodeId(Digest.hash("client"));
+        AdmissionControl.Limits limits = new AdmissionControl.Limits(4,
+                Map.of(MessageType.PING, new AdmissionControl.Limit(1, 0)));
+        CountDownLatch release = new CountDownLatch(1);
+        try (UdpTransport server = new UdpTransport(0, null, 1, limits);
+             UdpTransport client = new UdpTransport(0)) {
+            server.setRequestHandler((req, ip, port) -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                server.sendResponse(new PingResponse(req.messageId(), id), ip, port);
+            });
+            CompletableFuture<RpcResponse> first = client.send(
+                    new PingRequest(new byte[]{0, 0, 0, 1}, id, loopback, client.localPort()),
+                    loopback, server.localPort(), Duration.ofSeconds(5));
+            Thread.sleep(200);
+            RpcResponse second = client.send(
+                    new PingRequest(new byte[]{0, 0, 0, 2}, id, loopback, client.localPort()),
+                    loopback, server.localPort(), Duration.ofSeconds(5)).get(5, TimeUnit.SECONDS);
+            assertInstanceOf(BusyResponse.class, second);
+            assertEquals(1, server.shedCount());
+
+            release.countDown();
+            assertInstanceOf(PingResponse.class, first.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void testRejectsZeroReceivers() {
+        assertThrows(IllegalArgumentException.class, () -> new UdpTransport(0, null, 0));
+    }
+
+    @Test
+    void testLostRequestIsRetransmittedWithSameMessageId() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        NodeId id = new NodeId(Digest.hash("client"));
+        List<byte[]> seen = new CopyOnWriteArrayList<>();
+        try (UdpTransport server = new UdpTransport(0); UdpTransport client = new UdpTransport(0)) {
+            server.setRequestHandler((req, ip, port) -> {
+                seen.add(req.messageId());
+                // Drop the first copy, as a lossy link would
+                if (seen.size() > 1) {
+                    server.sendResponse(new PingResponse(req.messageId(), id), ip, port);
+                }
+            });
+            long start = System.nanoTime();
+            RpcResponse resp = client.send(new PingRequest(new byte[]{0, 0, 0, 7}, id, loopback, client.localPort()),
+                    loopback, server.localPort(), Duration.ofMillis(100), 3).get(5, TimeUnit.SECONDS);
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            assertTrue(resp instanceof PingResponse);
+            assertEquals(2, seen.size());
+            assertArrayEquals(seen.get(0), seen.get(1));
+            assertEquals(1, client.retransmitCount());
+            assertTrue(elapsedMs < 1000, "took " + elapsedMs + " ms");
+        }
+    }
+
+    @Test
+    void testCallFailsOnceRetriesRunOut() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        NodeId id = new NodeId(Digest.hash("client"));
+        try (UdpTransport server = new UdpTransport(0); UdpTransport client = new UdpTransport(0)) {
+            server.setRequestHandler((req, ip, port) -> {
+            });
+            long start = System.nanoTime();
+            CompletableFuture<RpcResponse> call = client.send(
+                    new PingRequest(new byte[]{0, 0, 0, 8}, id, loopback, client.localPort()),
+                    loopback, server.localPort(), Duration.ofMillis(50), 2);
+            ExecutionException e = assertThrows(ExecutionException.class, () -> call.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof TimeoutException);
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            // 50 + 100 + 200 ms
+            assertTrue(elapsedMs >= 300, "failed after " + elapsedMs + " ms");
+            assertEquals(2, client.retransmitCount());
+        }
+    }
+
+    @Test
+    void testSilentPeerFailsWithinCallTimeCap() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        NodeId id = new NodeId(Digest.hash("client"));
+        try (UdpTransport server = new UdpTransport(0); UdpTransport client = new UdpTransport(0)) {
+            server.setRequestHandler((req, ip, port) -> {
+            });
+            long start = System.nanoTime();
+            // Uncapped, 1 + 2 + 4 + 8 s; each copy is held to 3 s and the whole call to 5 s
+            CompletableFuture<RpcResponse> call = client.send(
+                    new PingRequest(new byte[]{0, 0, 0, 10}, id, loopback, client.localPort()),
+                    loopback, server.localPort(), Duration.ofSeconds(1), 3);
+            ExecutionException e = assertThrows(ExecutionException.class, () -> call.get(10, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof TimeoutException);
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            assertTrue(elapsedMs >= 4_900 && elapsedMs < 6_500, "failed after " + elapsedMs + " ms");
+            assertEquals(2, client.retransmitCount());
+        }
+    }
+
+    @Test
+    void testPendingCallsFailWhenClosed() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        NodeId id = new NodeId(Digest.hash("client"));
+        try (UdpTransport server = new UdpTransport(0)) {
+            server.setRequestHandler((req, ip, port) -> {
+            });
+            UdpTransport client = new UdpTransport(0);
+            CompletableFuture<RpcResponse> call = client.send(
+                    new PingRequest(new byte[]{0, 0, 0, 9}, id, loopback, client.localPort()),
+                    loopback, server.localPort(), Duration.ofSeconds(30), 2);
+            client.close();
+            // Well before the call's own deadline
+            ExecutionException e = assertThrows(ExecutionException.class, () -> call.get(1, TimeUnit.SECONDS));
+            assertInstanceOf(IOException.class, e.getCause());
+
+            CompletableFuture<RpcResponse> late = client.send(
+                    new PingRequest(new byte[]{0, 0, 0, 10}, id, loopback, client.localPort()),
+                    loopback, server.localPort(), Duration.ofSeconds(30));
+            assertTrue(late.isCompletedExceptionally());
+        }
+    }
+
+    @Test
+    void testRetransmissionKeepsTheNegotiatedFormat() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        NodeId id = new NodeId(Digest.hash("client"));
+        MessageCodec codec = new MessageCodec();
+        List<byte[]> received = new CopyOnWriteArrayList<>();
+        try (DatagramChannel server = DatagramChannel.open(); UdpTransport client = new UdpTransport(0)) {
+            server.bind(new InetSocketAddress(loopback, 0));
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            Thread.ofPlatform().daemon().start(() -> {
+                ByteBuffer buf = ByteBuffer.allocate(2048);
+                try {
+                    while (true) {
+                        buf.clear();
+                        InetSocketAddress from = (InetSocketAddress) server.receive(buf);
+                        byte[] datagram = Arrays.copyOf(buf.array(), buf.position());
+                        received.add(datagram);
+                        // Drop the first copy of the second request, as a lossy link would
+                        if (received.size() != 2) {
+                            RpcMessage req = codec.decode(ByteBuffer.wrap(datagram), from.getAddress(), from.getPort());
+                            server.send(ByteBuffer.wrap(codec.encode(new PingResponse(req.messageId(), id), 0)), from);
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed at the end of the test
+                }
+            });
+            // The first exchange tells the client that the server reads the compact format
+            client.send(new PingRequest(new byte[]{0, 0, 0, 1}, id, loopback, client.localPort()),
+                    loopback, port, Duration.ofSeconds(5)).get(5, TimeUnit.SECONDS);
+            client.send(new PingRequest(new byte[]{0, 0, 0, 2}, id, loopback, client.localPort()),
+                    loopback, port, Duration.ofMillis(100), 3).get(5, TimeUnit.SECONDS);
+            assertEquals(3, received.size());
+            assertTrue(received.get(1).length < received.get(0).length, "second request should be compact");
+            assertArrayEquals(received.get(1), received.get(2), "a retransmission fell back to the legacy format");
+            assertEquals(1, client.retransmitCount());
+        }
+    }
+
+    private static boolean reusePortSupported() throws Exception {
+        try (DatagramChannel ch = DatagramChannel.open()) {
+            return ch.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+}
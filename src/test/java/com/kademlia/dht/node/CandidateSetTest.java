@@ -0,0 +1,96 @@
+package com.kademlia.dht.node;
+
+import com.kademlia.dht.util.Digest;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CandidateSetTest {
+
+    private static Node node(int seed) {
+        return new Node(new NodeId(Digest.hash("candidate" + seed)), null, 0);
+    }
+
+    private static List<Node> sortedNodes(NodeId target, int count) {
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(node(i));
+        }
+        nodes.sort((a, b) -> target.compareDistance(a.id(), b.id()));
+        return nodes;
+    }
+
+    @Test
+    void testKeepsClosestInOrderAndBounded() {
+        NodeId target = new NodeId(Digest.hash("target"));
+        List<Node> sorted = sortedNodes(target, 100);
+        List<Node> shuffled = new ArrayList<>(sorted);
+        Collections.shuffle(shuffled, new Random(3));
+        CandidateSet set = new CandidateSet(target, 4);
+        set.push(shuffled);
+        set.push(shuffled);
+        assertEquals(4 * CandidateSet.CAPACITY_FACTOR, set.size());
+        assertEquals(sorted.subList(0, 4), set.toList());
+        assertTrue(set.contains(sorted.get(0).id()));
+        assertFalse(set.contains(sorted.get(99).id()));
+    }
+
+    @Test
+    void testStateTracking() {
+        NodeId target = new NodeId(Digest.hash("target"));
+        List<Node> sorted = sortedNodes(target, 6);
+        CandidateSet set = new CandidateSet(target, 3);
+        set.push(sorted);
+        assertEquals(sorted.subList(0, 3), set.getNotContacted());
+        assertEquals(sorted.subList(0, 2), set.getNotContacted(2));
+
+        set.markContacted(sorted.get(0));
+        set.markContacted(sorted.get(1));
+        assertEquals(List.of(sorted.get(2)), set.getNotContacted());
+
+        set.markResponded(sorted.get(0));
+        set.markFailed(sorted.get(1));
+        assertEquals(List.of(sorted.get(2), sorted.get(3)), set.getNotContacted());
+        assertEquals(List.of(sorted.get(0), sorted.get(2), sorted.get(3)), set.toList());
+        assertFalse(set.haveAllResponded());
+
+        set.markResponded(sorted.get(2));
+        set.markResponded(sorted.get(3));
+        assertTrue(set.haveAllResponded());
+        assertFalse(set.push(sorted.get(1)), "failed nodes are not re-added");
+    }
+
+    @Test
+    void testNodeListPushMatchesMaterializedPush() throws Exception {
+        NodeId target = new NodeId(Digest.hash("target"));
+        InetAddress ip = InetAddress.getByName("10.0.0.1");
+        List<Node> nodes = new ArrayList<>();
+        ByteBuffer wire = ByteBuffer.allocate(100 * NodeList.ENTRY_BYTES);
+        for (int i = 0; i < 100; i++) {
+            Node n = new Node(new NodeId(Digest.hash("candidate" + i)), ip, 4000 + i);
+            nodes.add(n);
+            n.id().writeTo(wire);
+            wire.put(ip.getAddress()).putShort((short) n.port());
+        }
+        wire.flip();
+        NodeList view = NodeList.read(wire, 100);
+        assertEquals(nodes, view);
+
+        CandidateSet materialized = new CandidateSet(target, 4);
+        materialized.push(nodes);
+        CandidateSet flyweight = new CandidateSet(target, 4);
+        flyweight.push(view);
+        flyweight.push(view);
+        assertEquals(materialized.size(), flyweight.size());
+        assertEquals(materialized.toList(), flyweight.toList());
+        int closest = nodes.indexOf(materialized.toList().get(0));
+        assertFalse(flyweight.push(view, closest), "a known contact is not added twice");
+    }
+}
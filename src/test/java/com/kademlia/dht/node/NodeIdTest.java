@@ -3,6 +3,11 @@ package com.kademlia.dht.node;
 import com.kademlia.dht.util.Digest;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class NodeIdTest {
@@ -36,4 +41,41 @@ class NodeIdTest {
         assertNotNull(n.toBigInteger());
         assertTrue(n.toBigInteger().bitLength() <= 160);
     }
+
+    @Test
+    void testCompareDistanceMatchesXorDistance() {
+        NodeId target = new NodeId(Digest.hash("target"));
+        for (int i = 0; i < 50; i++) {
+            NodeId a = new NodeId(Digest.hash("a" + i));
+            NodeId b = new NodeId(Digest.hash("b" + i));
+            int expected = Integer.signum(target.xorDistance(a).compareTo(target.xorDistance(b)));
+            assertEquals(expected, Integer.signum(target.compareDistance(a, b)));
+        }
+        assertEquals(0, target.compareDistance(target, target));
+    }
+
+    @Test
+    void testBytesRoundTrip() throws Exception {
+        byte[] raw = Digest.hash("roundtrip");
+        NodeId n = new NodeId(raw);
+        assertArrayEquals(raw, n.getBytes());
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        n.writeTo(new DataOutputStream(baos));
+        assertArrayEquals(raw, baos.toByteArray());
+        NodeId read = NodeId.readFrom(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        assertEquals(n, read);
+    }
+
+    @Test
+    void testSharedPrefixLength() {
+        byte[] a = new byte[20];
+        byte[] b = new byte[20];
+        assertEquals(160, new NodeId(a).sharedPrefixLength(new NodeId(b)));
+        for (int bit : new int[]{0, 7, 63, 64, 100, 128, 159}) {
+            byte[] c = new byte[20];
+            c[bit / 8] = (byte) (0x80 >>> (bit % 8));
+            assertEquals(bit, new NodeId(a).sharedPrefixLength(new NodeId(c)));
+            assertEquals(bit + 1, new NodeId(a).distanceTo(new NodeId(c)));
+        }
+    }
 }
@@ -0,0 +1,134 @@
+package com.kademlia.dht.protocol;
+
+import com.kademlia.dht.network.Transport;
+import com.kademlia.dht.network.UdpTransport;
+import com.kademlia.dht.node.Node;
+import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.storage.ForgetfulStorage;
+import com.kademlia.dht.util.Digest;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchRpcTest {
+
+    /** Counts the requests a protocol sends, to check how many datagrams a batch took. */
+    private static final class CountingTransport implements Transport {
+        final Transport delegate;
+        final AtomicInteger sent = new AtomicInteger();
+
+        CountingTransport(Transport delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void setRequestHandler(RequestHandler handler) {
+            delegate.setRequestHandler(handler);
+        }
+
+        @Override
+        public CompletableFuture<RpcResponse> send(RpcRequest request, InetAddress ip, int port, Duration timeout) {
+            sent.incrementAndGet();
+            return delegate.send(request, ip, port, timeout);
+        }
+
+        @Override
+        public CompletableFuture<RpcResponse> send(RpcRequest request, InetAddress ip, int port, Duration rto,
+                                                   int retries) {
+            sent.incrementAndGet();
+            return delegate.send(request, ip, port, rto, retries);
+        }
+
+        @Override
+        public void sendResponse(RpcResponse response, InetAddress ip, int port) {
+            delegate.sendResponse(response, ip, port);
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+
+    @Test
+    void testBatchesCarryManyItemsPerDatagram() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        try (UdpTransport ta = new UdpTransport(0); UdpTransport tb = new UdpTransport(0)) {
+            CountingTransport counting = new CountingTransport(ta);
+            Node a = new Node(new NodeId(Digest.hash("a")), loopback, ta.localPort());
+            Node b = new Node(new NodeId(Digest.hash("b")), loopback, tb.localPort());
+            KademliaProtocol pa = new KademliaProtocol(a, new ForgetfulStorage(3600), 20, counting);
+            ForgetfulStorage storageB = new ForgetfulStorage(3600);
+            KademliaProtocol pb = new KademliaProtocol(b, storageB, 20, tb);
+            ta.setRequestHandler(pa::handleRequest);
+            tb.setRequestHandler(pb::handleRequest);
+
+            List<StoreBatchRequest.Entry> entries = new ArrayList<>();
+            List<byte[]> keys = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                byte[] key = Digest.hash("key" + i);
+                keys.add(key);
+                entries.add(new StoreBatchRequest.Entry(key, ("value" + i).getBytes()));
+            }
+            byte[] big = new byte[KademliaProtocol.INLINE_VALUE_LIMIT * 3];
+            Arrays.fill(big, (byte) 9);
+            entries.add(new StoreBatchRequest.Entry(Digest.hash("big"), big));
+
+            boolean[] stored = pa.callStoreBatch(b, entries).get(30, TimeUnit.SECONDS);
+            for (boolean s : stored) {
+                assertTrue(s);
+            }
+            for (StoreBatchRequest.Entry e : entries) {
+                assertArrayEquals(e.value(), storageB.get(e.key()).orElseThrow());
+            }
+            // 1000 small entries in a handful of datagrams, plus one STORE for the large value
+            assertTrue(counting.sent.get() <= 1 + 1000 / 200, "sent " + counting.sent.get());
+
+            keys.add(Digest.hash("absent"));
+            keys.add(Digest.hash("big"));
+            counting.sent.set(0);
+            List<Optional<byte[]>> values = pa.callFindValueBatch(b, keys).get(30, TimeUnit.SECONDS);
+            assertEquals(keys.size(), values.size());
+            for (int i = 0; i < 1000; i++) {
+                assertArrayEquals(("value" + i).getBytes(), values.get(i).orElseThrow());
+            }
+            assertTrue(values.get(1000).isEmpty());
+            assertArrayEquals(big, values.get(1001).orElseThrow());
+            int batches = counting.sent.get() - (big.length + KademliaProtocol.CHUNK_SIZE - 1) / KademliaProtocol.CHUNK_SIZE;
+            assertTrue(batches <= 1000 / 200, "sent " + batches + " batches");
+
+            List<NodeId> targets = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                targets.add(new NodeId(Digest.hash("target" + i)));
+            }
+            List<List<Node>> closest = pa.callFindNodeBatch(b, targets).get(30, TimeUnit.SECONDS);
+            assertEquals(targets.size(), closest.size());
+            for (List<Node> nodes : closest) {
+                assertEquals(List.of(a), nodes);
+            }
+        }
+    }
+
+    @Test
+    void testPackRespectsByteAndItemLimits() {
+        List<Integer> sizes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            sizes.add(KademliaProtocol.BATCH_BYTES / 4);
+        }
+        sizes.add(KademliaProtocol.BATCH_BYTES * 2);
+        sizes.add(1);
+        List<List<Integer>> batches = KademliaProtocol.pack(sizes, s -> s, 3);
+        // Three per batch by count, then the oversized item alone and the next one after it
+        assertEquals(List.of(3, 3, 3, 1, 1, 1), batches.stream().map(List::size).toList());
+    }
+}
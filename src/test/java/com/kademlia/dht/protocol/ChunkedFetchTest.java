@@ -0,0 +1,57 @@
+package com.kademlia.dht.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedFetchTest {
+
+    private static final int CHUNK = 100;
+
+    @Test
+    void testLostChunksAreRefetchedIndividually() throws Exception {
+        byte[] value = new byte[10_050];
+        new Random(1).nextBytes(value);
+        Set<Integer> lostOnce = new HashSet<>();
+        AtomicInteger requests = new AtomicInteger();
+
+        byte[] fetched = new ChunkedFetch(value.length, CHUNK, 8, offset -> {
+            requests.incrementAndGet();
+            synchronized (lostOnce) {
+                if ((offset / CHUNK) % 7 == 0 && lostOnce.add(offset)) {
+                    return CompletableFuture.completedFuture(null);
+                }
+            }
+            return CompletableFuture.completedFuture(chunk(value, offset));
+        }).start().get(2, TimeUnit.SECONDS);
+
+        assertArrayEquals(value, fetched);
+        int chunks = (value.length + CHUNK - 1) / CHUNK;
+        assertEquals(chunks + lostOnce.size(), requests.get());
+    }
+
+    @Test
+    void testGivesUpOnChunkThatKeepsFailing() {
+        byte[] value = new byte[1_000];
+        CompletableFuture<byte[]> fetch = new ChunkedFetch(value.length, CHUNK, 4, offset ->
+                CompletableFuture.completedFuture(offset == 300 ? null : chunk(value, offset))).start();
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> fetch.get(2, TimeUnit.SECONDS));
+        assertTrue(e.getCause().getMessage().contains("300"));
+    }
+
+    private static ChunkResponse chunk(byte[] value, int offset) {
+        byte[] data = Arrays.copyOfRange(value, offset, Math.min(value.length, offset + CHUNK));
+        return new ChunkResponse(new byte[4], true, offset, ByteBuffer.wrap(data));
+    }
+}
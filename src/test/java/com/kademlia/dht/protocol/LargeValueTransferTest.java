@@ -0,0 +1,145 @@
+package com.kademlia.dht.protocol;
+
+import com.kademlia.dht.network.AdmissionControl;
+import com.kademlia.dht.network.UdpTransport;
+import com.kademlia.dht.node.Node;
+import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.routing.RoutingTable;
+import com.kademlia.dht.storage.ForgetfulStorage;
+import com.kademlia.dht.util.Bytes;
+import com.kademlia.dht.util.Digest;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LargeValueTransferTest {
+
+    @Test
+    void testStoreAndFindValueBeyondDatagramLimit() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        byte[] key = Digest.hash("big");
+        byte[] value = new byte[2 << 20];
+        new Random(7).nextBytes(value);
+        try (UdpTransport ta = new UdpTransport(0); UdpTransport tb = new UdpTransport(0)) {
+            Node a = new Node(new NodeId(Digest.hash("a")), loopback, ta.localPort());
+            Node b = new Node(new NodeId(Digest.hash("b")), loopback, tb.localPort());
+            KademliaProtocol pa = new KademliaProtocol(a, new ForgetfulStorage(3600), 20, ta);
+            ForgetfulStorage storageB = new ForgetfulStorage(3600);
+            KademliaProtocol pb = new KademliaProtocol(b, storageB, 20, tb);
+            ta.setRequestHandler(pa::handleRequest);
+            tb.setRequestHandler(pb::handleRequest);
+
+            StoreResponse stored = pa.callStore(b, key, value).get(30, TimeUnit.SECONDS);
+            assertNotNull(stored);
+            assertTrue(stored.success());
+            assertArrayEquals(value, storageB.get(key).orElseThrow());
+
+            FindValueResponse found = pa.callFindValue(b, key).get(30, TimeUnit.SECONDS);
+            assertNotNull(found);
+            assertArrayEquals(value, Bytes.array(found.value().orElseThrow()));
+        }
+    }
+
+    @Test
+    void testRepeatedFindValueSharesOneExport() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        byte[] key = Digest.hash("big");
+        byte[] value = new byte[1 << 20];
+        new Random(9).nextBytes(value);
+        try (UdpTransport ta = new UdpTransport(0); UdpTransport tb = new UdpTransport(0)) {
+            Node a = new Node(new NodeId(Digest.hash("a")), loopback, ta.localPort());
+            Node b = new Node(new NodeId(Digest.hash("b")), loopback, tb.localPort());
+            KademliaProtocol pa = new KademliaProtocol(a, new ForgetfulStorage(3600), 20, ta);
+            ForgetfulStorage storageB = new ForgetfulStorage(3600);
+            storageB.put(key, value);
+            KademliaProtocol pb = new KademliaProtocol(b, storageB, 20, tb);
+            ta.setRequestHandler(pa::handleRequest);
+            tb.setRequestHandler(pb::handleRequest);
+
+            // Handles that are never fetched pin the value once, however many are asked for
+            for (int i = 0; i < 10; i++) {
+                FindValueRequest req = new FindValueRequest(new byte[20], a.id(), loopback, ta.localPort(), key);
+                pb.handleRequest(req, loopback, ta.localPort());
+                assertEquals(value.length, pb.exportedBytes());
+            }
+
+            FindValueResponse found = pa.callFindValue(b, key).get(30, TimeUnit.SECONDS);
+            assertArrayEquals(value, Bytes.array(found.value().orElseThrow()));
+            assertEquals(0, pb.exportedBytes(), "unpinned once the last chunk was served");
+        }
+    }
+
+    @Test
+    void testStoreBeyondImportBudgetIsRefused() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        byte[] big = new byte[2 << 20];
+        byte[] fits = new byte[512 << 10];
+        new Random(8).nextBytes(fits);
+        try (UdpTransport ta = new UdpTransport(0); UdpTransport tb = new UdpTransport(0)) {
+            Node a = new Node(new NodeId(Digest.hash("a")), loopback, ta.localPort());
+            Node b = new Node(new NodeId(Digest.hash("b")), loopback, tb.localPort());
+            KademliaProtocol pa = new KademliaProtocol(a, new ForgetfulStorage(3600), 20, ta);
+            ForgetfulStorage storageB = new ForgetfulStorage(3600);
+            KademliaProtocol pb = new KademliaProtocol(b, storageB, 20, tb,
+                    RoutingTable.DEFAULT_MAX_FAILURES, 1 << 20);
+            ta.setRequestHandler(pa::handleRequest);
+            tb.setRequestHandler(pb::handleRequest);
+
+            // Refused before a single chunk is requested
+            StoreResponse refused = pa.callStore(b, Digest.hash("big"), big).get(30, TimeUnit.SECONDS);
+            assertFalse(refused.success());
+            assertTrue(storageB.get(Digest.hash("big")).isEmpty());
+
+            StoreResponse stored = pa.callStore(b, Digest.hash("fits"), fits).get(30, TimeUnit.SECONDS);
+            assertTrue(stored.success());
+            assertArrayEquals(fits, storageB.get(Digest.hash("fits")).orElseThrow());
+            assertEquals(0, pb.importingBytes(), "reservation released once the pull is done");
+        }
+    }
+
+    @Test
+    void testSmallStoresSucceedWhileLargePullStalls() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        byte[] big = new byte[2 << 20];
+        // One STORE handler at a time, nothing queued: a pull holding the slot would shed the rest
+        AdmissionControl.Limits limits = new AdmissionControl.Limits(4,
+                Map.of(MessageType.STORE, new AdmissionControl.Limit(1, 0)));
+        try (UdpTransport ta = new UdpTransport(0); UdpTransport tb = new UdpTransport(0, null, 1, limits)) {
+            Node a = new Node(new NodeId(Digest.hash("a")), loopback, ta.localPort());
+            Node b = new Node(new NodeId(Digest.hash("b")), loopback, tb.localPort());
+            KademliaProtocol pa = new KademliaProtocol(a, new ForgetfulStorage(3600), 20, ta);
+            ForgetfulStorage storageB = new ForgetfulStorage(3600);
+            KademliaProtocol pb = new KademliaProtocol(b, storageB, 20, tb);
+            // a offers the value but never serves a chunk of it
+            ta.setRequestHandler((req, ip, port) -> {
+                if (!(req instanceof FetchChunkRequest)) {
+                    pa.handleRequest(req, ip, port);
+                }
+            });
+            tb.setRequestHandler(pb::handleRequest);
+
+            CompletableFuture<StoreResponse> stalled = pa.callStore(b, Digest.hash("big"), big);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (pb.importingBytes() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(big.length, pb.importingBytes(), "pull under way");
+
+            for (int i = 0; i < 5; i++) {
+                byte[] key = Digest.hash("small" + i);
+                StoreResponse stored = pa.callStore(b, key, new byte[]{(byte) i}).get(5, TimeUnit.SECONDS);
+                assertNotNull(stored);
+                assertTrue(stored.success());
+                assertArrayEquals(new byte[]{(byte) i}, storageB.get(key).orElseThrow());
+            }
+            assertEquals(big.length, pb.importingBytes(), "pull still stalled");
+            assertFalse(stalled.isDone());
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package com.kademlia.dht.protocol;
 
+import com.kademlia.dht.node.Node;
 import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.node.NodeList;
+import com.kademlia.dht.util.Bytes;
 import com.kademlia.dht.util.Digest;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -42,4 +51,340 @@ class MessageCodecTest {
         assertArrayEquals(resp.messageId(), decodedResp.messageId());
         assertEquals(resp.nodeId(), decodedResp.nodeId());
     }
+
+    @Test
+    void testByteBufferRoundTrip() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        InetAddress ip = InetAddress.getByName("10.0.0.7");
+        List<Node> nodes = List.of(
+                new Node(new NodeId(Digest.hash("a")), ip, 4000),
+                new Node(new NodeId(Digest.hash("b")), ip, 65535));
+        ByteBuffer buf = ByteBuffer.allocateDirect(1024);
+        codec.encode(new FindNodeResponse(new byte[]{9, 8, 7, 6}, nodes), buf);
+        codec.encode(new StoreRequest(new byte[]{1, 1, 1, 1}, new NodeId(Digest.hash("s")), ip, 8468,
+                "key".getBytes(), "value".getBytes()), buf);
+        buf.flip();
+
+        FindNodeResponse found = (FindNodeResponse) codec.decode(buf);
+        assertArrayEquals(new byte[]{9, 8, 7, 6}, found.messageId());
+        assertEquals(nodes, found.nodes());
+        StoreRequest store = (StoreRequest) codec.decode(buf);
+        assertArrayEquals("key".getBytes(), store.key());
+        assertArrayEquals("value".getBytes(), store.value());
+        assertEquals(8468, store.senderPort());
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    void testTruncatedMessageIsRejected() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        byte[] encoded = codec.encode(new PingResponse(new byte[]{1, 2, 3, 4}, new NodeId(Digest.hash("node"))));
+        assertThrows(IOException.class, () -> codec.decode(Arrays.copyOf(encoded, encoded.length - 1)));
+    }
+
+    @Test
+    void testBusyResponseRoundTrip() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        byte[] encoded = codec.encode(new BusyResponse(new byte[]{9, 8, 7, 6}));
+        assertEquals(5, encoded.length);
+        RpcMessage decoded = codec.decode(encoded);
+        assertTrue(decoded instanceof BusyResponse);
+        assertArrayEquals(new byte[]{9, 8, 7, 6}, decoded.messageId());
+    }
+
+    @Test
+    void testValueHandleAndChunkRoundTrip() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        NodeId id = new NodeId(Digest.hash("test"));
+        InetAddress ip = InetAddress.getByName("127.0.0.1");
+        ValueHandle handle = new ValueHandle(77, 1_000_000);
+        List<RpcMessage> messages = List.of(
+                new StoreRequest(new byte[]{1, 1, 1, 1}, id, ip, 8468, new byte[]{5}, new byte[0], Optional.of(handle)),
+                new FindValueResponse(new byte[]{2, 2, 2, 2}, Optional.empty(), List.of(), Optional.of(handle)),
+                new FetchChunkRequest(new byte[]{3, 3, 3, 3}, id, ip, 8468, 77, 2400),
+                new ChunkResponse(new byte[]{4, 4, 4, 4}, true, 2400, ByteBuffer.wrap(new byte[]{9, 9, 9})));
+        for (RpcMessage msg : messages) {
+            ByteBuffer buf = ByteBuffer.allocate(256);
+            codec.encode(msg, buf);
+            buf.flip();
+            RpcMessage fromBuffer = codec.decode(buf);
+            RpcMessage fromBytes = codec.decode(codec.encode(msg));
+            assertEquals(msg.getClass(), fromBuffer.getClass());
+            assertEquals(msg.getClass(), fromBytes.getClass());
+        }
+
+        StoreRequest store = (StoreRequest) codec.decode(codec.encode(messages.get(0)));
+        assertEquals(Optional.of(handle), store.handle());
+        assertEquals(0, store.value().length);
+        FindValueResponse found = (FindValueResponse) codec.decode(codec.encode(messages.get(1)));
+        assertEquals(Optional.of(handle), found.handle());
+        assertTrue(found.value().isEmpty());
+        FetchChunkRequest fetch = (FetchChunkRequest) codec.decode(codec.encode(messages.get(2)));
+        assertEquals(77, fetch.transferId());
+        assertEquals(2400, fetch.offset());
+        ChunkResponse chunk = (ChunkResponse) codec.decode(codec.encode(messages.get(3)));
+        assertTrue(chunk.found());
+        assertEquals(2400, chunk.offset());
+        assertArrayEquals(new byte[]{9, 9, 9}, Bytes.array(chunk.data()));
+    }
+
+    @Test
+    void testValueViewsAreEncodedWithoutBeingConsumed() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        byte[] backing = {0, 1, 2, 3, 4, 5, 6, 7};
+        // A read-only slice, as storage and exports hand out
+        ByteBuffer view = ByteBuffer.wrap(backing).slice(2, 4).asReadOnlyBuffer();
+        byte[] msgId = {1, 2, 3, 4};
+        FindValueResponse found = new FindValueResponse(msgId, Optional.of(view), List.of());
+        for (int caps : new int[]{0, MessageCodec.CAP_COMPACT}) {
+            byte[] first = codec.encode(found, caps);
+            byte[] again = codec.encode(found, caps);
+            assertArrayEquals(first, again);
+            assertEquals(4, view.remaining());
+            FindValueResponse decoded = (FindValueResponse) codec.decode(first);
+            assertArrayEquals(new byte[]{2, 3, 4, 5}, Bytes.array(decoded.value().orElseThrow()));
+        }
+    }
+
+    @Test
+    void testEncodedSizeIsExact() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        NodeId id = new NodeId(Digest.hash("test"));
+        InetAddress ip = InetAddress.getByName("127.0.0.1");
+        byte[] msgId = {1, 2, 3, 4};
+        List<Node> nodes = contacts(3);
+        List<RpcMessage> messages = List.of(
+                new PingRequest(msgId, id, ip, 1),
+                new StoreRequest(msgId, id, ip, 1, new byte[]{1, 2}, new byte[]{3, 4, 5}),
+                new StoreRequest(msgId, id, ip, 1, new byte[]{1}, new byte[0], Optional.of(new ValueHandle(1, 9))),
+                new FindNodeRequest(msgId, id, ip, 1, id),
+                new FindValueRequest(msgId, id, ip, 1, new byte[]{7}),
+                new FetchChunkRequest(msgId, id, ip, 1, 5, 0),
+                new PingResponse(msgId, id),
+                new StoreResponse(msgId, true),
+                new FindNodeResponse(msgId, nodes),
+                new FindValueResponse(msgId, Optional.of(ByteBuffer.wrap(new byte[]{1, 2, 3})), List.of()),
+                new FindValueResponse(msgId, Optional.empty(), nodes),
+                new FindValueResponse(msgId, Optional.empty(), List.of(), Optional.of(new ValueHandle(1, 9))),
+                new ChunkResponse(msgId, true, 0, ByteBuffer.wrap(new byte[]{1})),
+                new ChunkResponse(msgId, false, 0, ByteBuffer.allocate(0)),
+                new BusyResponse(msgId),
+                new StoreBatchRequest(msgId, id, ip, 1, List.of(new StoreBatchRequest.Entry(new byte[]{1}, new byte[]{2, 3}))),
+                new FindNodeBatchRequest(msgId, id, ip, 1, List.of(id, id)),
+                new FindValueBatchRequest(msgId, id, ip, 1, List.of(new byte[]{1}, new byte[0])),
+                new StoreBatchResponse(msgId, new boolean[]{true, false, true, true, true, true, true, true, false}),
+                new FindNodeBatchResponse(msgId, List.of(nodes, List.of())),
+                new FindValueBatchResponse(msgId, List.of(FindValueBatchResponse.Item.MISSING,
+                        new FindValueBatchResponse.Item(Optional.of(ByteBuffer.wrap(new byte[]{4})), Optional.empty()),
+                        new FindValueBatchResponse.Item(Optional.empty(), Optional.of(new ValueHandle(3, 9000))))));
+        for (RpcMessage msg : messages) {
+            ByteBuffer buf = ByteBuffer.allocate(1024);
+            codec.encode(msg, buf);
+            assertEquals(buf.position(), codec.encodedSize(msg), msg.getClass().getSimpleName());
+            assertEquals(buf.position(), codec.encode(msg).length);
+        }
+    }
+
+    @Test
+    void testNodeListsDecodeIntoFlyweightView() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        List<Node> nodes = contacts(20);
+        ByteBuffer wire = ByteBuffer.wrap(codec.encode(new FindNodeResponse(new byte[]{0, 0, 0, 1}, nodes)));
+        FindNodeResponse decoded = (FindNodeResponse) codec.decode(wire);
+        assertTrue(decoded.nodes() instanceof NodeList);
+        assertEquals(nodes, decoded.nodes());
+
+        // Re-encoding the view copies its bytes straight through
+        wire.rewind();
+        ByteBuffer again = ByteBuffer.allocate(wire.remaining());
+        codec.encode(decoded, again);
+        assertEquals(wire, again.flip());
+
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean mx
+                && mx.isThreadAllocatedMemorySupported()) {
+            for (int i = 0; i < 20_000; i++) {
+                codec.decode(wire.rewind());
+            }
+            long before = mx.getCurrentThreadAllocatedBytes();
+            int rounds = 10_000;
+            for (int i = 0; i < rounds; i++) {
+                codec.decode(wire.rewind());
+            }
+            long perDecode = (mx.getCurrentThreadAllocatedBytes() - before) / rounds;
+            // One 520-byte copy of the contacts plus a few small objects, not 20 decoded nodes
+            assertTrue(perDecode < 1024, "allocated " + perDecode + " bytes per decode");
+        }
+    }
+
+    @Test
+    void testCompactRoundTripCarriesEveryField() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        NodeId id = new NodeId(Digest.hash("test"));
+        InetAddress from = InetAddress.getByName("10.1.2.3");
+        byte[] msgId = {1, 2, 3, 4};
+        byte[] big = new byte[300];
+        Arrays.fill(big, (byte) 7);
+        List<Node> nodes = contacts(20);
+        List<RpcMessage> messages = List.of(
+                new PingRequest(msgId, id, from, 4444),
+                new StoreRequest(msgId, id, from, 4444, new byte[]{1, 2}, big),
+                new StoreRequest(msgId, id, from, 4444, new byte[]{1, 2}, new byte[0]),
+                new StoreRequest(msgId, id, from, 4444, new byte[]{1}, new byte[0], Optional.of(new ValueHandle(-5, 1 << 20))),
+                new FindNodeRequest(msgId, id, from, 4444, new NodeId(Digest.hash("target"))),
+                new FindValueRequest(msgId, id, from, 4444, new byte[]{7}),
+                new FetchChunkRequest(msgId, id, from, 4444, 5, 1_200_000),
+                new PingResponse(msgId, id),
+                new StoreResponse(msgId, true),
+                new FindNodeResponse(msgId, nodes),
+                new FindNodeResponse(msgId, List.of()),
+                new FindValueResponse(msgId, Optional.of(ByteBuffer.wrap(big)), List.of()),
+                new FindValueResponse(msgId, Optional.empty(), nodes),
+                new FindValueResponse(msgId, Optional.empty(), List.of(), Optional.of(new ValueHandle(1, 9))),
+                new ChunkResponse(msgId, true, 2400, ByteBuffer.wrap(big)),
+                new ChunkResponse(msgId, false, 0, ByteBuffer.allocate(0)),
+                new BusyResponse(msgId),
+                new StoreBatchRequest(msgId, id, from, 4444, List.of(
+                        new StoreBatchRequest.Entry(new byte[]{1, 2}, big), new StoreBatchRequest.Entry(new byte[]{3}, new byte[0]))),
+                new FindNodeBatchRequest(msgId, id, from, 4444, List.of(id, new NodeId(Digest.hash("other")))),
+                new FindValueBatchRequest(msgId, id, from, 4444, List.of(new byte[]{1}, big)),
+                new StoreBatchResponse(msgId, new boolean[]{false, true, true}),
+                new FindNodeBatchResponse(msgId, List.of(List.of(), nodes, nodes.subList(0, 3))),
+                new FindValueBatchResponse(msgId, List.of(
+                        new FindValueBatchResponse.Item(Optional.of(ByteBuffer.wrap(big)), Optional.empty()),
+                        FindValueBatchResponse.Item.MISSING,
+                        new FindValueBatchResponse.Item(Optional.empty(), Optional.of(new ValueHandle(3, 9000))))));
+        for (RpcMessage msg : messages) {
+            String name = msg.getClass().getSimpleName();
+            byte[] wire = codec.encode(msg, MessageCodec.CAP_COMPACT);
+            assertEquals(codec.encodedSize(msg, MessageCodec.CAP_COMPACT), wire.length, name);
+            ByteBuffer buf = ByteBuffer.wrap(wire);
+            RpcMessage decoded = codec.decode(buf, from, 4444);
+            assertFalse(buf.hasRemaining(), name);
+            assertEquals(MessageCodec.CAP_COMPACT, MessageCodec.peerCapabilities(buf, 0), name);
+            assertEquals(codec.encode(msg).length, codec.encode(decoded).length, name);
+            assertArrayEquals(codec.encode(msg), codec.encode(decoded), name);
+        }
+    }
+
+    @Test
+    void testIpv6ContactDecodesToTheSameAddressInBothFormats() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        NodeId id = new NodeId(Digest.hash("test"));
+        InetAddress v6 = InetAddress.getByName("2001:db8::7");
+        // Both formats carry four bytes; for IPv6 they are the first four
+        InetAddress carried = InetAddress.getByName("32.1.13.184");
+        List<Node> nodes = new ArrayList<>(contacts(3));
+        nodes.add(1, new Node(new NodeId(Digest.hash("v6")), v6, 4444));
+        byte[] msgId = {1, 2, 3, 4};
+        for (int caps : new int[] {0, MessageCodec.CAP_COMPACT}) {
+            FindNodeResponse resp = (FindNodeResponse) codec.decode(
+                    codec.encode(new FindNodeResponse(msgId, nodes), caps));
+            assertEquals(carried, resp.nodes().get(1).ip(), "caps " + caps);
+            assertEquals(nodes.get(2), resp.nodes().get(2), "caps " + caps);
+        }
+        // The compact format takes the sender from the datagram; the legacy one carries it
+        PingRequest ping = (PingRequest) codec.decode(codec.encode(new PingRequest(msgId, id, v6, 4444), 0));
+        assertEquals(carried, ping.senderIp());
+    }
+
+    @Test
+    void testCompactEncodingIsSmaller() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        NodeId id = new NodeId(Digest.hash("test"));
+        InetAddress ip = InetAddress.getByName("127.0.0.1");
+        RpcMessage ping = new PingRequest(new byte[]{1, 2, 3, 4}, id, ip, 8468);
+        assertEquals(codec.encodedSize(ping) - 6, codec.encodedSize(ping, MessageCodec.CAP_COMPACT));
+
+        // Contacts sorted by distance to a target share ID prefixes; these also share a port
+        NodeId target = new NodeId(Digest.hash("target"));
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            nodes.add(new Node(new NodeId(Digest.hash("n" + i)), InetAddress.getByName("10.0." + (i / 250) + "." + (i % 250 + 1)), 8468));
+        }
+        nodes.sort((a, b) -> target.compareDistance(a.id(), b.id()));
+        FindNodeResponse resp = new FindNodeResponse(new byte[]{1, 2, 3, 4}, nodes.subList(0, 20));
+        int legacy = codec.encodedSize(resp);
+        int compact = codec.encodedSize(resp, MessageCodec.CAP_COMPACT);
+        assertTrue(compact < legacy - 20, compact + " vs " + legacy);
+        FindNodeResponse decoded = (FindNodeResponse) codec.decode(codec.encode(resp, MessageCodec.CAP_COMPACT));
+        assertTrue(decoded.nodes() instanceof NodeList);
+        assertEquals(nodes.subList(0, 20), decoded.nodes());
+    }
+
+    @Test
+    void testCapabilitiesAreNegotiated() throws Exception {
+        MessageCodec modern = new MessageCodec();
+        MessageCodec legacy = new MessageCodec(0);
+        PingResponse pong = new PingResponse(new byte[]{1, 2, 3, 4}, new NodeId(Digest.hash("node")));
+
+        // Before anything is known, the modern side speaks legacy and advertises in a trailing byte
+        ByteBuffer first = ByteBuffer.wrap(modern.encode(pong, 0));
+        assertEquals(legacy.encodedSize(pong) + 1, first.remaining());
+        assertEquals(pong.nodeId(), ((PingResponse) legacy.decode(first)).nodeId());
+        assertEquals(MessageCodec.CAP_COMPACT, MessageCodec.peerCapabilities(first, 0));
+
+        // A legacy-only peer advertises nothing, and is never sent compact messages
+        ByteBuffer reply = ByteBuffer.wrap(legacy.encode(pong, MessageCodec.CAP_COMPACT));
+        assertEquals(legacy.encodedSize(pong), reply.remaining());
+        modern.decode(reply);
+        assertEquals(0, MessageCodec.peerCapabilities(reply, 0));
+        assertEquals(modern.encodedSize(pong) + 1, modern.encodedSize(pong, 0));
+    }
+
+    @Test
+    void testMalformedCompactMessagesAreRejected() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        FindNodeResponse resp = new FindNodeResponse(new byte[]{1, 2, 3, 4}, contacts(3));
+        byte[] wire = codec.encode(resp, MessageCodec.CAP_COMPACT);
+        assertThrows(IOException.class, () -> codec.decode(Arrays.copyOf(wire, wire.length - 1)));
+
+        byte[] badFirst = wire.clone();
+        badFirst[6] = 3;    // first contact claims a prefix shared with no predecessor
+        assertThrows(IOException.class, () -> codec.decode(badFirst));
+
+        byte[] badCount = wire.clone();
+        badCount[5] = (byte) 200;
+        assertThrows(IOException.class, () -> codec.decode(badCount));
+
+        assertThrows(IOException.class, () -> codec.encode(
+                new FindNodeResponse(new byte[]{1, 2, 3, 4}, contacts(256)), MessageCodec.CAP_COMPACT));
+    }
+
+    @Test
+    void testBatchItemsSurviveRoundTrip() throws Exception {
+        MessageCodec codec = new MessageCodec();
+        boolean[] flags = {true, false, false, true, true, false, true, false, true, true};
+        StoreBatchResponse stored = (StoreBatchResponse) codec.decode(codec.encode(
+                new StoreBatchResponse(new byte[]{1, 2, 3, 4}, flags)));
+        assertArrayEquals(flags, stored.stored());
+
+        List<Node> nodes = contacts(5);
+        for (int caps : new int[]{0, MessageCodec.CAP_COMPACT}) {
+            FindNodeBatchResponse found = (FindNodeBatchResponse) codec.decode(codec.encode(
+                    new FindNodeBatchResponse(new byte[]{1, 2, 3, 4}, List.of(nodes, List.of(), nodes.subList(2, 4))), caps));
+            assertEquals(List.of(nodes, List.of(), nodes.subList(2, 4)), found.nodes());
+
+            FindValueBatchResponse values = (FindValueBatchResponse) codec.decode(codec.encode(
+                    new FindValueBatchResponse(new byte[]{1, 2, 3, 4}, List.of(
+                            new FindValueBatchResponse.Item(Optional.of(ByteBuffer.wrap(new byte[]{5, 6})), Optional.empty()),
+                            FindValueBatchResponse.Item.MISSING,
+                            new FindValueBatchResponse.Item(Optional.empty(), Optional.of(new ValueHandle(8, 20_000))))), caps));
+            assertArrayEquals(new byte[]{5, 6}, Bytes.array(values.items().get(0).value().orElseThrow()));
+            assertFalse(values.items().get(1).found());
+            assertEquals(Optional.of(new ValueHandle(8, 20_000)), values.items().get(2).handle());
+        }
+
+        // A count larger than the message could hold is rejected before anything is allocated
+        ByteBuffer bogus = ByteBuffer.allocate(16);
+        bogus.put(MessageType.FIND_VALUE_BATCH_RESPONSE.getCode()).putInt(1).putInt(Integer.MAX_VALUE).flip();
+        assertThrows(IOException.class, () -> codec.decode(bogus));
+    }
+
+    private static List<Node> contacts(int count) throws IOException {
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(new Node(new NodeId(Digest.hash("node" + i)), InetAddress.getByName("10.0.0." + (i + 1)), 4000 + i));
+        }
+        return nodes;
+    }
 }
@@ -0,0 +1,157 @@
+package com.kademlia.dht.routing;
+
+import com.kademlia.dht.node.Node;
+import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.util.Digest;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HealthTrackerTest {
+
+    private static Node node(int seed) {
+        return new Node(new NodeId(Digest.hash("health" + seed)), null, 0);
+    }
+
+    @Test
+    void testPhiGrowsWhileAReplyIsOverdue() {
+        ContactHealth h = new ContactHealth();
+        long ms = 1_000_000L;
+        for (int i = 0; i < 10; i++) {
+            h.recordSuccess(i * 1000 * ms, 100 * ms);
+        }
+        long sent = 20_000 * ms;
+        h.recordSent(sent);
+        double onTime = h.phi(sent + 100 * ms);
+        double late = h.phi(sent + 300 * ms);
+        double veryLate = h.phi(sent + 1000 * ms);
+        assertTrue(onTime < 1.0, "phi at the usual RTT should be low: " + onTime);
+        assertTrue(late > onTime);
+        assertTrue(veryLate > 8.0, "phi long after the reply was due should be high: " + veryLate);
+        h.recordHeard(sent + 1000 * ms);
+        assertEquals(0.0, h.phi(sent + 2000 * ms));
+    }
+
+    @Test
+    void testSilenceAfterBurstIsNotSuspected() {
+        ContactHealth h = new ContactHealth();
+        long ms = 1_000_000L;
+        h.recordSuccess(0, 10 * ms);
+        h.recordHeard(50 * ms);
+        // Minutes without traffic are normal for a Kademlia contact
+        assertEquals(0.0, h.phi(50 * ms + 1000 * ms));
+        assertEquals(0.0, h.phi(50 * ms + 600_000 * ms));
+
+        HealthTracker tracker = new HealthTracker(100, HealthTracker.DEFAULT_PHI_THRESHOLD, id -> true);
+        Node a = node(1);
+        tracker.recordSuccess(a.id(), 10 * ms);
+        tracker.recordHeard(a.id());
+        assertFalse(tracker.isSuspected(a.id()));
+    }
+
+    @Test
+    void testSmoothedRtt() {
+        ContactHealth h = new ContactHealth();
+        assertEquals(-1, h.getSmoothedRttNanos());
+        h.recordSuccess(0, 800);
+        assertEquals(800, h.getSmoothedRttNanos());
+        h.recordSuccess(1, 0);
+        assertEquals(700, h.getSmoothedRttNanos());
+    }
+
+    @Test
+    void testRtoFollowsRttAndBacksOff() {
+        ContactHealth h = new ContactHealth();
+        assertEquals(ContactHealth.INITIAL_RTO_NANOS, h.getRtoNanos());
+        long ms = 1_000_000L;
+
+        // Steady 100 ms RTT: SRTT + 4 * RTTVAR shrinks towards 100 ms, floored at the minimum
+        for (int i = 0; i < 50; i++) {
+            h.recordSuccess(i, 100 * ms);
+        }
+        assertEquals(ContactHealth.MIN_RTO_NANOS, h.getRtoNanos());
+
+        // Jittery 300-700 ms RTT: the variance term keeps the RTO well above the mean
+        for (int i = 0; i < 50; i++) {
+            h.recordSuccess(i, (i % 2 == 0 ? 300 : 700) * ms);
+        }
+        assertTrue(h.getRtoNanos() > 1000 * ms, "rto " + h.getRtoNanos() / ms + " ms");
+
+        h.backOffRto();
+        h.backOffRto();
+        assertEquals(ContactHealth.MAX_RTO_NANOS, h.getRtoNanos());
+        // A sample without an RTT leaves the backed-off RTO alone
+        h.recordSuccess(100, -1);
+        assertEquals(ContactHealth.MAX_RTO_NANOS, h.getRtoNanos());
+    }
+
+    @Test
+    void testPreferHealthyKeepsSuspectedAsFallback() {
+        HealthTracker tracker = new HealthTracker(100, HealthTracker.DEFAULT_PHI_THRESHOLD, id -> true);
+        Node a = node(1);
+        Node b = node(2);
+        Node c = node(3);
+        tracker.recordFailure(a.id());
+        assertTrue(tracker.isSuspected(a.id()));
+        assertFalse(tracker.isSuspected(b.id()));
+        assertEquals(List.of(b, c), tracker.preferHealthy(List.of(a, b, c), 2));
+        assertEquals(List.of(b, c, a), tracker.preferHealthy(List.of(a, b, c), 3));
+        tracker.recordSuccess(a.id(), 1_000);
+        assertFalse(tracker.isSuspected(a.id()));
+    }
+
+    @Test
+    void testPreferHealthyRanksUnknownBetweenHealthyAndSuspected() {
+        HealthTracker tracker = new HealthTracker(100, HealthTracker.DEFAULT_PHI_THRESHOLD, id -> true);
+        Node suspected = node(1);
+        Node unknown = node(2);
+        Node sentTo = node(3);
+        Node healthy = node(4);
+        tracker.recordFailure(suspected.id());
+        tracker.recordSent(sentTo.id());
+        tracker.recordSuccess(healthy.id(), 1_000);
+        List<Node> candidates = List.of(suspected, unknown, sentTo, healthy);
+        assertEquals(List.of(healthy, unknown, sentTo, suspected), tracker.preferHealthy(candidates, 4));
+        assertEquals(List.of(healthy, unknown), tracker.preferHealthy(candidates, 2));
+    }
+
+    @Test
+    void testPrunesToRetainedIdsWhenFull() {
+        Node keep = node(0);
+        HealthTracker tracker = new HealthTracker(3, HealthTracker.DEFAULT_PHI_THRESHOLD, id -> id.equals(keep.id()));
+        tracker.recordHeard(keep.id());
+        tracker.recordHeard(node(1).id());
+        tracker.recordHeard(node(2).id());
+        tracker.recordHeard(node(3).id());
+        assertNotNull(tracker.get(keep.id()));
+        assertNull(tracker.get(node(1).id()));
+        assertEquals(2, tracker.size());
+    }
+
+    @Test
+    void testByProximityOnlyReordersWithinCoarseDistance() {
+        HealthTracker tracker = new HealthTracker(100, HealthTracker.DEFAULT_PHI_THRESHOLD, id -> true);
+        NodeId target = node(0).id();
+        List<Node> closestFirst = new ArrayList<>();
+        for (int i = 1; i < 40; i++) {
+            closestFirst.add(node(i));
+        }
+        closestFirst.sort((x, y) -> target.compareDistance(x.id(), y.id()));
+        for (int i = 0; i < closestFirst.size(); i++) {
+            tracker.recordSuccess(closestFirst.get(i).id(), 1_000_000L * (closestFirst.size() - i));
+        }
+        List<Node> ordered = tracker.byProximity(target, closestFirst);
+        assertEquals(closestFirst.size(), ordered.size());
+        for (int i = 1; i < ordered.size(); i++) {
+            int prev = target.sharedPrefixLength(ordered.get(i - 1).id());
+            int cur = target.sharedPrefixLength(ordered.get(i).id());
+            assertTrue(prev >= cur, "coarse distance order must be kept");
+            if (prev == cur) {
+                assertTrue(tracker.rttNanos(ordered.get(i - 1).id()) <= tracker.rttNanos(ordered.get(i).id()));
+            }
+        }
+    }
+}
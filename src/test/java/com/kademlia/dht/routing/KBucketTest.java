@@ -9,7 +9,10 @@ import org.junit.jupiter.api.Test;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -48,4 +51,136 @@ class KBucketTest {
         KBucket bucket = new KBucket(BigInteger.ZERO, TWO_POW_160.subtract(BigInteger.ONE), 20);
         assertTrue(bucket.hasInRange(n));
     }
+
+    @Test
+    void testLruOrderAndSnapshotIsolation() throws Exception {
+        KBucket bucket = new KBucket(BigInteger.ZERO, TWO_POW_160.subtract(BigInteger.ONE), 3);
+        Node n1 = randomNode(1);
+        Node n2 = randomNode(2);
+        Node n3 = randomNode(3);
+        bucket.addNode(n1);
+        bucket.addNode(n2);
+        bucket.addNode(n3);
+        List<Node> before = bucket.getNodes();
+        bucket.addNode(n1);
+        assertEquals(List.of(n1, n2, n3), before);
+        assertEquals(List.of(n2, n3, n1), bucket.getNodes());
+
+        Node n4 = randomNode(4);
+        assertFalse(bucket.addNode(n4));
+        assertEquals(n4, bucket.getReplacementFor(n4.id()));
+        bucket.removeNode(n2);
+        assertEquals(List.of(n3, n1, n4), bucket.getNodes());
+        assertFalse(bucket.contains(n2.id()));
+    }
+
+    @Test
+    void testRandomIdStaysInRange() throws Exception {
+        KBucket full = new KBucket(BigInteger.ZERO, TWO_POW_160.subtract(BigInteger.ONE), 20);
+        Pair<KBucket, KBucket> halves = full.split();
+        Pair<KBucket, KBucket> quarters = halves.right().split();
+        Random rnd = new Random(7);
+        for (KBucket bucket : List.of(halves.left(), quarters.left(), quarters.right())) {
+            for (int i = 0; i < 100; i++) {
+                assertTrue(bucket.hasInRange(new Node(bucket.randomId(rnd), null, 0)));
+            }
+        }
+    }
+
+    @Test
+    void testRemovalWithoutRttPromotesMostRecentReplacement() throws Exception {
+        KBucket bucket = new KBucket(BigInteger.ZERO, TWO_POW_160.subtract(BigInteger.ONE), 2);
+        Node n1 = randomNode(1);
+        Node n2 = randomNode(2);
+        Node r1 = randomNode(3);
+        Node r2 = randomNode(4);
+        bucket.addNode(n1);
+        bucket.addNode(n2);
+        assertFalse(bucket.addNode(r1));
+        assertFalse(bucket.addNode(r2));
+        assertEquals(n1, bucket.getLeastRecentlySeen());
+
+        bucket.removeNode(n1);
+        assertFalse(bucket.contains(n1.id()));
+        assertEquals(List.of(n2, r2), bucket.getNodes());
+        assertNull(bucket.getReplacementFor(r2.id()));
+
+        bucket.removeNode(n2);
+        assertEquals(List.of(r2, r1), bucket.getNodes());
+    }
+
+    @Test
+    void testPrefersLowLatencyContacts() throws Exception {
+        Map<NodeId, Long> rtt = new HashMap<>();
+        KBucket bucket = new KBucket(BigInteger.ZERO, TWO_POW_160.subtract(BigInteger.ONE), 2,
+                id -> rtt.getOrDefault(id, -1L));
+        Node slow = randomNode(1);
+        Node n2 = randomNode(2);
+        bucket.addNode(slow);
+        bucket.addNode(n2);
+        rtt.put(slow.id(), 90_000_000L);
+
+        Node unmeasured = randomNode(3);
+        assertFalse(bucket.addNode(unmeasured));
+        Node fast = randomNode(4);
+        rtt.put(fast.id(), 10_000_000L);
+        assertTrue(bucket.addNode(fast));
+        assertEquals(List.of(n2, fast), bucket.getNodes());
+        assertEquals(slow, bucket.getReplacementFor(slow.id()));
+
+        // The measured replacement wins over the more recently seen unmeasured one.
+        bucket.removeNode(n2);
+        assertEquals(List.of(fast, slow), bucket.getNodes());
+        assertEquals(unmeasured, bucket.getReplacementFor(unmeasured.id()));
+    }
+
+    @Test
+    void testDisplacingReplacementIsNotPromotedAgain() throws Exception {
+        Map<NodeId, Long> rtt = new HashMap<>();
+        KBucket bucket = new KBucket(BigInteger.ZERO, TWO_POW_160.subtract(BigInteger.ONE), 2,
+                id -> rtt.getOrDefault(id, -1L));
+        Node n0 = randomNode(0);
+        Node n1 = randomNode(1);
+        Node n2 = randomNode(2);
+        bucket.addNode(n0);
+        bucket.addNode(n1);
+        assertFalse(bucket.addNode(n2));
+        rtt.put(n0.id(), 90_000_000L);
+        rtt.put(n2.id(), 10_000_000L);
+        assertTrue(bucket.addNode(n2));
+        assertEquals(List.of(n1, n2), bucket.getNodes());
+        assertNull(bucket.getReplacementFor(n2.id()));
+
+        bucket.removeNode(n1);
+        assertEquals(List.of(n2, n0), bucket.getNodes());
+    }
+
+    @Test
+    void testRemovalPromotesFastestReplacement() throws Exception {
+        Map<NodeId, Long> rtt = new HashMap<>();
+        KBucket bucket = new KBucket(BigInteger.ZERO, TWO_POW_160.subtract(BigInteger.ONE), 1,
+                id -> rtt.getOrDefault(id, -1L));
+        Node n1 = randomNode(1);
+        Node slow = randomNode(2);
+        Node fastOlder = randomNode(3);
+        Node fastNewer = randomNode(4);
+        Node unmeasured = randomNode(5);
+        rtt.put(slow.id(), 50_000_000L);
+        rtt.put(fastOlder.id(), 20_000_000L);
+        rtt.put(fastNewer.id(), 20_000_000L);
+        bucket.addNode(n1);
+        for (Node r : List.of(slow, fastOlder, fastNewer, unmeasured)) {
+            assertFalse(bucket.addNode(r));
+        }
+
+        // Lowest RTT first, the most recently seen on a tie, unmeasured last
+        List<Node> promoted = new ArrayList<>();
+        for (Node current = n1; current != null; current = bucket.getLeastRecentlySeen()) {
+            bucket.removeNode(current);
+            if (bucket.size() > 0) {
+                promoted.add(bucket.getLeastRecentlySeen());
+            }
+        }
+        assertEquals(List.of(fastNewer, fastOlder, slow, unmeasured), promoted);
+    }
 }
@@ -0,0 +1,201 @@
+package com.kademlia.dht.routing;
+
+import com.kademlia.dht.node.Node;
+import com.kademlia.dht.node.NodeId;
+import com.kademlia.dht.util.Digest;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoutingTableTest {
+
+    private Node randomNode(int seed) throws Exception {
+        byte[] id = Digest.hash("node" + seed);
+        return new Node(new NodeId(id), InetAddress.getByName("127.0.0.1"), 8468 + seed);
+    }
+
+    @Test
+    void testBucketIndexMatchesSharedPrefix() throws Exception {
+        Node self = randomNode(0);
+        RoutingTable table = new RoutingTable(self, 4);
+        for (int i = 1; i < 200; i++) {
+            table.addContact(randomNode(i));
+        }
+        List<KBucket> buckets = table.getBuckets();
+        assertTrue(buckets.size() > 1, "own bucket should have split");
+        for (int i = 0; i < buckets.size(); i++) {
+            for (Node n : buckets.get(i).getNodes()) {
+                int prefix = self.id().sharedPrefixLength(n.id());
+                assertEquals(Math.min(prefix, buckets.size() - 1), i);
+                assertEquals(i, table.getBucketFor(n));
+                assertTrue(buckets.get(i).hasInRange(n));
+            }
+        }
+        assertTrue(buckets.get(buckets.size() - 1).hasInRange(self));
+    }
+
+    @Test
+    void testAddRemoveAndIsNewNode() throws Exception {
+        RoutingTable table = new RoutingTable(randomNode(0), 20);
+        Node n = randomNode(1);
+        assertTrue(table.isNewNode(n));
+        table.addContact(n);
+        assertFalse(table.isNewNode(n));
+        assertEquals(1, table.getNodeCount());
+        table.removeContact(n);
+        assertTrue(table.isNewNode(n));
+        assertEquals(0, table.getNodeCount());
+    }
+
+    @Test
+    void testIgnoresSelf() throws Exception {
+        Node self = randomNode(0);
+        RoutingTable table = new RoutingTable(self, 20);
+        table.addContact(self);
+        assertEquals(0, table.getNodeCount());
+    }
+
+    @Test
+    void testFindNeighborsReturnsClosestInXorOrder() throws Exception {
+        RoutingTable table = new RoutingTable(randomNode(0), 8);
+        List<Node> all = new ArrayList<>();
+        for (int i = 1; i < 300; i++) {
+            Node n = randomNode(i);
+            table.addContact(n);
+            if (!table.isNewNode(n)) {
+                all.add(n);
+            }
+        }
+        for (int j = 0; j < 20; j++) {
+            Node target = new Node(new NodeId(Digest.hash("target" + j)), null, 0);
+            List<Node> expected = all.stream()
+                    .sorted(Comparator.comparing(n -> n.id().xorDistance(target.id())))
+                    .limit(8)
+                    .toList();
+            assertEquals(expected, table.findNeighbors(target, 8));
+        }
+    }
+
+    @Test
+    void testFindNeighborsExcludesTargetAndHandlesEmptyTable() throws Exception {
+        RoutingTable table = new RoutingTable(randomNode(0), 20);
+        Node target = randomNode(1);
+        assertTrue(table.findNeighbors(target, 20).isEmpty());
+        table.addContact(target);
+        table.addContact(randomNode(2));
+        List<Node> neighbors = table.findNeighbors(target, 20);
+        assertEquals(1, neighbors.size());
+        assertFalse(neighbors.contains(target));
+    }
+
+    @Test
+    void testStaleBucketsOnlyIncludeIdleBuckets() throws Exception {
+        RoutingTable table = new RoutingTable(randomNode(0), 20);
+        table.addContact(randomNode(1));
+        assertTrue(table.getStaleBuckets(TimeUnit.HOURS.toNanos(1)).isEmpty());
+        Thread.sleep(5);
+        assertEquals(table.getBuckets(), table.getStaleBuckets(TimeUnit.MILLISECONDS.toNanos(1)));
+        table.getBuckets().get(0).markRefreshed();
+        assertTrue(table.getStaleBuckets(TimeUnit.SECONDS.toNanos(10)).isEmpty());
+    }
+
+    @Test
+    void testFullBucketReturnsLeastRecentlySeenForPing() throws Exception {
+        Node self = randomNode(0);
+        RoutingTable table = new RoutingTable(self, 2, 1);
+        Node leastRecent = null;
+        Node rejected = null;
+        for (int i = 1; i < 100 && rejected == null; i++) {
+            Node n = randomNode(i);
+            Node candidate = table.addContact(n);
+            if (candidate != null) {
+                leastRecent = candidate;
+                rejected = n;
+            }
+        }
+        assertNotNull(rejected, "some far bucket should fill up");
+        assertTrue(table.isNewNode(rejected));
+        assertFalse(table.isNewNode(leastRecent));
+        table.recordFailure(leastRecent);
+        assertTrue(table.isNewNode(leastRecent));
+        assertFalse(table.isNewNode(rejected), "replacement should be promoted");
+    }
+
+    @Test
+    void testContactSurvivesFailuresBelowThreshold() throws Exception {
+        RoutingTable table = new RoutingTable(randomNode(0), 20, 2);
+        Node n = randomNode(1);
+        table.addContact(n);
+        table.recordFailure(n);
+        assertFalse(table.isNewNode(n));
+        assertTrue(table.getHealth().isSuspected(n.id()));
+        table.getHealth().recordSuccess(n.id(), 1_000_000);
+        table.recordFailure(n);
+        assertFalse(table.isNewNode(n), "a response resets the failure streak");
+        table.recordFailure(n);
+        assertTrue(table.isNewNode(n));
+        assertNull(table.getHealth().get(n.id()));
+    }
+
+    /** A contact sharing exactly {@code prefix} leading bits with {@code self}. */
+    private static Node nodeAtPrefix(Node self, int prefix, Random rnd) throws Exception {
+        byte[] id = self.id().getBytes();
+        byte[] noise = new byte[NodeId.SIZE_BYTES];
+        rnd.nextBytes(noise);
+        for (int bit = prefix + 1; bit < NodeId.SIZE_BITS; bit++) {
+            int mask = 0x80 >>> (bit % 8);
+            id[bit / 8] = (byte) ((id[bit / 8] & ~mask) | (noise[bit / 8] & mask));
+        }
+        id[prefix / 8] ^= (byte) (0x80 >>> (prefix % 8));
+        return new Node(new NodeId(id), InetAddress.getByName("127.0.0.1"), 9000 + rnd.nextInt(1000));
+    }
+
+    @Test
+    void testConcurrentAddsDuringSplitsLoseNoContact() throws Exception {
+        int ksize = 8;
+        int threads = 8;
+        Random rnd = new Random(11);
+        for (int round = 0; round < 50; round++) {
+            Node self = randomNode(round);
+            RoutingTable table = new RoutingTable(self, ksize);
+            // ksize contacts per prefix length: every one fits once the own bucket has split far enough
+            List<Node> contacts = new ArrayList<>();
+            for (int prefix = 0; prefix < 24; prefix++) {
+                for (int i = 0; i < ksize; i++) {
+                    contacts.add(nodeAtPrefix(self, prefix, rnd));
+                }
+            }
+            Collections.shuffle(contacts, rnd);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                List<Node> slice = contacts.subList(t * contacts.size() / threads, (t + 1) * contacts.size() / threads);
+                workers.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    slice.forEach(table::addContact);
+                }));
+            }
+            start.countDown();
+            for (Thread w : workers) {
+                w.join();
+            }
+            for (Node n : contacts) {
+                assertFalse(table.isNewNode(n), "round " + round + " dropped " + n);
+            }
+            assertEquals(contacts.size(), table.getNodeCount());
+        }
+    }
+}
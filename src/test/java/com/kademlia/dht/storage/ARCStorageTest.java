@@ -2,7 +2,15 @@ package com.kademlia.dht.storage;
 
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -35,4 +43,133 @@ class ARCStorageTest {
             assertTrue(storage.get(("k" + i).getBytes()).isPresent(), "k" + i + " should be present");
         }
     }
+
+    @Test
+    void testSmallCacheIsOneShard() {
+        assertEquals(1, new ARCStorage(10).shardCount());
+        assertEquals(8, new ARCStorage(1000, 12).shardCount());
+    }
+
+    @Test
+    void testGhostHitsDoNotGrowPastCapacity() {
+        ARCStorage storage = new ARCStorage(10);
+        Random rnd = new Random(1);
+        for (int i = 0; i < 10_000; i++) {
+            byte[] key = ("k" + rnd.nextInt(40)).getBytes();
+            storage.put(key, key);
+            assertTrue(storage.size() <= 10, "size " + storage.size());
+        }
+    }
+
+    @Test
+    void testConcurrentPutAndGetStayWithinCapacity() throws Exception {
+        ARCStorage storage = new ARCStorage(1024, 16);
+        try (ExecutorService pool = Executors.newFixedThreadPool(8)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(pool.submit(() -> {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    for (int i = 0; i < 20_000; i++) {
+                        byte[] key = ("k" + rnd.nextInt(4096)).getBytes();
+                        if (rnd.nextBoolean()) {
+                            storage.put(key, key);
+                        } else {
+                            storage.get(key).ifPresent(v -> assertArrayEquals(key, v));
+                        }
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        }
+        assertTrue(storage.size() <= 1024, "size " + storage.size());
+        int[] count = {0};
+        storage.iterator().forEachRemaining(e -> count[0]++);
+        assertEquals(storage.size(), count[0]);
+    }
+
+    @Test
+    void testShardedHitRatioMatchesSingleArc() {
+        double single = hitRatio(new ARCStorage(2048, 1));
+        double sharded = hitRatio(new ARCStorage(2048, 16));
+        assertTrue(Math.abs(single - sharded) < 0.02, "single " + single + " sharded " + sharded);
+    }
+
+    /** Zipf-like reads over 20k keys mixed with one-off scans, filling on miss. */
+    private static double hitRatio(ARCStorage storage) {
+        Random rnd = new Random(42);
+        int hits = 0;
+        int reads = 200_000;
+        for (int i = 0; i < reads; i++) {
+            int id = rnd.nextInt(10) == 0 ? 100_000 + i : (int) Math.pow(20_000, rnd.nextDouble());
+            byte[] key = ("k" + id).getBytes();
+            if (storage.get(key).isPresent()) {
+                hits++;
+            } else {
+                storage.put(key, key);
+            }
+        }
+        return (double) hits / reads;
+    }
+
+    @Test
+    void testByteBudgetHoldsWhateverTheValueSizes() {
+        long budget = 1 << 20;
+        ARCStorage storage = ARCStorage.withByteBudget(budget);
+        Random rnd = new Random(7);
+        for (int i = 0; i < 5_000; i++) {
+            int size = rnd.nextBoolean() ? 100 : 60_000;
+            byte[] key = ("k" + rnd.nextInt(500)).getBytes();
+            storage.put(key, new byte[size]);
+            assertTrue(storage.residentUnits() <= budget, "resident " + storage.residentUnits());
+        }
+        long charged = 0;
+        for (var it = storage.iterator(); it.hasNext(); ) {
+            var e = it.next();
+            charged += StorageEntry.OVERHEAD_BYTES + e.getKey().length + e.getValue().length;
+        }
+        assertEquals(storage.residentUnits(), charged);
+        assertTrue(storage.ghostCount() <= 2 * budget / StorageEntry.OVERHEAD_BYTES);
+    }
+
+    @Test
+    void testLargeValueEvictsSeveralSmallOnes() {
+        ARCStorage storage = ARCStorage.withByteBudget(10_000, 1);
+        for (int i = 0; i < 10; i++) {
+            storage.put(("k" + i).getBytes(), new byte[800]);
+        }
+        assertEquals(10, storage.size());
+        storage.put("big".getBytes(), new byte[5_000]);
+        assertTrue(storage.get("big".getBytes()).isPresent());
+        // 10 x 930 bytes plus 5,131 for the new entry: the five oldest make way
+        assertEquals(6, storage.size());
+        assertTrue(storage.get("k4".getBytes()).isEmpty());
+        assertTrue(storage.get("k5".getBytes()).isPresent());
+        assertTrue(storage.residentUnits() <= 10_000);
+    }
+
+    @Test
+    void testValueLargerThanBudgetReplacesNothingAndDropsOldValue() {
+        ARCStorage storage = ARCStorage.withByteBudget(4_096, 1);
+        storage.put("k".getBytes(), "small".getBytes());
+        storage.put("other".getBytes(), "kept".getBytes());
+        storage.put("k".getBytes(), new byte[8_192]);
+        assertTrue(storage.get("k".getBytes()).isEmpty());
+        assertTrue(storage.get("other".getBytes()).isPresent());
+    }
+
+    @Test
+    void testViewPromotesLikeGet() {
+        ARCStorage storage = new ARCStorage(2, 1);
+        storage.put("a".getBytes(), "1".getBytes());
+        storage.put("b".getBytes(), "2".getBytes());
+        ByteBuffer view = storage.view("a".getBytes()).orElseThrow();
+        assertTrue(view.isReadOnly());
+        assertEquals(ByteBuffer.wrap("1".getBytes()), view);
+        storage.put("c".getBytes(), "3".getBytes());
+        // "a" moved to T2 on the view, so "b" was the one evicted
+        assertTrue(storage.view("a".getBytes()).isPresent());
+        assertTrue(storage.get("b".getBytes()).isEmpty());
+    }
 }
@@ -2,6 +2,8 @@ package com.kademlia.dht.storage;
 
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -34,4 +36,45 @@ class ForgetfulStorageTest {
         ForgetfulStorage storage = new ForgetfulStorage(3600);
         assertTrue(storage.get("missing".getBytes()).isEmpty());
     }
+
+    @Test
+    void testByteBudgetEvictsOldestFirst() {
+        long budget = 100 * (StorageEntry.OVERHEAD_BYTES + 3 + 1_000);
+        ForgetfulStorage storage = new ForgetfulStorage(3600, budget);
+        for (int i = 0; i < 300; i++) {
+            storage.put(String.format("%03d", i).getBytes(), new byte[1_000]);
+            assertTrue(storage.residentBytes() <= budget);
+        }
+        assertTrue(storage.get("000".getBytes()).isEmpty());
+        assertTrue(storage.get("199".getBytes()).isEmpty());
+        assertTrue(storage.get("200".getBytes()).isPresent());
+        assertTrue(storage.get("299".getBytes()).isPresent());
+    }
+
+    @Test
+    void testOverwritesAreChargedOnce() {
+        ForgetfulStorage storage = new ForgetfulStorage(3600, 1 << 20);
+        for (int i = 0; i < 10_000; i++) {
+            storage.put("key".getBytes(), new byte[i % 100]);
+        }
+        assertEquals(StorageEntry.OVERHEAD_BYTES + 3 + 99, storage.residentBytes());
+        storage.put("key".getBytes(), new byte[2 << 20]);
+        assertTrue(storage.get("key".getBytes()).isEmpty());
+        assertEquals(0, storage.residentBytes());
+    }
+
+    @Test
+    void testViewsShareOneImmutableCopy() {
+        ForgetfulStorage storage = new ForgetfulStorage(3600);
+        byte[] value = "value".getBytes();
+        storage.put("key".getBytes(), value);
+        value[0] = 'X';
+        ByteBuffer view = storage.view("key".getBytes()).orElseThrow();
+        assertTrue(view.isReadOnly());
+        assertThrows(ReadOnlyBufferException.class, () -> view.put(0, (byte) 'Y'));
+        assertEquals(ByteBuffer.wrap("value".getBytes()), view);
+        storage.get("key".getBytes()).orElseThrow()[0] = 'Z';
+        assertArrayEquals("value".getBytes(), storage.get("key".getBytes()).orElseThrow());
+        assertTrue(storage.view("missing".getBytes()).isEmpty());
+    }
 }
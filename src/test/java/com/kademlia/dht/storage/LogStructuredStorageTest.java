@@ -0,0 +1,240 @@
+package com.kademlia.dht.storage;
+
+import com.kademlia.dht.util.Digest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogStructuredStorageTest {
+
+    @TempDir
+    Path dir;
+
+    private static int recordBytes(int keyLength, int valueLength) {
+        return LogStructuredStorage.HEADER_BYTES + keyLength + valueLength;
+    }
+
+    private List<Path> files(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(suffix)).sorted().toList();
+        }
+    }
+
+    @Test
+    void testPutGetAndView() throws IOException {
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600)) {
+            storage.put("key".getBytes(), "value".getBytes());
+            assertArrayEquals("value".getBytes(), storage.get("key".getBytes()).orElseThrow());
+            storage.put("key".getBytes(), "newer".getBytes());
+            ByteBuffer view = storage.view("key".getBytes()).orElseThrow();
+            assertTrue(view.isReadOnly());
+            assertEquals(ByteBuffer.wrap("newer".getBytes()), view);
+            assertTrue(storage.get("missing".getBytes()).isEmpty());
+        }
+    }
+
+    @Test
+    void testRestartServesEveryKeyAcrossSegments() throws IOException {
+        Map<ByteArray, byte[]> model = new HashMap<>();
+        Random rnd = new Random(5);
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600, 64 << 10)) {
+            for (int i = 0; i < 5_000; i++) {
+                byte[] key = Digest.hash("key" + rnd.nextInt(2_000));
+                byte[] value = new byte[rnd.nextInt(200)];
+                rnd.nextBytes(value);
+                storage.put(key, value);
+                model.put(new ByteArray(key), value);
+            }
+            assertTrue(storage.segmentCount() > 1);
+        }
+        assertFalse(files(".hint").isEmpty());
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600, 64 << 10)) {
+            assertEquals(model.size(), storage.size());
+            for (Map.Entry<ByteArray, byte[]> e : model.entrySet()) {
+                assertArrayEquals(e.getValue(), storage.get(e.getKey().getBytes()).orElseThrow());
+            }
+            int seen = 0;
+            for (var it = storage.iterator(); it.hasNext(); seen++) {
+                var e = it.next();
+                assertArrayEquals(model.get(new ByteArray(e.getKey())), e.getValue());
+            }
+            assertEquals(model.size(), seen);
+        }
+    }
+
+    @Test
+    void testRecoversWithoutCleanShutdown(@TempDir Path afterCrash) throws IOException {
+        try (LogStructuredStorage crashed = new LogStructuredStorage(dir, 3600, 4 << 10)) {
+            for (int i = 0; i < 500; i++) {
+                crashed.put(Digest.hash("k" + i), ("v" + i).getBytes());
+            }
+            // The files as a crash would leave them: the newest segment has no hint and is
+            // scanned record by record. Hints are moved into place whole, and nothing here is
+            // compacted away, so segments and hints stay put while the hint writer runs.
+            for (Path file : Stream.concat(files(".seg").stream(), files(".hint").stream()).toList()) {
+                Files.copy(file, afterCrash.resolve(file.getFileName()));
+            }
+        }
+        try (LogStructuredStorage storage = new LogStructuredStorage(afterCrash, 3600, 4 << 10)) {
+            for (int i = 0; i < 500; i++) {
+                assertArrayEquals(("v" + i).getBytes(), storage.get(Digest.hash("k" + i)).orElseThrow());
+            }
+        }
+    }
+
+    @Test
+    void testDirectoryCannotBeOpenedTwice() throws IOException {
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600)) {
+            storage.put("key".getBytes(), "value".getBytes());
+            assertThrows(IOException.class, () -> new LogStructuredStorage(dir, 3600));
+            assertArrayEquals("value".getBytes(), storage.get("key".getBytes()).orElseThrow());
+        }
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600)) {
+            assertArrayEquals("value".getBytes(), storage.get("key".getBytes()).orElseThrow());
+        }
+    }
+
+    @Test
+    void testTornWriteIsCutOff() throws IOException {
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600)) {
+            storage.put("a".getBytes(), "first".getBytes());
+            storage.put("b".getBytes(), "second".getBytes());
+        }
+        // A record cut short by a crash: full header, half its payload
+        int end = 2 * recordBytes(1, 5) + 1;
+        ByteBuffer torn = ByteBuffer.allocate(LogStructuredStorage.HEADER_BYTES + 4);
+        torn.putInt(0x12345678).putLong(Long.MAX_VALUE).putShort((short) 1).putInt(100).put("cabc".getBytes()).flip();
+        try (FileChannel channel = FileChannel.open(files(".seg").getLast(), StandardOpenOption.WRITE)) {
+            channel.write(torn, end);
+        }
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600)) {
+            assertArrayEquals("first".getBytes(), storage.get("a".getBytes()).orElseThrow());
+            assertArrayEquals("second".getBytes(), storage.get("b".getBytes()).orElseThrow());
+            assertTrue(storage.get("c".getBytes()).isEmpty());
+            storage.put("c".getBytes(), "third".getBytes());
+        }
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600)) {
+            assertArrayEquals("third".getBytes(), storage.get("c".getBytes()).orElseThrow());
+            assertEquals(3, storage.size());
+        }
+    }
+
+    @Test
+    void testDamagedHintFallsBackToScanning() throws IOException {
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600, 4 << 10)) {
+            for (int i = 0; i < 500; i++) {
+                storage.put(Digest.hash("k" + i), ("v" + i).getBytes());
+            }
+        }
+        for (Path hint : files(".hint")) {
+            byte[] bytes = Files.readAllBytes(hint);
+            bytes[bytes.length / 2] ^= 1;
+            Files.write(hint, bytes);
+        }
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600, 4 << 10)) {
+            assertEquals(500, storage.size());
+            assertArrayEquals("v499".getBytes(), storage.get(Digest.hash("k499")).orElseThrow());
+        }
+    }
+
+    @Test
+    void testCompactionReclaimsOverwrittenValues() throws IOException {
+        int segmentBytes = 16 << 10;
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600, segmentBytes)) {
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < 100; i++) {
+                    storage.put(Digest.hash("k" + i), ("v" + round + "-" + i).getBytes());
+                }
+            }
+            storage.compact();
+            // 100 live records fit in one segment; the overwritten ones are gone
+            assertTrue(storage.segmentCount() <= 2, "segments: " + storage.segmentCount());
+            for (int i = 0; i < 100; i++) {
+                assertArrayEquals(("v19-" + i).getBytes(), storage.get(Digest.hash("k" + i)).orElseThrow());
+            }
+        }
+        assertTrue(files(".seg").size() <= 2);
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600, segmentBytes)) {
+            assertEquals(100, storage.size());
+            for (int i = 0; i < 100; i++) {
+                assertArrayEquals(("v19-" + i).getBytes(), storage.get(Digest.hash("k" + i)).orElseThrow());
+            }
+        }
+    }
+
+    @Test
+    void testExpiredValuesAreDroppedAndCompactedAway() throws IOException, InterruptedException {
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 1, 4 << 10)) {
+            for (int i = 0; i < 500; i++) {
+                storage.put(Digest.hash("k" + i), new byte[20]);
+            }
+            int segments = storage.segmentCount();
+            assertTrue(segments > 1);
+            Thread.sleep(1100);
+            assertTrue(storage.get(Digest.hash("k0")).isEmpty());
+            assertFalse(storage.iterator().hasNext());
+            storage.cull();
+            storage.compact();
+            assertEquals(0, storage.size());
+            assertEquals(1, storage.segmentCount());
+        }
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 1, 4 << 10)) {
+            assertEquals(0, storage.size());
+        }
+    }
+
+    @Test
+    void testValueLargerThanSegment() throws IOException {
+        byte[] big = new byte[100 << 10];
+        new Random(2).nextBytes(big);
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600, 16 << 10)) {
+            storage.put("small".getBytes(), "x".getBytes());
+            storage.put("big".getBytes(), big);
+            storage.put("after".getBytes(), "y".getBytes());
+            assertArrayEquals(big, storage.get("big".getBytes()).orElseThrow());
+        }
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600, 16 << 10)) {
+            assertArrayEquals(big, storage.get("big".getBytes()).orElseThrow());
+            assertArrayEquals("y".getBytes(), storage.get("after".getBytes()).orElseThrow());
+        }
+    }
+
+    @Test
+    void testCullAfterCloseIsHarmless() throws IOException {
+        LogStructuredStorage storage = new LogStructuredStorage(dir, 3600, 4 << 10);
+        for (int i = 0; i < 500; i++) {
+            storage.put(Digest.hash("k" + i), new byte[20]);
+        }
+        storage.close();
+        // A periodic cull already under way when the store closes must not fail
+        storage.cull();
+        storage.cull();
+        assertArrayEquals(new byte[20], storage.get(Digest.hash("k0")).orElseThrow());
+    }
+
+    @Test
+    void testStraySegmentNamesAreIgnored() throws IOException {
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600)) {
+            storage.put("key".getBytes(), "value".getBytes());
+        }
+        Files.write(dir.resolve("old.seg"), new byte[100]);
+        Files.write(dir.resolve("99999999999.seg"), new byte[100]);
+        try (LogStructuredStorage storage = new LogStructuredStorage(dir, 3600)) {
+            assertArrayEquals("value".getBytes(), storage.get("key".getBytes()).orElseThrow());
+            assertEquals(1, storage.segmentCount());
+        }
+    }
+}
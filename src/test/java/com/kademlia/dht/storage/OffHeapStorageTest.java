@@ -0,0 +1,148 @@
+package com.kademlia.dht.storage;
+
+import com.kademlia.dht.util.Digest;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapStorageTest {
+
+    @Test
+    void testPutAndGet() {
+        OffHeapStorage storage = new OffHeapStorage(3600);
+        storage.put("key".getBytes(), "value".getBytes());
+        Optional<byte[]> got = storage.get("key".getBytes());
+        assertTrue(got.isPresent());
+        assertArrayEquals("value".getBytes(), got.get());
+        assertTrue(storage.get("missing".getBytes()).isEmpty());
+    }
+
+    @Test
+    void testOverwriteInPlaceAndAcrossClasses() {
+        OffHeapStorage storage = new OffHeapStorage(3600);
+        byte[] key = Digest.hash("k");
+        storage.put(key, new byte[10]);
+        storage.put(key, new byte[12]);
+        assertEquals(12, storage.get(key).orElseThrow().length);
+        storage.put(key, new byte[5_000]);
+        assertEquals(5_000, storage.get(key).orElseThrow().length);
+        storage.put(key, "small".getBytes());
+        assertArrayEquals("small".getBytes(), storage.get(key).orElseThrow());
+        assertEquals(1, storage.size());
+    }
+
+    @Test
+    void testMatchesMapUnderRandomPutsAndOverwrites() {
+        OffHeapStorage storage = new OffHeapStorage(3600, 64L << 20);
+        Map<ByteArray, byte[]> model = new HashMap<>();
+        Random rnd = new Random(3);
+        for (int i = 0; i < 50_000; i++) {
+            byte[] key = Digest.hash("key" + rnd.nextInt(10_000));
+            byte[] value = new byte[rnd.nextInt(rnd.nextInt(10) == 0 ? 3_000 : 100)];
+            rnd.nextBytes(value);
+            storage.put(key, value);
+            model.put(new ByteArray(key), value);
+        }
+        assertEquals(model.size(), storage.size());
+        for (Map.Entry<ByteArray, byte[]> e : model.entrySet()) {
+            assertArrayEquals(e.getValue(), storage.get(e.getKey().getBytes()).orElseThrow());
+        }
+        int seen = 0;
+        for (var it = storage.iterator(); it.hasNext(); seen++) {
+            var e = it.next();
+            assertArrayEquals(model.get(new ByteArray(e.getKey())), e.getValue());
+        }
+        assertEquals(model.size(), seen);
+    }
+
+    @Test
+    void testTTLEvictionFreesChunksForReuse() throws InterruptedException {
+        OffHeapStorage storage = new OffHeapStorage(1);
+        for (int i = 0; i < 1_000; i++) {
+            storage.put(Digest.hash("a" + i), new byte[100]);
+        }
+        long allocated = storage.allocatedBytes();
+        Thread.sleep(1100);
+        assertTrue(storage.get(Digest.hash("a0")).isEmpty());
+        assertFalse(storage.iterator().hasNext());
+        storage.cull();
+        assertEquals(0, storage.size());
+        for (int i = 0; i < 1_000; i++) {
+            storage.put(Digest.hash("b" + i), new byte[100]);
+        }
+        assertEquals(allocated, storage.allocatedBytes());
+        assertEquals(1_000, storage.size());
+    }
+
+    @Test
+    void testBudgetIsNeverExceeded() {
+        long budget = 4L * OffHeapStorage.SLAB_BYTES;
+        OffHeapStorage storage = new OffHeapStorage(3600, budget);
+        for (int i = 0; i < 100_000; i++) {
+            storage.put(Digest.hash("k" + i), new byte[200]);
+            assertTrue(storage.allocatedBytes() <= budget);
+        }
+        // The newest values survive; the clock hand evicted the oldest first
+        assertTrue(storage.get(Digest.hash("k99999")).isPresent());
+        assertTrue(storage.get(Digest.hash("k0")).isEmpty());
+        int seen = 0;
+        for (var it = storage.iterator(); it.hasNext(); it.next()) {
+            seen++;
+        }
+        assertEquals(storage.size(), seen);
+    }
+
+    @Test
+    void testExpiredSlabsGoToAnotherClass() throws InterruptedException {
+        long budget = 4L * OffHeapStorage.SLAB_BYTES;
+        OffHeapStorage storage = new OffHeapStorage(1, budget);
+        for (int i = 0; i < 100_000; i++) {
+            storage.put(Digest.hash("k" + i), new byte[200]);
+        }
+        Thread.sleep(1200);
+        storage.cull();
+        assertEquals(0, storage.size());
+        assertEquals(0, storage.allocatedBytes());
+        storage.put(Digest.hash("big"), new byte[1000]);
+        assertEquals(1000, storage.get(Digest.hash("big")).orElseThrow().length);
+    }
+
+    @Test
+    void testClassWithoutSlabEvictsFromOthers() {
+        long budget = 4L * OffHeapStorage.SLAB_BYTES;
+        OffHeapStorage storage = new OffHeapStorage(3600, budget);
+        for (int i = 0; i < 100_000; i++) {
+            storage.put(Digest.hash("k" + i), new byte[200]);
+        }
+        for (int i = 0; i < 500; i++) {
+            storage.put(Digest.hash("v" + i), new byte[1000]);
+            assertTrue(storage.allocatedBytes() <= budget);
+        }
+        for (int i = 0; i < 500; i++) {
+            assertEquals(1000, storage.get(Digest.hash("v" + i)).orElseThrow().length);
+        }
+        byte[] big = new byte[2 * OffHeapStorage.SLAB_BYTES];
+        storage.put("big".getBytes(), big);
+        assertArrayEquals(big, storage.get("big".getBytes()).orElseThrow());
+        assertTrue(storage.allocatedBytes() <= budget);
+    }
+
+    @Test
+    void testValueLargerThanSlabGetsItsOwnBuffer() {
+        OffHeapStorage storage = new OffHeapStorage(3600, 8L << 20);
+        byte[] big = new byte[3 * OffHeapStorage.SLAB_BYTES];
+        new Random(1).nextBytes(big);
+        storage.put("big".getBytes(), big);
+        assertArrayEquals(big, storage.get("big".getBytes()).orElseThrow());
+        storage.put("big".getBytes(), "now small".getBytes());
+        assertArrayEquals("now small".getBytes(), storage.get("big".getBytes()).orElseThrow());
+        assertEquals(OffHeapStorage.SLAB_BYTES, storage.allocatedBytes());
+        storage.put("huge".getBytes(), new byte[16 << 20]);
+        assertTrue(storage.get("huge".getBytes()).isEmpty());
+    }
+}